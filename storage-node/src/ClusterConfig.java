@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+// ================================
+//  Membros do cluster, lidos de um arquivo (-Dcluster.config=cluster.properties)
+//
+//    node.<id>=host:port     um por nó (id inteiro > 0)
+//    node.<id>.weight=2      opcional: o nó recebe o dobro de tokens no anel
+//    ring.vnodes=128         tokens por nó de peso 1
+//
+//  Sem arquivo valem os 5 nós de sempre, em localhost:5001..5005.
+// ================================
+
+public class ClusterConfig {
+
+    static final int DEFAULT_VNODES = 128;
+    static final int LEGACY_NODES = 5;
+
+    static class Member {
+        final int id;
+        final InetSocketAddress address;
+        final int weight;
+
+        Member(int id, InetSocketAddress address, int weight) {
+            this.id = id;
+            this.address = address;
+            this.weight = weight;
+        }
+    }
+
+    private final Map<Integer, Member> members;
+    private final int vnodes;
+    private final HashRing ring;
+
+    private ClusterConfig(Map<Integer, Member> members, int vnodes) {
+        if (members.isEmpty()) throw new IllegalArgumentException("Cluster config has no nodes");
+        this.members = Collections.unmodifiableMap(members);
+        this.vnodes = vnodes;
+
+        Map<Integer, Integer> weights = new TreeMap<>();
+        for (Member m : members.values()) weights.put(m.id, m.weight);
+        this.ring = new HashRing(weights, vnodes);
+    }
+
+    static ClusterConfig defaults() {
+        Map<Integer, Member> members = new TreeMap<>();
+        for (int id = 1; id <= LEGACY_NODES; id++) {
+            members.put(id, new Member(id, InetSocketAddress.createUnresolved("localhost", 5000 + id), 1));
+        }
+        return new ClusterConfig(members, DEFAULT_VNODES);
+    }
+
+    // IllegalArgumentException se alguma linha não fizer sentido
+    static ClusterConfig load(Path file) throws IOException {
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+
+        Map<Integer, Member> members = new TreeMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (!key.startsWith("node.") || key.endsWith(".weight")) continue;
+            int id = parseId(key.substring("node.".length()), key);
+            String value = props.getProperty(key).trim();
+            int colon = value.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Expected host:port in " + key + "=" + value);
+            int port = Integer.parseInt(value.substring(colon + 1).trim());
+            int weight = Integer.parseInt(props.getProperty(key + ".weight", "1").trim());
+            if (weight < 1) throw new IllegalArgumentException("Invalid weight for node " + id);
+            members.put(id, new Member(id, InetSocketAddress.createUnresolved(value.substring(0, colon).trim(), port), weight));
+        }
+
+        int vnodes = Integer.parseInt(props.getProperty("ring.vnodes", String.valueOf(DEFAULT_VNODES)).trim());
+        if (vnodes < 1) throw new IllegalArgumentException("ring.vnodes must be >= 1");
+        return new ClusterConfig(members, vnodes);
+    }
+
+    private static int parseId(String id, String key) {
+        try {
+            int value = Integer.parseInt(id);
+            if (value > 0) return value;
+        } catch (NumberFormatException ignored) { }
+        throw new IllegalArgumentException("Invalid node id in " + key);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    int vnodes() {
+        return vnodes;
+    }
+
+    boolean contains(int id) {
+        return members.containsKey(id);
+    }
+
+    Collection<Member> members() {
+        return members.values();
+    }
+
+    // endereço resolvido na hora da conexão (o arquivo pode ter nomes de host)
+    InetSocketAddress addressOf(int id) {
+        Member m = members.get(id);
+        if (m == null) return null;
+        return new InetSocketAddress(m.address.getHostString(), m.address.getPort());
+    }
+
+    HashRing ring() {
+        return ring;
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+// ================================
+//  Razão e vazão de cada codec de fragment numa thread (= por core)
+//
+//  java -cp out CompressionBenchmark [rounds] [arquivo...]
+//
+//  Sem arquivos: os de ../examples (se existir), um log de texto sintético e bytes
+//  aleatórios. Cada entrada é comprimida em blocos de FragmentCodec.BLOCK_SIZE, como no
+//  nó; "skip" indica que a amostra (primeiro bloco) não encolhe e o fragment fica cru.
+//  cpu ms/MB: tempo de CPU da thread por MB original (compressão / descompressão)
+// ================================
+
+public class CompressionBenchmark {
+
+    private static final String[] CODECS = { "deflate", "deflate-fast", "lz4" };
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            Path p = Paths.get(args[i]);
+            inputs.put(p.getFileName().toString(), Files.readAllBytes(p));
+        }
+        if (inputs.isEmpty()) {
+            Path examples = Paths.get("..", "examples");
+            if (Files.isDirectory(examples)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(examples)) {
+                    for (Path p : stream) {
+                        if (Files.isRegularFile(p)) inputs.put(p.getFileName().toString(), Files.readAllBytes(p));
+                    }
+                }
+            }
+            inputs.put("synthetic.log", syntheticLog(4 * 1024 * 1024));
+            byte[] random = new byte[4 * 1024 * 1024];
+            new Random(42).nextBytes(random);
+            inputs.put("random.bin", random);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("Block %d KB, %d rounds%n", FragmentCodec.BLOCK_SIZE / 1024, rounds);
+        System.out.printf(Locale.ROOT, "%-16s %-13s %9s %7s %5s %12s %12s %12s %12s%n",
+                "input", "codec", "bytes", "ratio", "skip", "comp MB/s", "decomp MB/s", "comp cpu", "decomp cpu");
+
+        for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+            byte[] data = input.getValue();
+            if (data.length == 0) continue;
+            for (String name : CODECS) {
+                FragmentCodec codec = FragmentCodec.byName(name);
+                byte[][] packed = splitAndCompress(codec, data);
+
+                // warmup p/ o JIT
+                for (int i = 0; i < 5; i++) splitAndCompress(codec, data);
+                byte[] restored = new byte[data.length];
+                for (int i = 0; i < 5; i++) decompressAll(codec, data, packed, restored);
+
+                long cpu = threads.getCurrentThreadCpuTime();
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) splitAndCompress(codec, data);
+                long compressNanos = System.nanoTime() - start;
+                long compressCpu = threads.getCurrentThreadCpuTime() - cpu;
+
+                cpu = threads.getCurrentThreadCpuTime();
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) decompressAll(codec, data, packed, restored);
+                long decompressNanos = System.nanoTime() - start;
+                long decompressCpu = threads.getCurrentThreadCpuTime() - cpu;
+
+                if (!Arrays.equals(data, restored)) {
+                    System.out.println("MISMATCH on " + input.getKey() + " with " + name);
+                    System.exit(1);
+                }
+
+                long stored = 0;
+                for (int b = 0; b < packed.length; b++) {
+                    stored += 4 + (packed[b] != null ? packed[b].length : blockLength(data, b));
+                }
+                boolean skip = packed[0] == null
+                        || packed[0].length > blockLength(data, 0) * FragmentCodec.MAX_RATIO;
+                double mb = (double) data.length * rounds / 1e6;
+                System.out.printf(Locale.ROOT, "%-16s %-13s %9d %7.3f %5s %12.1f %12.1f %9.2f ms/MB %6.2f ms/MB%n",
+                        input.getKey(), name, data.length, (double) stored / data.length, skip ? "yes" : "no",
+                        mb / (compressNanos / 1e9), mb / (decompressNanos / 1e9),
+                        compressCpu / 1e6 / mb, decompressCpu / 1e6 / mb);
+            }
+        }
+    }
+
+    // bloco comprimido, ou null se ficaria cru
+    private static byte[][] splitAndCompress(FragmentCodec codec, byte[] data) {
+        int blocks = (data.length + FragmentCodec.BLOCK_SIZE - 1) / FragmentCodec.BLOCK_SIZE;
+        byte[][] packed = new byte[blocks][];
+        byte[] scratch = new byte[codec.maxCompressedLength(FragmentCodec.BLOCK_SIZE)];
+        for (int b = 0; b < blocks; b++) {
+            int off = b * FragmentCodec.BLOCK_SIZE;
+            int c = codec.compress(data, off, blockLength(data, b), scratch);
+            if (c >= 0) packed[b] = Arrays.copyOf(scratch, c);
+        }
+        return packed;
+    }
+
+    private static void decompressAll(FragmentCodec codec, byte[] data, byte[][] packed, byte[] out) throws IOException {
+        for (int b = 0; b < packed.length; b++) {
+            int off = b * FragmentCodec.BLOCK_SIZE;
+            int n = blockLength(out, b);
+            if (packed[b] == null) {
+                System.arraycopy(data, off, out, off, n); // bloco cru: só a cópia
+            } else {
+                codec.decompress(packed[b], 0, packed[b].length, out, off, n);
+            }
+        }
+    }
+
+    private static int blockLength(byte[] data, int block) {
+        return Math.min(FragmentCodec.BLOCK_SIZE, data.length - block * FragmentCodec.BLOCK_SIZE);
+    }
+
+    // linhas de log com campos repetidos e números variando, como um upload de texto típico
+    private static byte[] syntheticLog(int size) {
+        Random random = new Random(7);
+        String[] levels = { "INFO", "WARN", "DEBUG", "ERROR" };
+        String[] paths = { "/upload", "/download", "/files", "/internal/getFragment", "/internal/storeFragments" };
+        StringBuilder sb = new StringBuilder(size + 256);
+        long ts = 1_700_000_000_000L;
+        while (sb.length() < size) {
+            ts += random.nextInt(50);
+            sb.append(ts).append(' ').append(levels[random.nextInt(levels.length)])
+                    .append(" [node-").append(1 + random.nextInt(5)).append("] ")
+                    .append(paths[random.nextInt(paths.length)]).append(" status=")
+                    .append(random.nextInt(10) == 0 ? 500 : 200).append(" bytes=").append(random.nextInt(1 << 20))
+                    .append(" ms=").append(random.nextInt(200)).append('\n');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// ================================
+//  Modelo de execução das conexões aceitas pelo nó (-Dnode.engine=...)
+//
+//    thread  - uma platform thread nova por conexão, sem limite (comportamento original)
+//    virtual - uma virtual thread por conexão (Java 21+; no 17 cai num pool cached)
+//    pool    - pool fixo de workers + fila de accept limitada; lotado => 503
+//    nio     - poucos event loops com Selector; thread de worker só durante a requisição
+// ================================
+
+public abstract class ConnectionEngine {
+
+    // conexões persistentes (HTTP/1.1 keep-alive), valem p/ todos os engines
+    static final int KEEP_ALIVE_TIMEOUT_MS = Integer.getInteger("http.keepAliveTimeoutMs", 15_000);
+    static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("http.maxRequestsPerConnection", 1000);
+    // corpo não lido que ainda vale descartar p/ manter a conexão viva
+    static final long MAX_DRAIN_BYTES = 64 * 1024;
+
+    static final byte[] BUSY_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Content-Type: text/plain; charset=utf-8\r\n"
+            + "Content-Length: 12\r\n"
+            + "Retry-After: 1\r\n"
+            + "Connection: close\r\n"
+            + "\r\n"
+            + "Server busy\n").getBytes(StandardCharsets.UTF_8);
+
+    public interface RequestHandler {
+        void handle(Exchange ex) throws IOException;
+    }
+
+    protected final AtomicInteger active = new AtomicInteger();
+    protected final AtomicLong accepted = new AtomicLong();
+    protected final AtomicLong rejected = new AtomicLong();
+
+    public abstract String name();
+
+    public abstract void serve(int port) throws IOException;
+
+    public int activeConnections() {
+        return active.get();
+    }
+
+    public int queuedConnections() {
+        return 0;
+    }
+
+    public long acceptedConnections() {
+        return accepted.get();
+    }
+
+    public long rejectedConnections() {
+        return rejected.get();
+    }
+
+    public static ConnectionEngine create(String name, Consumer<Socket> connectionHandler, RequestHandler requestHandler) {
+        int workers = Integer.getInteger("node.workers", 64);
+        int acceptQueue = Integer.getInteger("node.acceptQueue", 256);
+        switch (name) {
+            case "thread":
+                return new ThreadPerConnection(connectionHandler);
+            case "virtual":
+                return new VirtualThreads(connectionHandler);
+            case "pool":
+                return new BoundedPool(connectionHandler, workers, acceptQueue);
+            case "nio":
+                int loops = Integer.getInteger("nio.eventLoops",
+                        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+                return new NioEngine(requestHandler, loops, workers, acceptQueue);
+            default:
+                throw new IllegalArgumentException("Unknown node.engine: " + name);
+        }
+    }
+
+    // ================================
+    //  engines bloqueantes: uma thread por conexão ativa
+    //  O accept é feito por ServerSocketChannel p/ os sockets terem channel (sendFile
+    //  e sendBuffer escrevem direto nele, sem passar pelo heap)
+    // ================================
+
+    abstract static class Blocking extends ConnectionEngine {
+        protected final Consumer<Socket> handler;
+
+        Blocking(Consumer<Socket> handler) {
+            this.handler = handler;
+        }
+
+        protected abstract void dispatch(Socket socket);
+
+        @Override
+        public void serve(int port) throws IOException {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port), 50);
+            while (true) {
+                SocketChannel channel = server.accept();
+                accepted.incrementAndGet();
+                dispatch(channel.socket());
+            }
+        }
+
+        protected void handle(Socket socket) {
+            active.incrementAndGet();
+            try {
+                handler.accept(socket);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    // ================================
+    //  thread
+    // ================================
+
+    static class ThreadPerConnection extends Blocking {
+        ThreadPerConnection(Consumer<Socket> handler) {
+            super(handler);
+        }
+
+        @Override
+        public String name() {
+            return "thread";
+        }
+
+        @Override
+        protected void dispatch(Socket socket) {
+            new Thread(() -> handle(socket)).start();
+        }
+    }
+
+    // ================================
+    //  virtual
+    // ================================
+
+    static class VirtualThreads extends Blocking {
+        private final ExecutorService executor = StorageNode.newTaskExecutor("connection");
+
+        VirtualThreads(Consumer<Socket> handler) {
+            super(handler);
+        }
+
+        @Override
+        public String name() {
+            return "virtual";
+        }
+
+        @Override
+        protected void dispatch(Socket socket) {
+            executor.execute(() -> handle(socket));
+        }
+    }
+
+    // ================================
+    //  pool
+    // ================================
+
+    static class BoundedPool extends Blocking {
+        private final ThreadPoolExecutor executor;
+
+        BoundedPool(Consumer<Socket> handler, int workers, int queueSize) {
+            super(handler);
+            AtomicInteger seq = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    r -> new Thread(r, "worker-" + seq.incrementAndGet()),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        @Override
+        public String name() {
+            return "pool";
+        }
+
+        @Override
+        public int queuedConnections() {
+            return executor.getQueue().size();
+        }
+
+        @Override
+        protected void dispatch(Socket socket) {
+            try {
+                executor.execute(() -> handle(socket));
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                rejectBusy(socket);
+            }
+        }
+
+        // a resposta é pequena o bastante p/ caber no buffer do socket, não bloqueia o accept
+        private void rejectBusy(Socket socket) {
+            try (Socket s = socket) {
+                OutputStream out = s.getOutputStream();
+                out.write(BUSY_RESPONSE);
+                out.flush();
+            } catch (IOException ignored) { }
+        }
+    }
+}
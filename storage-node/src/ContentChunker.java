@@ -0,0 +1,76 @@
+// ================================
+//  Content-defined chunking (FastCDC)
+//
+//  O corte acontece onde um hash rolante (gear: fp = (fp << 1) + GEAR[byte]) bate numa
+//  máscara, então depende só dos ~64 bytes anteriores: inserir um byte no começo do
+//  arquivo muda um ou dois chunks, não todos. Como no FastCDC:
+//    - os primeiros minSize bytes de cada chunk nem entram no hash (corte nunca antes);
+//    - até avgSize a máscara é mais exigente, depois mais fácil (tamanhos mais
+//      concentrados em torno da média);
+//    - maxSize força o corte.
+//  A tabela GEAR é fixa (semente constante): todos os nós cortam igual.
+// ================================
+
+public class ContentChunker {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // SplitMix64
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall; // antes de avgSize: bits + 2 bits em 1
+    private final long maskLarge; // depois: bits - 2
+
+    // avgSize potência de 2; min = avg/4, max = avg*4
+    public ContentChunker(int avgSize) {
+        if (avgSize < 256 || Integer.bitCount(avgSize) != 1) {
+            throw new IllegalArgumentException("Average chunk size must be a power of two >= 256: " + avgSize);
+        }
+        this.avgSize = avgSize;
+        this.minSize = avgSize / 4;
+        this.maxSize = avgSize * 4;
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        // bits altos do fingerprint: dependem dos últimos 64 bytes, não só dos últimos poucos
+        this.maskSmall = -1L << (64 - (bits + 2));
+        this.maskLarge = -1L << (64 - (bits - 2));
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public int avgSize() {
+        return avgSize;
+    }
+
+    // tamanho do próximo chunk em data[off..off+len). len < maxSize só no fim do arquivo
+    public int cut(byte[] data, int off, int len) {
+        if (len <= minSize) return len;
+        int end = Math.min(len, maxSize);
+        int normal = Math.min(end, avgSize);
+
+        long fp = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[data[off + i] & 0xFF];
+            if ((fp & maskSmall) == 0) return i + 1;
+        }
+        for (; i < end; i++) {
+            fp = (fp << 1) + GEAR[data[off + i] & 0xFF];
+            if ((fp & maskLarge) == 0) return i + 1;
+        }
+        return end;
+    }
+}
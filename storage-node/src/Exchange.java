@@ -0,0 +1,247 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// ================================
+//  Uma requisição HTTP e sua resposta, dentro de uma conexão persistente
+// ================================
+
+public class Exchange {
+
+    final String requestLine;
+    final String method;
+    final String path;
+    final String query;
+    final Map<String, String> headers; // nomes em minúsculas
+    final long contentLength;
+    final String contentType;
+
+    // corpo limitado ao Content-Length: o handler nunca lê a próxima requisição do pipeline
+    final BodyInputStream body;
+    final OutputStream out;
+    final PrintWriter writer;
+
+    // channel do socket por baixo de out (null se não houver): arquivos e buffers
+    // fora do heap vão direto p/ ele depois de um flush de out
+    private final WritableByteChannel channel;
+
+    private boolean keepAlive;
+    private boolean responseStarted;
+    private int status;             // 0 até o writeHead
+    private long responseLength = -1; // -1 = chunked
+
+    Exchange(String requestLine, Map<String, String> headers, InputStream in, OutputStream out,
+             WritableByteChannel channel, boolean allowKeepAlive) {
+        this.requestLine = requestLine;
+        String[] parts = requestLine.split(" ");
+        this.method = parts.length > 0 ? parts[0] : "";
+        String rawPath = parts.length > 1 ? parts[1] : "";
+        String version = parts.length > 2 ? parts[2] : "HTTP/1.0";
+
+        // separa path e query (?fileId=...&name=...)
+        int qPos = rawPath.indexOf('?');
+        this.path = qPos != -1 ? rawPath.substring(0, qPos) : rawPath;
+        this.query = qPos != -1 ? rawPath.substring(qPos + 1) : null;
+
+        this.headers = headers;
+        this.contentLength = parseContentLength(headers.get("content-length"));
+        String type = headers.get("content-type");
+        this.contentType = type != null ? type.toLowerCase() : "";
+        this.body = new BodyInputStream(in, Math.max(0, contentLength));
+        this.out = out;
+        this.writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), false);
+        this.channel = channel;
+
+        String connection = headers.getOrDefault("connection", "").toLowerCase();
+        boolean keepAlive = "HTTP/1.1".equalsIgnoreCase(version)
+                ? !connection.contains("close")
+                : connection.contains("keep-alive");
+        // corpo chunked não é suportado: sem como achar o fim dele, a conexão não é reaproveitada
+        if (headers.containsKey("transfer-encoding")) keepAlive = false;
+        this.keepAlive = keepAlive && allowKeepAlive;
+    }
+
+    String header(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    boolean isResponseStarted() {
+        return responseStarted;
+    }
+
+    int status() {
+        return status;
+    }
+
+    long responseLength() {
+        return responseLength;
+    }
+
+    // p/ respostas interrompidas no meio do corpo: o cliente só percebe se a conexão fechar
+    void closeConnection() {
+        keepAlive = false;
+    }
+
+    // status line + headers comuns; contentLength < 0 => Transfer-Encoding: chunked
+    void writeHead(int code, String contentType, long contentLength, String... extraHeaders) {
+        responseStarted = true;
+        status = code;
+        responseLength = contentLength;
+        writer.print("HTTP/1.1 " + code + " " + reason(code) + "\r\n");
+        writer.print("Content-Type: " + contentType + "\r\n");
+        if (contentLength >= 0) {
+            writer.print("Content-Length: " + contentLength + "\r\n");
+        } else {
+            writer.print("Transfer-Encoding: chunked\r\n");
+        }
+        for (String h : extraHeaders) {
+            writer.print(h + "\r\n");
+        }
+        writer.print(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        writer.print("\r\n");
+        writer.flush();
+    }
+
+    // envia count bytes do arquivo a partir de position e fecha o file channel. Com o
+    // channel do socket disponível usa transferTo (sendfile): disco -> socket sem
+    // passar pelo processo
+    void sendFile(FileChannel file, long position, long count) throws IOException {
+        try (FileChannel ch = file) {
+            if (channel != null) {
+                out.flush();
+                while (count > 0) {
+                    long n = ch.transferTo(position, count, channel);
+                    if (n <= 0 && position >= ch.size()) throw new EOFException("File shorter than expected");
+                    position += n;
+                    count -= n;
+                }
+                return;
+            }
+
+            byte[] chunk = new byte[64 * 1024];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (count > 0) {
+                buffer.clear().limit((int) Math.min(chunk.length, count));
+                int r = ch.read(buffer, position);
+                if (r == -1) throw new EOFException("File shorter than expected");
+                out.write(chunk, 0, r);
+                position += r;
+                count -= r;
+            }
+            out.flush();
+        }
+    }
+
+    // envia o conteúdo do buffer (a posição dele não muda). Direct/mapped vai direto p/
+    // o channel do socket; o engine nio enfileira o próprio buffer, sem cópia
+    void sendBuffer(ByteBuffer data) throws IOException {
+        if (channel != null && data.isDirect()) {
+            out.flush();
+            ByteBuffer src = data.duplicate();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            return;
+        }
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            ByteBuffer src = data.duplicate();
+            byte[] chunk = new byte[Math.min(64 * 1024, Math.max(1, src.remaining()))];
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+        out.flush();
+    }
+
+    static String reason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "OK";
+        }
+    }
+
+    static long parseContentLength(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // ================================
+    //  Corpo da requisição
+    // ================================
+
+    static class BodyInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BodyInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int r = in.read(b, off, (int) Math.min(len, remaining));
+            if (r > 0) remaining -= r;
+            return r;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        // descarta o que o handler não leu, p/ a próxima requisição começar no lugar certo
+        boolean drain(long maxBytes) throws IOException {
+            if (remaining > maxBytes) return false;
+            byte[] skip = new byte[8192];
+            while (remaining > 0) {
+                if (read(skip, 0, skip.length) == -1) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // a conexão continua aberta p/ as próximas requisições
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// ================================
+//  Detector de falhas phi-accrual (Hayashibara et al.) sobre batimentos entre os nós
+//
+//  A cada failureDetector.intervalMs o nó manda um GET /internal/heartbeat p/ cada peer;
+//  qualquer resposta HTTP é um batimento. Dos intervalos recentes entre batimentos sai
+//  uma normal (média, desvio), e phi = -log10(P(o próximo ainda chegar depois de tanto
+//  tempo sem nenhum)). phi acima de failureDetector.threshold = peer suspeito: leituras e
+//  escritas passam por fora dele sem pagar timeout. O primeiro batimento depois disso
+//  tira a suspeita. Peer ainda sem batimento conta desde o start do detector.
+// ================================
+
+public class FailureDetector {
+
+    static final long INTERVAL_MS = Long.getLong("failureDetector.intervalMs", 500L);
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("failureDetector.threshold", "8"));
+    // desvio mínimo e pausa tolerada: sem eles, batimentos muito regulares (localhost)
+    // fariam qualquer pausa de GC virar suspeita
+    private static final long MIN_STD_DEVIATION_MS = 100;
+    private static final long ACCEPTABLE_PAUSE_MS = 500;
+    private static final int WINDOW = 100;
+
+    interface Probe {
+        boolean heartbeat(int peer, int timeoutMs); // true = o peer respondeu
+    }
+
+    private final String nodeId;
+    private final Supplier<Collection<Integer>> peers;
+    private final Probe probe;
+    private final Map<Integer, PeerHistory> histories = new ConcurrentHashMap<>();
+    private final LongAdder heartbeatsSent = new LongAdder();
+    private final LongAdder heartbeatsMissed = new LongAdder();
+    private final LongAdder avoidedCalls = new LongAdder();
+    private ScheduledExecutorService scheduler;
+    private ExecutorService probes;
+    private volatile long startedAt = System.nanoTime();
+
+    FailureDetector(String nodeId, Supplier<Collection<Integer>> peers, Probe probe) {
+        this.nodeId = nodeId;
+        this.peers = peers;
+        this.probe = probe;
+    }
+
+    boolean enabled() {
+        return INTERVAL_MS > 0;
+    }
+
+    void start() {
+        if (!enabled()) return;
+        startedAt = System.nanoTime();
+        ThreadFactory daemon = r -> {
+            Thread t = new Thread(r, "failure-detector");
+            t.setDaemon(true);
+            return t;
+        };
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon);
+        // uma thread por peer travado no máximo: probe em andamento não é repetido
+        probes = Executors.newCachedThreadPool(daemon);
+        scheduler.scheduleWithFixedDelay(this::tick, 0, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // false só com o peer suspeito (a chamada que ia p/ ele conta em avoidedCalls); peer
+    // fora do cluster ou detector desligado = disponível
+    boolean isAvailable(int peer) {
+        if (!enabled()) return true;
+        PeerHistory h = histories.get(peer);
+        if (h == null || h.phi(System.nanoTime()) < THRESHOLD) return true;
+        avoidedCalls.increment();
+        return false;
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (int peer : peers.get()) {
+            PeerHistory h = histories.computeIfAbsent(peer, id -> new PeerHistory(startedAt));
+            boolean suspected = h.phi(now) >= THRESHOLD;
+            if (suspected && !h.suspected) {
+                h.suspected = true;
+                h.suspicions.increment();
+                Log.warn("[%s] Node %d suspected down (phi=%.1f, %d ms without heartbeat)",
+                        nodeId, peer, h.phi(now), TimeUnit.NANOSECONDS.toMillis(now - h.lastArrival));
+            }
+            if (h.probing.compareAndSet(false, true)) {
+                probes.execute(() -> {
+                    try {
+                        heartbeatsSent.increment();
+                        // um peer lento demais p/ responder em 2 intervalos também é suspeito
+                        if (probe.heartbeat(peer, (int) Math.max(250, 2 * INTERVAL_MS))) {
+                            if (h.arrived(System.nanoTime())) Log.info("[%s] Node %d is back", nodeId, peer);
+                        } else {
+                            heartbeatsMissed.increment();
+                        }
+                    } finally {
+                        h.probing.set(false);
+                    }
+                });
+            }
+        }
+    }
+
+    String statsJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"enabled\":").append(enabled())
+          .append(",\"intervalMs\":").append(INTERVAL_MS)
+          .append(",\"threshold\":").append(THRESHOLD)
+          .append(",\"heartbeats\":").append(heartbeatsSent.sum())
+          .append(",\"missed\":").append(heartbeatsMissed.sum())
+          .append(",\"avoidedCalls\":").append(avoidedCalls.sum())
+          .append(",\"peers\":{");
+        long now = System.nanoTime();
+        boolean first = true;
+        for (Map.Entry<Integer, PeerHistory> e : new TreeMap<>(histories).entrySet()) {
+            PeerHistory h = e.getValue();
+            double phi = h.phi(now);
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":{\"available\":").append(phi < THRESHOLD)
+              .append(",\"phi\":").append(String.format(Locale.ROOT, "%.2f", Math.min(phi, 999)))
+              .append(",\"sinceHeartbeatMs\":").append(TimeUnit.NANOSECONDS.toMillis(now - h.lastArrival))
+              .append(",\"meanIntervalMs\":").append(String.format(Locale.ROOT, "%.1f", h.meanNanos() / 1e6))
+              .append(",\"suspicions\":").append(h.suspicions.sum())
+              .append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    void writeMetrics(Metrics.Exposition m) {
+        m.family("dfs_peer_up", "gauge", "1 if the failure detector considers the node available.");
+        long now = System.nanoTime();
+        for (Map.Entry<Integer, PeerHistory> e : new TreeMap<>(histories).entrySet()) {
+            m.sample("dfs_peer_up", Metrics.label("peer", e.getKey()), e.getValue().phi(now) < THRESHOLD ? 1 : 0);
+        }
+        m.family("dfs_peer_avoided_calls_total", "counter", "Calls skipped because the target was suspected down.");
+        m.sample("dfs_peer_avoided_calls_total", "", avoidedCalls.sum());
+    }
+
+    // ================================
+    //  Intervalos entre batimentos de um peer
+    // ================================
+
+    private static class PeerHistory {
+        final long[] intervals = new long[WINDOW];
+        final AtomicBoolean probing = new AtomicBoolean();
+        final LongAdder suspicions = new LongAdder();
+        int count;
+        int next;
+        long sum;
+        double sumSquares;
+        volatile long lastArrival;
+        volatile boolean suspected;
+
+        PeerHistory(long start) {
+            this.lastArrival = start;
+            // semente: um intervalo nominal, até chegarem batimentos de verdade
+            add(TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS));
+        }
+
+        // true se o peer estava suspeito. O intervalo de uma queda não entra na janela:
+        // uma parada longa não pode ensinar o detector a esperar tanto da próxima vez
+        synchronized boolean arrived(long now) {
+            boolean wasSuspected = suspected;
+            if (!wasSuspected && phi(now) < THRESHOLD) add(now - lastArrival);
+            lastArrival = now;
+            suspected = false;
+            return wasSuspected;
+        }
+
+        private void add(long interval) {
+            if (count == WINDOW) {
+                long old = intervals[next];
+                sum -= old;
+                sumSquares -= (double) old * old;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumSquares += (double) interval * interval;
+        }
+
+        synchronized double meanNanos() {
+            return (double) sum / count;
+        }
+
+        // aproximação logística da cauda da normal (a mesma do Akka/Cassandra)
+        synchronized double phi(long now) {
+            double mean = (double) sum / count + TimeUnit.MILLISECONDS.toNanos(ACCEPTABLE_PAUSE_MS);
+            double variance = Math.max(0, sumSquares / count - ((double) sum / count) * ((double) sum / count));
+            double std = Math.max(Math.sqrt(variance), TimeUnit.MILLISECONDS.toNanos(MIN_STD_DEVIATION_MS));
+            double y = (now - lastArrival - mean) / std;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return now - lastArrival > mean ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+}
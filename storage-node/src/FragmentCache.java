@@ -0,0 +1,240 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// ================================
+//  Cache de fragments (fileId, index) fora do heap
+//
+//  Os bytes ficam em direct buffers: o GC só enxerga os headers dos buffers. Limite
+//  em bytes (-Dcache.maxBytes) e política W-TinyLFU:
+//    window (1%, LRU)  ->  main SLRU (probation 20% + protected 80%)
+//  Quem sai da window só entra no main se a frequência estimada (count-min sketch,
+//  contadores de 4 bits com envelhecimento) for maior que a da vítima do main; uma
+//  varredura de arquivos frios não derruba os fragments quentes.
+//  O conteúdo é endereçado pelo hash (fileId), então entradas nunca ficam velhas.
+// ================================
+
+public class FragmentCache {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long windowMax;
+    private final long protectedMax;
+
+    // LinkedHashMap em ordem de acesso: o primeiro é o LRU
+    private final LinkedHashMap<String, Node> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Node> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Node> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final FrequencySketch sketch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    public FragmentCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntryBytes = this.maxBytes / 8; // um fragment enorme não esvazia o cache sozinho
+        this.windowMax = Math.max(1, this.maxBytes * WINDOW_PERCENT / 100);
+        this.protectedMax = (this.maxBytes - windowMax) * PROTECTED_PERCENT / 100;
+        // ~1 contador por fragment de 16 KB que caberia no cache
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, this.maxBytes / (16 * 1024))));
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    // tamanho que vale a pena ler p/ um direct buffer e oferecer ao cache
+    public boolean admits(long size) {
+        return isEnabled() && size > 0 && size <= maxEntryBytes;
+    }
+
+    // visão só-leitura (posição própria) ou null
+    public ByteBuffer get(String fileId, int index) {
+        if (!isEnabled()) return null;
+        String key = key(fileId, index);
+        synchronized (this) {
+            sketch.increment(key);
+            Node node = window.get(key);
+            if (node == null) node = protectedSegment.get(key);
+            if (node == null) {
+                node = probation.remove(key);
+                if (node != null) {
+                    probationBytes -= node.size;
+                    promote(key, node);
+                }
+            }
+            if (node == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return node.data.asReadOnlyBuffer();
+        }
+    }
+
+    // copia p/ um direct buffer (fora do lock) se ainda não for um
+    public void put(String fileId, int index, ByteBuffer data) {
+        int size = data.remaining();
+        if (!admits(size)) return;
+        String key = key(fileId, index);
+
+        ByteBuffer stored;
+        if (data.isDirect()) {
+            stored = data.duplicate();
+        } else {
+            stored = ByteBuffer.allocateDirect(size);
+            stored.put(data.duplicate()).flip();
+        }
+
+        synchronized (this) {
+            if (window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key)) return;
+            window.put(key, new Node(stored, size));
+            windowBytes += size;
+            while (windowBytes > windowMax && !window.isEmpty()) {
+                Map.Entry<String, Node> eldest = window.entrySet().iterator().next();
+                window.remove(eldest.getKey());
+                windowBytes -= eldest.getValue().size;
+                admitToMain(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    private void admitToMain(String key, Node candidate) {
+        long mainMax = maxBytes - windowMax;
+        if (probationBytes + protectedBytes + candidate.size > mainMax) {
+            Map.Entry<String, Node> victim = eldest(probation);
+            if (victim == null) victim = eldest(protectedSegment);
+            if (victim != null && sketch.frequency(key) <= sketch.frequency(victim.getKey())) {
+                rejections++;
+                return;
+            }
+            while (probationBytes + protectedBytes + candidate.size > mainMax) {
+                if (!evictEldest(probation, true) && !evictEldest(protectedSegment, false)) break;
+            }
+        }
+        probation.put(key, candidate);
+        probationBytes += candidate.size;
+    }
+
+    // acesso na probation: vai p/ protected, e o LRU de protected volta p/ probation
+    private void promote(String key, Node node) {
+        protectedSegment.put(key, node);
+        protectedBytes += node.size;
+        while (protectedBytes > protectedMax && protectedSegment.size() > 1) {
+            Map.Entry<String, Node> demoted = eldest(protectedSegment);
+            protectedSegment.remove(demoted.getKey());
+            protectedBytes -= demoted.getValue().size;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().size;
+        }
+    }
+
+    private boolean evictEldest(LinkedHashMap<String, Node> segment, boolean isProbation) {
+        Map.Entry<String, Node> eldest = eldest(segment);
+        if (eldest == null) return false;
+        segment.remove(eldest.getKey());
+        if (isProbation) probationBytes -= eldest.getValue().size;
+        else protectedBytes -= eldest.getValue().size;
+        evictions++;
+        return true;
+    }
+
+    private static Map.Entry<String, Node> eldest(LinkedHashMap<String, Node> segment) {
+        Iterator<Map.Entry<String, Node>> it = segment.entrySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private static String key(String fileId, int index) {
+        return fileId + ':' + index;
+    }
+
+    // ================================
+    //  Métricas
+    // ================================
+
+    public synchronized String statsJson() {
+        long total = hits + misses;
+        return String.format(Locale.ROOT,
+                "{\"maxBytes\":%d,\"bytes\":%d,\"entries\":%d,\"hits\":%d,\"misses\":%d,\"hitRate\":%.3f,"
+                        + "\"evictions\":%d,\"rejections\":%d}",
+                maxBytes, windowBytes + probationBytes + protectedBytes,
+                window.size() + probation.size() + protectedSegment.size(),
+                hits, misses, total == 0 ? 0.0 : (double) hits / total, evictions, rejections);
+    }
+
+    private static class Node {
+        final ByteBuffer data;
+        final int size;
+
+        Node(ByteBuffer data, int size) {
+            this.data = data;
+            this.size = size;
+        }
+    }
+
+    // ================================
+    //  Count-min sketch (4 linhas, contadores de 4 bits saturando em 15)
+    //  A cada 10 * width incrementos todos os contadores caem pela metade, p/ que
+    //  popularidade antiga não segure entradas p/ sempre.
+    // ================================
+
+    private static class FrequencySketch {
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[][] rows;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            this.rows = new byte[SEEDS.length][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(String key) {
+            int h = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < rows.length; i++) {
+                int slot = index(h, i);
+                if (rows[i][slot] < 15) {
+                    rows[i][slot]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (byte[] row : rows) {
+                    for (int j = 0; j < row.length; j++) row[j] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int h = key.hashCode();
+            int min = 15;
+            for (int i = 0; i < rows.length; i++) {
+                min = Math.min(min, rows[i][index(h, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// ================================
+//  Compressão de fragments (-Dcompression.codec=deflate|deflate-fast|lz4)
+//
+//  Fragment comprimido fica em <n>.frag.z, no formato:
+//    byte codec | long tamanho original | int tamanho do bloco
+//    por bloco: int tamanho comprimido (-1 = bloco guardado cru) | bytes
+//  Os blocos são independentes: um range só descomprime os blocos que toca, e um bloco
+//  que não encolhe fica cru. O hash do manifest continua sendo o do conteúdo original.
+//  Antes de comprimir o fragment inteiro o primeiro bloco serve de amostra: JPEG, PNG,
+//  zip etc. não encolhem e ficam em <n>.frag, sem gastar CPU com o resto.
+// ================================
+
+public abstract class FragmentCodec {
+
+    static final int BLOCK_SIZE = 256 * 1024;
+    static final int HEADER_SIZE = 1 + 8 + 4;
+    static final int RAW_BLOCK = -1;
+
+    // ganho menor que 15% não paga a descompressão em toda leitura
+    static final double MAX_RATIO = 0.85;
+
+    abstract String name();
+
+    // gravado no header; deflate-fast usa o mesmo id (o inflate é o mesmo)
+    abstract int id();
+
+    abstract int maxCompressedLength(int length);
+
+    // bytes escritos em dst, ou -1 se não couberem em length - 1 (não encolheu)
+    abstract int compress(byte[] src, int off, int length, byte[] dst);
+
+    abstract void decompress(byte[] src, int off, int length, byte[] dst, int dstOff, int rawLength) throws IOException;
+
+    // null = sem compressão
+    static FragmentCodec byName(String name) {
+        switch (name) {
+            case "none": return null;
+            case "deflate": return new DeflateCodec("deflate", 6);
+            case "deflate-fast": return new DeflateCodec("deflate-fast", 1);
+            case "lz4": return new Lz4Codec();
+            default: throw new IllegalArgumentException("Unknown compression codec: " + name);
+        }
+    }
+
+    static FragmentCodec byId(int id) throws IOException {
+        switch (id) {
+            case DeflateCodec.ID: return new DeflateCodec("deflate", 6);
+            case Lz4Codec.ID: return new Lz4Codec();
+            default: throw new IOException("Unknown fragment codec id " + id);
+        }
+    }
+
+    // ================================
+    //  Escrita
+    // ================================
+
+    // src -> dst (.z); false, sem deixar dst, se a amostra ou o total não encolherem o suficiente
+    boolean compressFile(Path src, Path dst) throws IOException {
+        long rawLength = Files.size(src);
+        if (rawLength == 0) return false;
+
+        int blockSize = BLOCK_SIZE;
+        byte[] block = new byte[blockSize];
+        byte[] packed = new byte[maxCompressedLength(blockSize)];
+        boolean kept = false;
+        try (InputStream in = Files.newInputStream(src);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dst), 64 * 1024))) {
+            out.writeByte(id());
+            out.writeLong(rawLength);
+            out.writeInt(blockSize);
+
+            long stored = HEADER_SIZE;
+            long remaining = rawLength;
+            boolean first = true;
+            while (remaining > 0) {
+                int n = (int) Math.min(blockSize, remaining);
+                if (in.readNBytes(block, 0, n) != n) throw new EOFException("Fragment shrank while compressing: " + src);
+                remaining -= n;
+
+                int c = compress(block, 0, n, packed);
+                if (first && (c < 0 || c > n * MAX_RATIO)) return false;
+                first = false;
+
+                if (c < 0) {
+                    out.writeInt(RAW_BLOCK);
+                    out.write(block, 0, n);
+                    stored += 4 + n;
+                } else {
+                    out.writeInt(c);
+                    out.write(packed, 0, c);
+                    stored += 4 + c;
+                }
+            }
+            kept = stored <= rawLength * MAX_RATIO;
+            return kept;
+        } finally {
+            if (!kept) Files.deleteIfExists(dst);
+        }
+    }
+
+    // ================================
+    //  Leitura
+    // ================================
+
+    // base = onde o .z começa no channel (0 num arquivo .z, o offset do registro num segmento)
+    static long rawLength(FileChannel channel, long base) throws IOException {
+        return readHeader(channel, base).getLong(1);
+    }
+
+    // fragment inteiro (stored = conteúdo do .z, mapeado ou em memória)
+    static ByteBuffer decode(ByteBuffer stored) throws IOException {
+        ByteBuffer in = stored.duplicate();
+        if (in.remaining() < HEADER_SIZE) throw new IOException("Truncated compressed fragment");
+        FragmentCodec codec = byId(in.get() & 0xFF);
+        long rawLength = in.getLong();
+        int blockSize = in.getInt();
+        if (rawLength < 0 || rawLength > Integer.MAX_VALUE || blockSize <= 0) {
+            throw new IOException("Invalid compressed fragment header");
+        }
+
+        byte[] raw = new byte[(int) rawLength];
+        byte[] packed = new byte[codec.maxCompressedLength(blockSize)];
+        try {
+            for (int pos = 0; pos < raw.length; pos += blockSize) {
+                int n = Math.min(blockSize, raw.length - pos);
+                int c = in.getInt();
+                if (c == RAW_BLOCK) {
+                    in.get(raw, pos, n);
+                } else {
+                    if (c < 0 || c > packed.length) throw new IOException("Invalid compressed block length " + c);
+                    in.get(packed, 0, c);
+                    codec.decompress(packed, 0, c, raw, pos, n);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated compressed fragment");
+        }
+        return ByteBuffer.wrap(raw);
+    }
+
+    // bytes [from, to) do conteúdo original: pula (só pelo tamanho) os blocos antes do range
+    static ByteBuffer decodeRange(FileChannel channel, long base, long from, long to) throws IOException {
+        ByteBuffer header = readHeader(channel, base);
+        FragmentCodec codec = byId(header.get(0) & 0xFF);
+        long rawLength = header.getLong(1);
+        int blockSize = header.getInt(9);
+        if (from < 0 || to > rawLength || from > to || blockSize <= 0) {
+            throw new IOException("Invalid range of compressed fragment");
+        }
+
+        byte[] out = new byte[(int) (to - from)];
+        byte[] raw = new byte[blockSize];
+        byte[] packed = new byte[codec.maxCompressedLength(blockSize)];
+        ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+        long position = base + HEADER_SIZE;
+        for (long blockStart = 0; blockStart < to; blockStart += blockSize) {
+            int n = (int) Math.min(blockSize, rawLength - blockStart);
+            readAt(channel, lengthBuf.clear(), position);
+            int c = lengthBuf.getInt(0);
+            int storedLength = c == RAW_BLOCK ? n : c;
+            if (storedLength < 0 || storedLength > packed.length) throw new IOException("Invalid compressed block length " + c);
+            position += 4;
+
+            if (blockStart + n > from) {
+                readAt(channel, ByteBuffer.wrap(packed, 0, storedLength), position);
+                byte[] block = packed;
+                if (c != RAW_BLOCK) {
+                    codec.decompress(packed, 0, c, raw, 0, n);
+                    block = raw;
+                }
+                long copyFrom = Math.max(from, blockStart);
+                long copyTo = Math.min(to, blockStart + n);
+                System.arraycopy(block, (int) (copyFrom - blockStart), out, (int) (copyFrom - from), (int) (copyTo - copyFrom));
+            }
+            position += storedLength;
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    // conteúdo original em streaming (reenvio p/ nós que não aceitam o .z, checagem de hash)
+    static void decodeTo(InputStream stored, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(stored);
+        FragmentCodec codec = byId(in.readUnsignedByte());
+        long rawLength = in.readLong();
+        int blockSize = in.readInt();
+        if (rawLength < 0 || blockSize <= 0) throw new IOException("Invalid compressed fragment header");
+
+        byte[] raw = new byte[blockSize];
+        byte[] packed = new byte[codec.maxCompressedLength(blockSize)];
+        for (long pos = 0; pos < rawLength; pos += blockSize) {
+            int n = (int) Math.min(blockSize, rawLength - pos);
+            int c = in.readInt();
+            if (c == RAW_BLOCK) {
+                in.readFully(raw, 0, n);
+            } else {
+                if (c < 0 || c > packed.length) throw new IOException("Invalid compressed block length " + c);
+                in.readFully(packed, 0, c);
+                codec.decompress(packed, 0, c, raw, 0, n);
+            }
+            out.write(raw, 0, n);
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, long base) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readAt(channel, header, base);
+        return header;
+    }
+
+    private static void readAt(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) == -1) throw new EOFException("Truncated compressed fragment");
+        }
+    }
+
+    // ================================
+    //  Deflate (java.util.zip, sem header zlib)
+    // ================================
+
+    static class DeflateCodec extends FragmentCodec {
+        static final int ID = 1;
+
+        private final String name;
+        private final int level;
+
+        DeflateCodec(String name, int level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        @Override
+        String name() {
+            return name;
+        }
+
+        @Override
+        int id() {
+            return ID;
+        }
+
+        @Override
+        int maxCompressedLength(int length) {
+            return length;
+        }
+
+        @Override
+        int compress(byte[] src, int off, int length, byte[] dst) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(src, off, length);
+                deflater.finish();
+                int limit = Math.min(dst.length, length - 1);
+                int n = 0;
+                while (!deflater.finished() && n < limit) {
+                    n += deflater.deflate(dst, n, limit - n);
+                }
+                return deflater.finished() ? n : -1;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        void decompress(byte[] src, int off, int length, byte[] dst, int dstOff, int rawLength) throws IOException {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(src, off, length);
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int r = inflater.inflate(dst, dstOff + n, rawLength - n);
+                    if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    n += r;
+                }
+                if (n != rawLength) throw new IOException("Corrupt deflate block");
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
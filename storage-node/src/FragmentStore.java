@@ -0,0 +1,365 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+// ================================
+//  Onde fragments, chunks e manifests ficam no disco (-Dstorage.engine=...)
+//
+//    files    - um arquivo por item: <fileId>/fragments/<i>.frag, <fileId>/manifest.json,
+//               chunks/ab/<hash>.chunk (comportamento original)
+//    segments - tudo anexado a arquivos de segmento grandes, com índice em memória
+//               (ver SegmentStore)
+//
+//  Endereço (key, index): fileId + índice do fragment (>= 0), fileId + MANIFEST_INDEX ou
+//  hash + CHUNK_INDEX. "compressed" = conteúdo no formato .z do FragmentCodec.
+//
+//  Durabilidade de cada escrita (-Dstore.durability, ou ?durability= no upload):
+//    none  - retorna com os bytes no page cache; um crash do SO perde o que já foi confirmado
+//    group - espera um fsync compartilhado com as escritas concorrentes (GroupCommit)
+//    write - fsync próprio antes de retornar
+// ================================
+
+public abstract class FragmentStore {
+
+    static final int CHUNK_INDEX = -1;
+    static final int MANIFEST_INDEX = -2;
+
+    enum Durability {
+        NONE, GROUP, WRITE;
+
+        static Durability parse(String name) {
+            switch (name) {
+                case "none": return NONE;
+                case "group": return GROUP;
+                case "write": return WRITE;
+                default: throw new IllegalArgumentException("Unknown durability: " + name);
+            }
+        }
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // trecho de arquivo com o conteúdo; quem recebe fecha o channel
+    static class Stored {
+        final FileChannel channel;
+        final long offset;
+        final long length;
+        final boolean compressed;
+
+        Stored(FileChannel channel, long offset, long length, boolean compressed) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+
+    // gravação em andamento: o conteúdo só fica visível no commit; close sem commit descarta
+    abstract static class Writer extends OutputStream {
+        // o que já foi escrito (p/ conferir o conteúdo antes do commit)
+        abstract InputStream readBack() throws IOException;
+
+        abstract void commit(Durability durability) throws IOException;
+    }
+
+    public static FragmentStore create(String name, Path dataRoot) {
+        switch (name) {
+            case "files":
+                return new FilePerFragment(dataRoot);
+            case "segments":
+                return new SegmentStore(dataRoot.resolve("segments"),
+                        Long.getLong("segments.maxMB", 256L) * 1024 * 1024,
+                        Double.parseDouble(System.getProperty("segments.compactRatio", "0.5")),
+                        Long.getLong("segments.compactIntervalMs", 30_000L));
+            default:
+                throw new IllegalArgumentException("Unknown storage.engine: " + name);
+        }
+    }
+
+    // fsync de arquivo ou diretório (o do diretório é o que torna um rename/criação durável)
+    static void fsync(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    public abstract String name();
+
+    // recuperação do que já está no disco
+    public void start() throws IOException { }
+
+    // null se não existe
+    abstract Stored open(String key, int index) throws IOException;
+
+    abstract boolean contains(String key, int index) throws IOException;
+
+    // sizeHint: tamanho esperado (só p/ escolher memória x arquivo temporário)
+    abstract Writer create(String key, int index, boolean compressed, long sizeHint) throws IOException;
+
+    abstract void write(String key, int index, boolean compressed, byte[] data, Durability durability) throws IOException;
+
+    // source pode ser movido (files) ou copiado (segments): não usar depois
+    abstract void put(String key, int index, boolean compressed, Path source, Durability durability) throws IOException;
+
+    abstract boolean delete(String key, int index) throws IOException;
+
+    // índices (>= 0) dos fragments de key guardados aqui, em ordem
+    abstract List<Integer> fragmentIndexes(String key) throws IOException;
+
+    // keys com algo guardado em index (CHUNK_INDEX ou MANIFEST_INDEX)
+    abstract List<String> keys(int index) throws IOException;
+
+    public String statsJson() {
+        return "{\"engine\":\"" + name() + "\"}";
+    }
+
+    // conteúdo inteiro (manifests), ou null se não existe
+    byte[] read(String key, int index) throws IOException {
+        Stored stored = open(key, index);
+        if (stored == null) return null;
+        try (FileChannel channel = stored.channel) {
+            if (stored.length > Integer.MAX_VALUE) throw new IOException("Entry too large: " + stored.length);
+            ByteBuffer buffer = ByteBuffer.allocate((int) stored.length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, stored.offset + buffer.position()) == -1) {
+                    throw new IOException("Entry truncated: " + key + ":" + index);
+                }
+            }
+            return buffer.array();
+        }
+    }
+
+    // ================================
+    //  files: um arquivo por fragment / chunk / manifest
+    // ================================
+
+    static class FilePerFragment extends FragmentStore {
+        private static final String COMPRESSED_SUFFIX = ".z";
+
+        private final Path root;
+        // só os diretórios passam pelo group commit: um diretório repetido no lote (vários
+        // fragments do mesmo arquivo, o mesmo prefixo de chunks) é sincronizado uma vez. O
+        // conteúdo de cada arquivo precisa do seu fsync de qualquer jeito, e em paralelo, pela
+        // thread que escreveu, o journal do sistema de arquivos já os junta
+        private final GroupCommit<Path> syncer = new GroupCommit<>(batch -> {
+            for (Path p : batch) fsync(p);
+        });
+
+        FilePerFragment(Path root) {
+            this.root = root;
+        }
+
+        private void syncFile(Path path, Durability durability) throws IOException {
+            if (durability != Durability.NONE) fsync(path);
+        }
+
+        private void syncDirectories(List<Path> dirs, Durability durability) throws IOException {
+            if (durability == Durability.WRITE) {
+                for (Path p : dirs) fsync(p);
+            } else if (durability == Durability.GROUP) {
+                syncer.await(dirs);
+            }
+        }
+
+        // diretórios que não existiam (de cima p/ baixo): o pai de cada um entra no fsync,
+        // senão o arquivo some num crash junto com o diretório novo
+        private List<Path> createDirectories(Path dir) throws IOException {
+            List<Path> created = new ArrayList<>();
+            for (Path p = dir; p != null && !Files.isDirectory(p); p = p.getParent()) created.add(0, p);
+            Files.createDirectories(dir);
+            return created;
+        }
+
+        // depois do rename: o diretório do arquivo e os pais dos diretórios criados
+        private void syncRename(Path path, List<Path> created, Durability durability) throws IOException {
+            if (durability == Durability.NONE) return;
+            List<Path> dirs = new ArrayList<>();
+            for (Path p : created) dirs.add(p.getParent());
+            dirs.add(path.getParent());
+            syncDirectories(dirs, durability);
+        }
+
+        @Override
+        public String statsJson() {
+            return "{\"engine\":\"files\",\"groupCommit\":" + syncer.statsJson() + "}";
+        }
+
+        @Override
+        public String name() {
+            return "files";
+        }
+
+        // data/node-X/chunks/ab/abcd....chunk (subdiretório pelo prefixo p/ não ter milhões
+        // de arquivos num diretório só)
+        private Path path(String key, int index) {
+            if (index == CHUNK_INDEX) return root.resolve("chunks").resolve(key.substring(0, 2)).resolve(key + ".chunk");
+            if (index == MANIFEST_INDEX) return root.resolve(key).resolve("manifest.json");
+            return root.resolve(key).resolve("fragments").resolve(index + ".frag");
+        }
+
+        private Path compressedPath(Path path) {
+            return path.resolveSibling(path.getFileName() + COMPRESSED_SUFFIX);
+        }
+
+        @Override
+        Stored open(String key, int index) throws IOException {
+            Path path = path(key, index);
+            try {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                return new Stored(channel, 0, channel.size(), false);
+            } catch (NoSuchFileException e) {
+                try {
+                    FileChannel channel = FileChannel.open(compressedPath(path), StandardOpenOption.READ);
+                    return new Stored(channel, 0, channel.size(), true);
+                } catch (NoSuchFileException missing) {
+                    return null;
+                }
+            }
+        }
+
+        @Override
+        boolean contains(String key, int index) {
+            Path path = path(key, index);
+            return Files.exists(path) || Files.exists(compressedPath(path));
+        }
+
+        // arquivo temporário ao lado do definitivo, renomeado no commit (conteúdo no disco antes
+        // do rename, o rename no disco antes de retornar)
+        @Override
+        Writer create(String key, int index, boolean compressed, long sizeHint) throws IOException {
+            Path path = path(key, index);
+            List<Path> created = createDirectories(path.getParent());
+            Path tmpPath = Files.createTempFile(path.getParent(), path.getFileName() + ".", ".tmp");
+            OutputStream out = Files.newOutputStream(tmpPath);
+            return new Writer() {
+                private boolean closed;
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                InputStream readBack() throws IOException {
+                    out.flush();
+                    return Files.newInputStream(tmpPath);
+                }
+
+                @Override
+                void commit(Durability durability) throws IOException {
+                    out.close();
+                    syncFile(tmpPath, durability);
+                    Path target = compressed ? compressedPath(path) : path;
+                    Files.move(tmpPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Files.deleteIfExists(compressed ? path : compressedPath(path));
+                    syncRename(path, created, durability);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) return;
+                    closed = true;
+                    out.close();
+                    Files.deleteIfExists(tmpPath);
+                }
+            };
+        }
+
+        // temporário + rename também aqui: um manifest nunca fica pela metade
+        @Override
+        void write(String key, int index, boolean compressed, byte[] data, Durability durability) throws IOException {
+            try (Writer out = create(key, index, compressed, data.length)) {
+                out.write(data);
+                out.commit(durability);
+            }
+        }
+
+        @Override
+        void put(String key, int index, boolean compressed, Path source, Durability durability) throws IOException {
+            Path path = path(key, index);
+            List<Path> created = createDirectories(path.getParent());
+            syncFile(source, durability);
+            Files.move(source, compressed ? compressedPath(path) : path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(compressed ? path : compressedPath(path));
+            syncRename(path, created, durability);
+        }
+
+        @Override
+        boolean delete(String key, int index) throws IOException {
+            Path path = path(key, index);
+            boolean raw = Files.deleteIfExists(path);
+            return Files.deleteIfExists(compressedPath(path)) || raw;
+        }
+
+        // <n>.frag e <n>.frag.z do diretório (os .tmp de gravações em andamento ficam de fora)
+        @Override
+        List<Integer> fragmentIndexes(String key) throws IOException {
+            Set<Integer> indexes = new TreeSet<>();
+            Path fragmentsDir = root.resolve(key).resolve("fragments");
+            if (!Files.isDirectory(fragmentsDir)) return new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(fragmentsDir, "*.{frag,frag" + COMPRESSED_SUFFIX + "}")) {
+                for (Path p : stream) {
+                    String name = p.getFileName().toString();
+                    if (name.endsWith(COMPRESSED_SUFFIX)) name = name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+                    try {
+                        indexes.add(Integer.parseInt(name.substring(0, name.length() - ".frag".length())));
+                    } catch (NumberFormatException ignored) { }
+                }
+            }
+            return new ArrayList<>(indexes);
+        }
+
+        @Override
+        List<String> keys(int index) throws IOException {
+            List<String> keys = new ArrayList<>();
+            if (index == CHUNK_INDEX) {
+                Path chunksDir = root.resolve("chunks");
+                if (!Files.isDirectory(chunksDir)) return keys;
+                try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(chunksDir)) {
+                    for (Path prefix : prefixes) {
+                        if (!Files.isDirectory(prefix)) continue;
+                        try (DirectoryStream<Path> stream = Files.newDirectoryStream(prefix, "*.chunk")) {
+                            for (Path p : stream) {
+                                String name = p.getFileName().toString();
+                                keys.add(name.substring(0, name.length() - ".chunk".length()));
+                            }
+                        }
+                    }
+                }
+            } else if (index == MANIFEST_INDEX) {
+                if (!Files.isDirectory(root)) return keys;
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+                    for (Path p : stream) {
+                        if (Files.isDirectory(p) && Files.exists(p.resolve("manifest.json"))) {
+                            keys.add(p.getFileName().toString());
+                        }
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("keys() only lists chunks and manifests");
+            }
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+// ================================
+//  Group commit: quem acabou de escrever entra no lote aberto e espera o fsync dele
+//
+//  Sem thread própria: se ninguém está sincronizando, quem chegou vira o líder, fecha o
+//  lote aberto e faz o fsync de todos. Enquanto isso as escritas que terminam entram no
+//  lote seguinte, que sai inteiro no fsync seguinte (alvos repetidos, p/ ex. o mesmo
+//  segmento ou diretório, uma vez por lote). Uma escrita por vez custa um fsync por
+//  escrita; N concorrentes ficam perto de um fsync por N. Erro no fsync vai p/ o lote todo.
+// ================================
+
+public class GroupCommit<T> {
+
+    interface Flush<T> {
+        void flush(Set<T> batch) throws IOException;
+    }
+
+    private static class Batch<T> {
+        final Set<T> targets = new LinkedHashSet<>();
+        int writes;
+        boolean done;
+        IOException error;
+    }
+
+    private final Flush<T> flush;
+    private final Object lock = new Object();
+    private Batch<T> open = new Batch<>();
+    private boolean flushing;
+
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder syncNanos = new LongAdder();
+    private volatile int maxBatch;
+
+    GroupCommit(Flush<T> flush) {
+        this.flush = flush;
+    }
+
+    // volta quando um fsync que começou depois desta chamada terminou
+    void await(T target) throws IOException {
+        await(Collections.singletonList(target));
+    }
+
+    // vários alvos de uma escrita, no mesmo lote
+    void await(Collection<T> targets) throws IOException {
+        Batch<T> mine;
+        synchronized (lock) {
+            mine = open;
+            mine.targets.addAll(targets);
+            mine.writes++;
+        }
+
+        while (true) {
+            Batch<T> batch;
+            synchronized (lock) {
+                while (flushing && !mine.done) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for fsync");
+                    }
+                }
+                if (mine.done) break;
+                // ninguém sincronizando: o lote aberto é o meu, e eu sou o líder
+                batch = open;
+                open = new Batch<>();
+                flushing = true;
+            }
+
+            long start = System.nanoTime();
+            IOException error = null;
+            try {
+                flush.flush(batch.targets);
+            } catch (IOException e) {
+                error = e;
+            }
+            syncNanos.add(System.nanoTime() - start);
+            syncs.increment();
+            writes.add(batch.writes);
+            if (batch.writes > maxBatch) maxBatch = batch.writes;
+
+            synchronized (lock) {
+                batch.done = true;
+                batch.error = error;
+                flushing = false;
+                lock.notifyAll();
+            }
+        }
+        if (mine.error != null) throw new IOException("fsync failed: " + mine.error.getMessage(), mine.error);
+    }
+
+    String statsJson() {
+        long s = syncs.sum();
+        long w = writes.sum();
+        return String.format(Locale.ROOT,
+                "{\"syncs\":%d,\"writes\":%d,\"avgBatch\":%.2f,\"maxBatch\":%d,\"avgSyncMs\":%.3f}",
+                s, w, s == 0 ? 0.0 : (double) w / s, maxBatch, s == 0 ? 0.0 : syncNanos.sum() / 1e6 / s);
+    }
+}
@@ -0,0 +1,111 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// ================================
+//  Anel de hash consistente com nós virtuais
+//
+//  Cada nó ocupa vnodes * peso posições (tokens) no anel de 64 bits; uma chave pertence
+//  aos primeiros nós distintos encontrados a partir do hash dela, no sentido horário.
+//  Com um nó a mais ou a menos só as chaves dos trechos vizinhos aos tokens dele mudam
+//  de dono (~1/N delas), o resto continua onde está.
+// ================================
+
+public class HashRing {
+
+    // tokens ordenados + dono de cada um (arrays paralelos, busca binária)
+    private final long[] tokens;
+    private final int[] owners;
+    private final int nodeCount;
+
+    // nodeId -> peso (1 = vnodes tokens)
+    public HashRing(Map<Integer, Integer> weights, int vnodes) {
+        int total = 0;
+        for (int w : weights.values()) total += Math.max(1, w) * vnodes;
+
+        long[][] points = new long[total][];
+        int n = 0;
+        for (Map.Entry<Integer, Integer> e : weights.entrySet()) {
+            int count = Math.max(1, e.getValue()) * vnodes;
+            for (int v = 0; v < count; v++) {
+                points[n++] = new long[] { hash(e.getKey() + "#" + v), e.getKey() };
+            }
+        }
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+
+        this.tokens = new long[total];
+        this.owners = new int[total];
+        for (int i = 0; i < total; i++) {
+            tokens[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+        this.nodeCount = weights.size();
+    }
+
+    // até count nós distintos responsáveis pela chave, o primeiro é o dono principal
+    public int[] nodesFor(String key, int count) {
+        count = Math.min(count, nodeCount);
+        int[] result = new int[count];
+        if (count == 0) return result;
+
+        int pos = position(key);
+        int found = 0;
+        for (int step = 0; step < tokens.length && found < count; step++) {
+            int owner = owners[(pos + step) % tokens.length];
+            boolean seen = false;
+            for (int i = 0; i < found; i++) {
+                if (result[i] == owner) { seen = true; break; }
+            }
+            if (!seen) result[found++] = owner;
+        }
+        return result;
+    }
+
+    // um nó por shard: o shard i fica no primeiro nó a partir do hash de key:i que nenhum
+    // shard anterior usou (com mais shards que nós, a cada volta completa todos voltam a
+    // valer). Cada shard tem o seu trecho do anel: entrar ou sair um nó só move os shards
+    // cujo trecho mudou, não todos os que vêm depois dele numa caminhada só
+    public int[] nodesForShards(String key, int count) {
+        int[] result = new int[nodeCount == 0 ? 0 : count];
+        Set<Integer> used = new HashSet<>();
+        for (int shard = 0; shard < result.length; shard++) {
+            if (used.size() == nodeCount) used.clear();
+            int pos = position(key + ":" + shard);
+            for (int step = 0; step < tokens.length; step++) {
+                int owner = owners[(pos + step) % tokens.length];
+                if (used.add(owner)) {
+                    result[shard] = owner;
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    // primeiro token a partir do hash da chave
+    private int position(String key) {
+        int pos = Arrays.binarySearch(tokens, hash(key));
+        return pos < 0 ? -pos - 1 : pos;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    // FNV-1a 64 + finalizador do MurmurHash3: barato e bem espalhado p/ chaves curtas
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
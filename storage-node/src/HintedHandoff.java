@@ -0,0 +1,307 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+// ================================
+//  Hinted handoff: escritas p/ um peer fora do ar guardadas aqui e reenviadas depois
+//
+//  Um hint é a própria requisição que não pôde ser feita (rota, Content-Type e corpo:
+//  frame de fragments, de chunks ou um manifest), num arquivo em hints/node-<id>/. Como
+//  no Cassandra, quem guarda é o nó que coordenou o upload. A cada hints.replayIntervalMs
+//  os hints de cada peer que o FailureDetector vê de pé são reenviados do mais velho p/ o
+//  mais novo, a hints.replayMaxMBps no máximo (0 = sem limite), e apagados quando o peer
+//  confirma. O peer volta a cair no meio: o resto fica p/ a próxima passada. Resposta 4xx
+//  (o peer não aceita o frame) descarta o hint: reenviar não vai mudar nada.
+//
+//  Formato: três linhas (rota com query, Content-Type, hashes que a resposta tem que
+//  trazer separados por vírgula ou "-") e o corpo logo depois.
+// ================================
+
+public class HintedHandoff {
+
+    private static final String SUFFIX = ".hint";
+
+    private final String nodeId;
+    private final Path root;
+    private final PeerClient peers;
+    private final IntPredicate available;
+    private final IntPredicate member;
+    private final RateLimiter limiter;
+    private final long replayIntervalMs;
+    private final AtomicLong sequence = new AtomicLong();
+    private ScheduledExecutorService replayer;
+
+    private final LongAdder hintsWritten = new LongAdder();
+    private final LongAdder hintBytesWritten = new LongAdder();
+    private final LongAdder hintsReplayed = new LongAdder();
+    private final LongAdder hintBytesReplayed = new LongAdder();
+    private final LongAdder hintsDropped = new LongAdder();
+    private final LongAdder replayFailures = new LongAdder();
+    private volatile String lastReplay = "null";
+
+    HintedHandoff(String nodeId, Path root, PeerClient peers, IntPredicate available, IntPredicate member,
+                  RateLimiter limiter, long replayIntervalMs) {
+        this.nodeId = nodeId;
+        this.root = root;
+        this.peers = peers;
+        this.available = available;
+        this.member = member;
+        this.limiter = limiter;
+        this.replayIntervalMs = replayIntervalMs;
+    }
+
+    void start() throws IOException {
+        Files.createDirectories(root);
+        // .tmp de um hint que não chegou a ser confirmado antes do processo cair
+        try (DirectoryStream<Path> targets = Files.newDirectoryStream(root)) {
+            for (Path dir : targets) {
+                try (DirectoryStream<Path> tmps = Files.newDirectoryStream(dir, "*.tmp")) {
+                    for (Path tmp : tmps) Files.deleteIfExists(tmp);
+                }
+            }
+        }
+        if (replayIntervalMs <= 0) return;
+        replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hint-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        replayer.scheduleWithFixedDelay(() -> {
+            try {
+                replay();
+            } catch (Exception e) {
+                Log.warn("[%s] Hint replay failed: %s", nodeId, e.getMessage());
+            }
+        }, replayIntervalMs, replayIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // guarda a requisição p/ o peer; com durability != none só retorna depois do fsync
+    void add(int target, String pathAndQuery, String contentType, Collection<String> expect,
+             long contentLength, PeerClient.BodyWriter body, FragmentStore.Durability durability) throws IOException {
+        Path dir = root.resolve("node-" + target);
+        boolean created = !Files.isDirectory(dir);
+        Files.createDirectories(dir);
+
+        String name = String.format("%013d-%06d", System.currentTimeMillis(), sequence.incrementAndGet() % 1_000_000);
+        Path tmp = dir.resolve(name + ".tmp");
+        Path hint = dir.resolve(name + SUFFIX);
+        String header = pathAndQuery + "\n" + contentType + "\n"
+                + (expect.isEmpty() ? "-" : String.join(",", expect)) + "\n";
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            body.writeTo(out);
+            out.flush();
+            if (channel.size() != header.getBytes(StandardCharsets.UTF_8).length + contentLength) {
+                throw new IOException("Hint body has " + channel.size() + " bytes, expected " + contentLength);
+            }
+            if (durability != FragmentStore.Durability.NONE) channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, hint, StandardCopyOption.ATOMIC_MOVE);
+        if (durability != FragmentStore.Durability.NONE) {
+            FragmentStore.fsync(dir);
+            if (created) FragmentStore.fsync(root);
+        }
+
+        hintsWritten.increment();
+        hintBytesWritten.add(contentLength);
+        Log.info("[%s] Stored hint %s for node %d (%s, %d bytes)", nodeId, name, target, pathAndQuery, contentLength);
+    }
+
+    // uma passada por todos os peers com hints; devolve o resumo (também em lastReplay)
+    synchronized String replay() throws IOException {
+        long start = System.nanoTime();
+        int replayed = 0;
+        int pending = 0;
+        long bytes = 0;
+        if (!Files.isDirectory(root)) return "null";
+        for (Map.Entry<Integer, List<Path>> e : pendingHints().entrySet()) {
+            int target = e.getKey();
+            if (!member.test(target)) {
+                // nó saiu do cluster: a rebalance já redistribuiu o que era dele
+                for (Path hint : e.getValue()) drop(hint, "node " + target + " left the cluster");
+                continue;
+            }
+            if (!available.test(target)) {
+                pending += e.getValue().size();
+                continue;
+            }
+            Iterator<Path> it = e.getValue().iterator();
+            while (it.hasNext()) {
+                Path hint = it.next();
+                long sent = send(target, hint);
+                if (sent < 0) {
+                    // o peer parou de responder: o resto espera a próxima passada
+                    pending++;
+                    while (it.hasNext()) { it.next(); pending++; }
+                    break;
+                }
+                replayed++;
+                bytes += sent;
+            }
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (replayed > 0) {
+            lastReplay = "{\"hints\":" + replayed + ",\"bytes\":" + bytes + ",\"pending\":" + pending + ",\"ms\":" + elapsedMs
+                    + ",\"bytesPerSecond\":" + bytes * 1000 / Math.max(1, elapsedMs) + "}";
+            Log.info("[%s] Replayed %d hints (%d bytes) in %d ms, %d pending", nodeId, replayed, bytes, elapsedMs, pending);
+        }
+        return replayed > 0 ? lastReplay : "{\"hints\":0,\"pending\":" + pending + "}";
+    }
+
+    // bytes do corpo enviados; -1 se o peer não respondeu (o hint fica); descartado = 0
+    private long send(int target, Path hint) throws IOException {
+        String pathAndQuery;
+        String contentType;
+        String expect;
+        long bodyOffset;
+        long bodyLength;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(hint), 8192)) {
+            pathAndQuery = readLine(in);
+            contentType = readLine(in);
+            expect = readLine(in);
+            bodyOffset = (pathAndQuery + contentType + expect).getBytes(StandardCharsets.UTF_8).length + 3;
+            bodyLength = Files.size(hint) - bodyOffset;
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+
+        PeerClient.Response resp;
+        try (FileChannel channel = FileChannel.open(hint, StandardOpenOption.READ)) {
+            int timeout = (int) Math.min(Integer.MAX_VALUE, peers.timeoutMillis(target, true) + limiter.millisFor(bodyLength));
+            resp = peers.post(target, pathAndQuery, contentType, bodyLength, os -> {
+                OutputStream out = limiter.throttle(os);
+                channel.position(bodyOffset);
+                InputStream in = Channels.newInputStream(channel);
+                in.transferTo(out);
+                out.flush();
+            }, timeout);
+        } catch (IOException e) {
+            replayFailures.increment();
+            Log.warn("[%s] Hint replay to node %d failed: %s", nodeId, target, e.getMessage());
+            return -1;
+        }
+
+        if (resp.status >= 400 && resp.status < 500) {
+            drop(hint, "node " + target + " answered " + resp.status);
+            return 0;
+        }
+        String answer = resp.status == 200 ? resp.bodyString() : "";
+        boolean confirmed = resp.status == 200;
+        if (confirmed && !"-".equals(expect)) {
+            for (String hash : expect.split(",")) confirmed &= answer.contains("\"" + hash + "\"");
+        }
+        if (!confirmed) {
+            replayFailures.increment();
+            Log.warn("[%s] Hint replay to node %d not confirmed (status=%d)", nodeId, target, resp.status);
+            return -1;
+        }
+        Files.deleteIfExists(hint);
+        hintsReplayed.increment();
+        hintBytesReplayed.add(bodyLength);
+        return bodyLength;
+    }
+
+    private void drop(Path hint, String why) throws IOException {
+        if (Files.deleteIfExists(hint)) {
+            hintsDropped.increment();
+            Log.warn("[%s] Dropped hint %s: %s", nodeId, hint.getFileName(), why);
+        }
+    }
+
+    // peer -> hints dele do mais velho p/ o mais novo (o nome começa pelo instante)
+    private Map<Integer, List<Path>> pendingHints() throws IOException {
+        Map<Integer, List<Path>> pending = new TreeMap<>();
+        if (!Files.isDirectory(root)) return pending;
+        try (DirectoryStream<Path> targets = Files.newDirectoryStream(root, "node-*")) {
+            for (Path dir : targets) {
+                int target;
+                try {
+                    target = Integer.parseInt(dir.getFileName().toString().substring("node-".length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                List<Path> hints = new ArrayList<>();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+                    for (Path f : files) hints.add(f);
+                }
+                if (hints.isEmpty()) continue;
+                Collections.sort(hints);
+                pending.put(target, hints);
+            }
+        }
+        return pending;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) throw new EOFException("Truncated hint header");
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    void writeMetrics(Metrics.Exposition m) {
+        long pending = 0;
+        long pendingBytes = 0;
+        try {
+            for (List<Path> hints : pendingHints().values()) {
+                for (Path p : hints) {
+                    try {
+                        pendingBytes += Files.size(p);
+                        pending++;
+                    } catch (NoSuchFileException ignored) { } // reenviado enquanto listava
+                }
+            }
+        } catch (IOException ignored) { }
+        m.family("dfs_hints_pending", "gauge", "Hinted writes waiting for their node.");
+        m.sample("dfs_hints_pending", "", pending);
+        m.family("dfs_hints_pending_bytes", "gauge", "Size of the hinted writes waiting for their node.");
+        m.sample("dfs_hints_pending_bytes", "", pendingBytes);
+        m.family("dfs_hints_total", "counter", "Hinted writes by outcome.");
+        m.sample("dfs_hints_total", "outcome=\"written\"", hintsWritten.sum());
+        m.sample("dfs_hints_total", "outcome=\"replayed\"", hintsReplayed.sum());
+        m.sample("dfs_hints_total", "outcome=\"dropped\"", hintsDropped.sum());
+        m.family("dfs_hint_replay_failures_total", "counter", "Hint replays the target did not confirm.");
+        m.sample("dfs_hint_replay_failures_total", "", replayFailures.sum());
+    }
+
+    String statsJson() {
+        StringBuilder depth = new StringBuilder();
+        long totalHints = 0;
+        long totalBytes = 0;
+        try {
+            for (Map.Entry<Integer, List<Path>> e : pendingHints().entrySet()) {
+                long bytes = 0;
+                for (Path p : e.getValue()) {
+                    try {
+                        bytes += Files.size(p);
+                    } catch (NoSuchFileException ignored) { } // reenviado enquanto listava
+                }
+                if (depth.length() > 0) depth.append(',');
+                depth.append('"').append(e.getKey()).append("\":{\"hints\":").append(e.getValue().size())
+                     .append(",\"bytes\":").append(bytes).append('}');
+                totalHints += e.getValue().size();
+                totalBytes += bytes;
+            }
+        } catch (IOException e) {
+            depth.setLength(0);
+        }
+        return "{\"pending\":" + totalHints + ",\"pendingBytes\":" + totalBytes + ",\"byNode\":{" + depth + "}"
+                + ",\"written\":" + hintsWritten.sum() + ",\"writtenBytes\":" + hintBytesWritten.sum()
+                + ",\"replayed\":" + hintsReplayed.sum() + ",\"replayedBytes\":" + hintBytesReplayed.sum()
+                + ",\"dropped\":" + hintsDropped.sum() + ",\"replayFailures\":" + replayFailures.sum()
+                + ",\"replayMaxBytesPerSecond\":" + limiter.bytesPerSecond() + ",\"lastReplay\":" + lastReplay + "}";
+    }
+}
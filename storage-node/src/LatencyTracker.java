@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// ================================
+//  Distribuição recente de latências, p/ percentis baratos
+//
+//  Histograma de buckets logarítmicos (4 por oitava, ~19% de erro) a partir de 50 µs.
+//  Só o passado recente conta: a cada janela o histograma atual vira o anterior e um
+//  novo começa zerado; o percentil olha os dois (entre 1 e 2 janelas de amostras).
+//  record é um incremento atômico; percentile varre os buckets, sem ordenar nada.
+// ================================
+
+public class LatencyTracker {
+
+    private static final int BUCKETS = 96;
+    private static final double MIN_MICROS = 50;
+    private static final int PER_OCTAVE = 4;
+
+    private final long windowNanos;
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+    private volatile long windowStart = System.nanoTime();
+
+    LatencyTracker(long windowMs) {
+        this.windowNanos = windowMs * 1_000_000L;
+    }
+
+    void record(long nanos) {
+        rotate();
+        current.incrementAndGet(bucketOf(nanos));
+    }
+
+    // limite superior do bucket do percentil p (0..100); -1 com menos de minSamples amostras
+    long percentileNanos(double p, int minSamples) {
+        rotate();
+        AtomicLongArray cur = current;
+        AtomicLongArray prev = previous;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = cur.get(i) + prev.get(i);
+            total += counts[i];
+        }
+        if (total == 0 || total < minSamples) return -1;
+
+        long rank = (long) Math.ceil(total * p / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return upperBoundNanos(i);
+        }
+        return upperBoundNanos(BUCKETS - 1);
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += current.get(i) + previous.get(i);
+        return total;
+    }
+
+    private void rotate() {
+        long now = System.nanoTime();
+        if (now - windowStart < windowNanos) return;
+        synchronized (this) {
+            if (now - windowStart < windowNanos) return;
+            // duas janelas sem nada: o anterior também está velho
+            previous = now - windowStart < 2 * windowNanos ? current : new AtomicLongArray(BUCKETS);
+            current = new AtomicLongArray(BUCKETS);
+            windowStart = now;
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        double micros = nanos / 1000.0;
+        if (micros <= MIN_MICROS) return 0;
+        int bucket = (int) Math.ceil(PER_OCTAVE * Math.log(micros / MIN_MICROS) / Math.log(2));
+        return Math.min(BUCKETS - 1, bucket);
+    }
+
+    private static long upperBoundNanos(int bucket) {
+        return (long) (MIN_MICROS * 1000 * Math.pow(2, (double) bucket / PER_OCTAVE));
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// ================================
+//  Log assíncrono: quem loga só grava formato + argumentos num ring buffer sem lock;
+//  uma thread "log-writer" formata e escreve no stdout, com flush quando a fila esvazia
+//
+//  O System.out é um PrintStream sincronizado: com printf direto nos handlers o console
+//  vira um lock disputado por todas as threads de requisição. Aqui a thread da requisição
+//  não formata nem escreve nada; com o buffer cheio a mensagem é descartada (contada e
+//  avisada pelo writer), nunca espera. Nível mínimo em log.level (debug, info, warn,
+//  error). Mensagens por fragment passam por sample(): uma a cada log.sampleEvery, todas
+//  com log.level=debug. Os argumentos são formatados depois: só valores imutáveis.
+// ================================
+
+public class Log {
+
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("log.level", "info").toUpperCase(Locale.ROOT));
+    private static final int SAMPLE_EVERY = Math.max(1, Integer.getInteger("log.sampleEvery", 100));
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("log.bufferSize", 8192) - 1) << 1);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SHUTDOWN_FLUSH_MS = 1000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // posição livre de cada slot: sequence == pos => livre p/ o produtor da posição pos;
+    // pos + 1 => publicado p/ o writer (fila limitada do Vyukov, com um único consumidor)
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long timeMillis;
+        String format;
+        Object[] args;
+    }
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final int MASK = CAPACITY - 1;
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    private static volatile long flushed; // posições já escritas e com flush
+    private static volatile boolean writerParked;
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder written = new LongAdder();
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        writer = new Thread(Log::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // o que ainda está no buffer sai antes do processo terminar (SIGTERM, exit)
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() { }
+
+    static boolean enabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    // p/ mensagens por fragment: true em uma a cada log.sampleEvery chamadas (sorteado,
+    // sem contador compartilhado entre as threads); com debug ligado, sempre
+    static boolean sample() {
+        return enabled(Level.DEBUG) || ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0;
+    }
+
+    static void debug(String format, Object... args) {
+        if (enabled(Level.DEBUG)) enqueue(Level.DEBUG, format, args);
+    }
+
+    static void info(String format, Object... args) {
+        if (enabled(Level.INFO)) enqueue(Level.INFO, format, args);
+    }
+
+    static void warn(String format, Object... args) {
+        if (enabled(Level.WARN)) enqueue(Level.WARN, format, args);
+    }
+
+    static void error(String format, Object... args) {
+        enqueue(Level.ERROR, format, args);
+    }
+
+    static long writtenMessages() {
+        return written.sum();
+    }
+
+    static long droppedMessages() {
+        return dropped.sum();
+    }
+
+    private static void enqueue(Level level, String format, Object[] args) {
+        long pos = tail.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) pos & MASK];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if (diff < 0) {
+                // cheio: o writer não acompanha, a requisição não espera por ele
+                dropped.increment();
+                return;
+            } else {
+                pos = tail.get(); // outro produtor pegou esta posição
+            }
+        }
+        slot.level = level;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.format = format;
+        slot.args = args;
+        slot.sequence = pos + 1;
+        if (writerParked) LockSupport.unpark(writer);
+    }
+
+    // ================================
+    //  Writer
+    // ================================
+
+    private static void drainLoop() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 64 * 1024);
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                long pos = head;
+                Slot slot = slots[(int) pos & MASK];
+                if (slot.sequence == pos + 1) {
+                    line.setLength(0);
+                    format(line, slot.level, slot.timeMillis, slot.format, slot.args);
+                    slot.format = null;
+                    slot.args = null;
+                    slot.sequence = pos + CAPACITY; // livre p/ a próxima volta
+                    head = pos + 1;
+                    out.append(line);
+                    written.increment();
+                    continue;
+                }
+
+                // fila vazia: avisa descartes, descarrega e dorme até um produtor acordar
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    line.setLength(0);
+                    format(line, Level.WARN, System.currentTimeMillis(), "[log] %d messages dropped (buffer full)",
+                            new Object[] { drops - reportedDrops });
+                    out.append(line);
+                    reportedDrops = drops;
+                }
+                out.flush();
+                flushed = pos;
+                writerParked = true;
+                if (slots[(int) head & MASK].sequence != head + 1) LockSupport.parkNanos(IDLE_PARK_NANOS);
+                writerParked = false;
+            } catch (IOException e) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS); // stdout fechado: nada a fazer além de não girar
+            }
+        }
+    }
+
+    private static void format(StringBuilder line, Level level, long timeMillis, String format, Object[] args) {
+        TIME.formatTo(LocalTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZONE), line);
+        line.append(' ').append(level.name());
+        for (int i = level.name().length(); i < 6; i++) line.append(' ');
+        try {
+            line.append(args.length == 0 ? format : String.format(Locale.ROOT, format, args));
+        } catch (RuntimeException e) { // formato errado ou toString de argumento que falhou
+            line.append(format).append(" (log format failed: ").append(e).append(')');
+        }
+        line.append(System.lineSeparator());
+    }
+
+    // espera o writer escrever tudo o que foi logado até agora (no máximo SHUTDOWN_FLUSH_MS)
+    static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_FLUSH_MS);
+        while (flushed < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
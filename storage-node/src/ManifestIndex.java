@@ -0,0 +1,92 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// ================================
+//  Índice em memória dos manifests do nó (p/ o /files)
+//
+//  Ordenado por nome + fileId, então filtrar por prefixo e paginar são buscas no
+//  skip list, sem tocar no disco. O cursor é a chave do último item devolvido.
+// ================================
+
+public class ManifestIndex {
+
+    static class Entry {
+        final String fileId;
+        final String name;
+        final String key;
+
+        Entry(String fileId, String name) {
+            this.fileId = fileId;
+            this.name = name;
+            this.key = name + '\0' + fileId;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<>();
+    private final Map<String, Entry> byFileId = new ConcurrentHashMap<>();
+
+    // reanúncio do mesmo arquivo com outro nome troca a entrada
+    public synchronized void put(String fileId, String name) {
+        Entry entry = new Entry(fileId, name);
+        Entry previous = byFileId.put(fileId, entry);
+        if (previous != null && !previous.key.equals(entry.key)) {
+            byName.remove(previous.key);
+        }
+        byName.put(entry.key, entry);
+    }
+
+    public int size() {
+        return byFileId.size();
+    }
+
+    // entradas com o prefixo de nome, em ordem, depois da chave afterKey (null = do começo)
+    public Iterator<Entry> iterate(String prefix, String afterKey) {
+        ConcurrentNavigableMap<String, Entry> tail;
+        if (afterKey != null && afterKey.compareTo(prefix) >= 0) {
+            tail = byName.tailMap(afterKey, false);
+        } else {
+            tail = byName.tailMap(prefix, true);
+        }
+
+        Iterator<Entry> it = tail.values().iterator();
+        return new Iterator<Entry>() {
+            private Entry next = advance();
+
+            private Entry advance() {
+                if (!it.hasNext()) return null;
+                Entry e = it.next();
+                return e.name.startsWith(prefix) ? e : null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (next == null) throw new NoSuchElementException();
+                Entry current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    static String encodeCursor(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // IllegalArgumentException se o cursor não veio daqui
+    static String decodeCursor(String cursor) {
+        String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        if (key.indexOf('\0') < 0) throw new IllegalArgumentException("Invalid cursor");
+        return key;
+    }
+}
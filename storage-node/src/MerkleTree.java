@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// ================================
+//  Árvore de Merkle de forma fixa sobre (chave, índice, hash) dos itens de um nó
+//
+//  2^depth folhas; cada item cai na folha dada pelo hash de (chave, índice), então dois
+//  nós põem o mesmo item na mesma folha sem combinar nada antes. A folha é o XOR dos
+//  digests dos itens dela (não depende da ordem de inserção) e cada nó interno mistura
+//  os dois filhos. Nós numerados como num heap: 1 = raiz, filhos de n = 2n e 2n+1,
+//  folhas em [2^depth, 2^(depth+1)). Árvores iguais até um nó => subárvores iguais.
+// ================================
+
+public class MerkleTree {
+
+    static class Item {
+        final String key;
+        final int index;
+        final String hash;
+
+        Item(String key, int index, String hash) {
+            this.key = key;
+            this.index = index;
+            this.hash = hash;
+        }
+    }
+
+    private final int depth;
+    private final long[] nodes;
+    private final List<List<Item>> leaves;
+    private final long builtAt = System.currentTimeMillis();
+    private int size;
+    private boolean sealed;
+
+    MerkleTree(int depth) {
+        if (depth < 1 || depth > 20) throw new IllegalArgumentException("Invalid tree depth: " + depth);
+        this.depth = depth;
+        this.nodes = new long[2 << depth];
+        this.leaves = new ArrayList<>(1 << depth);
+        for (int i = 0; i < 1 << depth; i++) leaves.add(null);
+    }
+
+    // cada (chave, índice) uma vez só: dois iguais na mesma folha se cancelariam no XOR
+    void add(String key, int index, String hash) {
+        if (sealed) throw new IllegalStateException("Tree already sealed");
+        int leaf = leafOf(key, index);
+        nodes[leaf] ^= digest(key, index, hash);
+        int slot = leaf - (1 << depth);
+        if (leaves.get(slot) == null) leaves.set(slot, new ArrayList<>());
+        leaves.get(slot).add(new Item(key, index, hash));
+        size++;
+    }
+
+    // calcula os nós internos; depois disso a árvore só é lida
+    MerkleTree seal() {
+        for (int n = (1 << depth) - 1; n >= 1; n--) {
+            nodes[n] = mix(nodes[2 * n] ^ mix(nodes[2 * n + 1] + 0x9E3779B97F4A7C15L));
+        }
+        sealed = true;
+        return this;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long builtAt() {
+        return builtAt;
+    }
+
+    boolean contains(int node) {
+        return node >= 1 && node < nodes.length;
+    }
+
+    boolean isLeaf(int node) {
+        return node >= 1 << depth;
+    }
+
+    long hash(int node) {
+        return nodes[node];
+    }
+
+    List<Item> items(int leaf) {
+        List<Item> items = leaves.get(leaf - (1 << depth));
+        return items != null ? items : new ArrayList<>();
+    }
+
+    // descendentes de node `levels` níveis abaixo (ou as folhas, se estiverem mais perto)
+    List<Integer> descendants(int node, int levels) {
+        int level = 31 - Integer.numberOfLeadingZeros(node);
+        int down = Math.min(levels, depth - level);
+        List<Integer> result = new ArrayList<>(1 << down);
+        int first = node << down;
+        for (int i = 0; i < 1 << down; i++) result.add(first + i);
+        return result;
+    }
+
+    int leafOf(String key, int index) {
+        long h = mix(fnv64(key) ^ mix(index));
+        return (1 << depth) + (int) (h >>> (64 - depth));
+    }
+
+    private static long digest(String key, int index, String hash) {
+        return mix(mix(fnv64(key) ^ mix(index)) ^ fnv64(hash));
+    }
+
+    // FNV-1a de 64 bits: igual em qualquer JVM, ao contrário de String.hashCode ser só 32
+    private static long fnv64(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // finalizador do splitmix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// ================================
+//  Métricas no formato texto do Prometheus (GET /metrics)
+//
+//  Gravar não aloca nada: contadores são LongAdder e o histograma é um array fixo de
+//  buckets (incremento atômico no bucket da amostra + soma). Só quem monta o texto do
+//  /metrics percorre e formata tudo, e os buckets viram cumulativos (le=) nessa hora.
+// ================================
+
+public class Metrics {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // limites superiores dos buckets de latência, em segundos: 100 µs .. 10 s
+    private static final double[] LATENCY_BUCKETS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    static class Histogram {
+        private final long[] boundsNanos = new long[LATENCY_BUCKETS.length];
+        private final AtomicLongArray counts = new AtomicLongArray(LATENCY_BUCKETS.length + 1); // + o +Inf
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                boundsNanos[i] = (long) (LATENCY_BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < boundsNanos.length && nanos > boundsNanos[i]) i++;
+            counts.incrementAndGet(i);
+            sumNanos.add(nanos);
+        }
+    }
+
+    // requisições de uma rota: latência e contagem por classe de status (0 = sem resposta)
+    static class RequestStats {
+        private static final String[] CLASSES = { "none", "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+        final Histogram latency = new Histogram();
+        private final LongAdder[] byClass = new LongAdder[CLASSES.length];
+
+        RequestStats() {
+            for (int i = 0; i < byClass.length; i++) byClass[i] = new LongAdder();
+        }
+
+        void record(int status, long nanos) {
+            int c = status / 100;
+            byClass[c >= 1 && c <= 5 ? c : 0].increment();
+            latency.record(nanos);
+        }
+    }
+
+    // ================================
+    //  Montagem do texto
+    // ================================
+
+    static class Exposition {
+        private final StringBuilder sb = new StringBuilder(16 * 1024);
+
+        // # HELP / # TYPE uma vez por métrica, antes das séries dela
+        Exposition family(String name, String type, String help) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            return this;
+        }
+
+        // labels já no formato a="x",b="y" (ou "")
+        Exposition sample(String name, String labels, long value) {
+            series(name, labels).append(value).append('\n');
+            return this;
+        }
+
+        Exposition sample(String name, String labels, double value) {
+            series(name, labels).append(format(value)).append('\n');
+            return this;
+        }
+
+        Exposition histogram(String name, String labels, Histogram h) {
+            String sep = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += h.counts.get(i);
+                sample(name + "_bucket", labels + sep + "le=\"" + format(LATENCY_BUCKETS[i]) + "\"", cumulative);
+            }
+            cumulative += h.counts.get(LATENCY_BUCKETS.length);
+            sample(name + "_bucket", labels + sep + "le=\"+Inf\"", cumulative);
+            sample(name + "_sum", labels, h.sumNanos.sum() / 1e9);
+            sample(name + "_count", labels, cumulative);
+            return this;
+        }
+
+        // só as classes de status que já apareceram
+        Exposition requests(String name, String labels, RequestStats stats) {
+            String sep = labels.isEmpty() ? "" : ",";
+            for (int i = 0; i < RequestStats.CLASSES.length; i++) {
+                long n = stats.byClass[i].sum();
+                if (n > 0) sample(name, labels + sep + "code=\"" + RequestStats.CLASSES[i] + "\"", n);
+            }
+            return this;
+        }
+
+        private StringBuilder series(String name, String labels) {
+            sb.append(name);
+            if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+            return sb.append(' ');
+        }
+
+        private static String format(double value) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+            return String.format(Locale.ROOT, "%.6g", value).replaceAll("0+$", "").replaceAll("\\.$", "");
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+
+    // valor de label com \, " e quebra de linha escapados
+    static String label(String name, Object value) {
+        String v = String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "=\"" + v + "\"";
+    }
+}
@@ -0,0 +1,720 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ================================
+//  Engine não bloqueante (-Dnode.engine=nio)
+//
+//  Poucos event loops (Selector) cuidam de todas as conexões: leem o cabeçalho aos
+//  poucos, alimentam o corpo da requisição e escrevem a resposta quando o socket deixa.
+//  Só a execução do handler ocupa um worker (pool limitado); conexão ociosa ou cliente
+//  lento não segura thread nenhuma. Respostas de arquivo (sendFile) saem direto do disco
+//  p/ o socket pelo event loop, sem passar pelo worker.
+// ================================
+
+public class NioEngine extends ConnectionEngine {
+
+    private static final int MAX_HEAD_BYTES = 16 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_CHUNK_SIZE = 16 * 1024;
+
+    // backpressure: corpo recebido e ainda não lido pelo handler / resposta ainda não enviada
+    private static final long BODY_HIGH_WATER = 256 * 1024;
+    private static final long BODY_LOW_WATER = 64 * 1024;
+    private static final long WRITE_HIGH_WATER = 256 * 1024;
+    private static final long WRITE_LOW_WATER = 64 * 1024;
+
+    private final RequestHandler handler;
+    private final EventLoop[] loops;
+    private final ThreadPoolExecutor workers;
+
+    NioEngine(RequestHandler handler, int loopCount, int workerCount, int queueSize) {
+        this.handler = handler;
+        this.loops = new EventLoop[loopCount];
+        AtomicInteger seq = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, "worker-" + seq.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public String name() {
+        return "nio";
+    }
+
+    @Override
+    public int queuedConnections() {
+        return workers.getQueue().size();
+    }
+
+    @Override
+    public void serve(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + (i + 1));
+            loops[i].start();
+        }
+
+        // accept bloqueante nesta thread; cada conexão fica presa a um event loop
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        int next = 0;
+        while (true) {
+            SocketChannel channel = server.accept();
+            accepted.incrementAndGet();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                channel.close();
+                continue;
+            }
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // ================================
+    //  Event loop
+    // ================================
+
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); // compartilhado pelas conexões do loop
+        private final Set<Conn> conns = new HashSet<>();
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Conn conn = new Conn(this, channel);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                    conns.add(conn);
+                    active.incrementAndGet();
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) { }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.nanoTime();
+            while (true) {
+                try {
+                    selector.select(1000);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Conn conn = (Conn) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                            if (key.isValid() && key.isReadable()) conn.onReadable();
+                        } catch (IOException | CancelledKeyException e) {
+                            conn.close();
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastSweep >= TimeUnit.SECONDS.toNanos(1)) {
+                        lastSweep = now;
+                        closeIdle(now);
+                    }
+                } catch (Exception e) {
+                    Log.warn("[%s] Error: %s", getName(), e.getMessage());
+                }
+            }
+        }
+
+        private void closeIdle(long now) {
+            long timeout = TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIMEOUT_MS);
+            for (Conn conn : new ArrayList<>(conns)) {
+                // o OP_WRITE só volta com boa parte do buffer do socket livre (com buffer de
+                // MBs e cliente lento, segundos): tenta escrever aqui p/ ver se ele anda
+                if (!conn.writeQueue.isEmpty()) {
+                    try {
+                        conn.flushQueue();
+                    } catch (IOException e) {
+                        conn.close();
+                        continue;
+                    }
+                }
+                // resposta parada na fila sem handler (o cliente parou de ler) também conta:
+                // lastActivity anda a cada escrita que o socket aceita
+                if ((conn.isIdle() || !conn.inRequest) && now - conn.lastActivity >= timeout) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    // ================================
+    //  Conexão (estado mexido só pelo event loop, exceto onde indicado)
+    // ================================
+
+    private class Conn {
+        final EventLoop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+
+        ByteBuffer pending;          // bytes lidos e ainda não consumidos (cabeçalho parcial, pipeline)
+        int served;
+        long lastActivity = System.nanoTime();
+
+        boolean inRequest;           // handler rodando num worker
+        BodyPipe body;
+        long bodyRemaining;          // bytes do corpo que ainda vão chegar do socket
+        long discardRemaining;       // corpo que o handler não leu, descartado ao chegar
+        boolean inputClosed;
+        boolean closeAfterResponse;
+        volatile boolean closed;
+
+        final ArrayDeque<Object> writeQueue = new ArrayDeque<>(); // ByteBuffer ou FileRegion
+        final AtomicLong queuedBytes = new AtomicLong();          // também lido pelo worker
+        final Object drained = new Object();
+        volatile long lastDrained = System.nanoTime();           // última escrita aceita pelo socket
+
+        Conn(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        boolean isIdle() {
+            return !inRequest && writeQueue.isEmpty();
+        }
+
+        void onReadable() throws IOException {
+            ByteBuffer buf = loop.readBuffer;
+            buf.clear();
+            int n = channel.read(buf);
+            if (n == -1) {
+                inputClosed = true;
+                if (inRequest) {
+                    if (bodyRemaining > 0) body.fail(new EOFException("Connection closed mid-body"));
+                    setInterest(SelectionKey.OP_READ, false);
+                    closeAfterResponse = true;
+                } else {
+                    close();
+                }
+                return;
+            }
+            if (n == 0) return;
+            lastActivity = System.nanoTime();
+            buf.flip();
+            consume(buf);
+        }
+
+        private void consume(ByteBuffer buf) throws IOException {
+            if (discardRemaining > 0) {
+                int k = (int) Math.min(discardRemaining, buf.remaining());
+                buf.position(buf.position() + k);
+                discardRemaining -= k;
+            }
+            if (inRequest && bodyRemaining > 0) {
+                feedBody(buf);
+            }
+            if (buf.hasRemaining()) {
+                appendPending(buf);
+            }
+
+            if (inRequest) {
+                // próxima requisição do pipeline espera no kernel até esta terminar
+                if (bodyRemaining == 0) setInterest(SelectionKey.OP_READ, false);
+            } else if (discardRemaining == 0 && !closeAfterResponse) {
+                parseNext();
+            }
+        }
+
+        private void feedBody(ByteBuffer buf) {
+            int k = (int) Math.min(bodyRemaining, buf.remaining());
+            byte[] chunk = new byte[k];
+            buf.get(chunk);
+            bodyRemaining -= k;
+            body.offer(chunk);
+            if (bodyRemaining == 0) {
+                body.finish();
+            } else if (body.pauseIfFull(() -> loop.execute(this::resumeBody))) {
+                // handler lento: para de ler o socket até ele consumir parte do corpo
+                setInterest(SelectionKey.OP_READ, false);
+            }
+        }
+
+        private void resumeBody() {
+            if (!closed && inRequest && bodyRemaining > 0) setInterest(SelectionKey.OP_READ, true);
+        }
+
+        private void appendPending(ByteBuffer buf) throws IOException {
+            if (pending == null) {
+                pending = ByteBuffer.allocate(Math.max(4096, buf.remaining()));
+            } else if (pending.remaining() < buf.remaining()) {
+                int needed = pending.position() + buf.remaining();
+                if (needed > MAX_HEAD_BYTES + READ_BUFFER_SIZE) throw new IOException("Request head too large");
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, pending.capacity() * 2));
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+            }
+            pending.put(buf);
+        }
+
+        // monta a próxima requisição a partir de pending, se o cabeçalho já chegou inteiro
+        private void parseNext() throws IOException {
+            if (pending == null || pending.position() == 0) {
+                pending = null; // conexão ociosa não guarda buffer
+                if (!inputClosed) setInterest(SelectionKey.OP_READ, true);
+                return;
+            }
+
+            byte[] data = pending.array();
+            int limit = pending.position();
+            int headEnd = findHeadEnd(data, limit);
+            if (headEnd < 0) {
+                if (limit >= MAX_HEAD_BYTES) rejectHead();
+                else setInterest(SelectionKey.OP_READ, true);
+                return;
+            }
+
+            String head = new String(data, 0, headEnd, StandardCharsets.ISO_8859_1);
+            pending.flip().position(headEnd);
+            pending.compact();
+
+            String[] lines = head.split("\r?\n");
+            String requestLine = lines.length > 0 ? lines[0] : "";
+            if (requestLine.isEmpty()) {
+                close();
+                return;
+            }
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            served++;
+            body = new BodyPipe();
+            NioExchange ex = new NioExchange(this, requestLine, headers, body,
+                    served < MAX_REQUESTS_PER_CONNECTION && !inputClosed);
+            bodyRemaining = Math.max(0, ex.contentLength);
+            inRequest = true;
+
+            // parte do corpo pode ter vindo junto com o cabeçalho
+            if (bodyRemaining > 0 && pending.position() > 0) {
+                pending.flip();
+                feedBody(pending);
+                pending.compact();
+            }
+            if (bodyRemaining == 0) {
+                body.finish();
+                setInterest(SelectionKey.OP_READ, false);
+            }
+
+            try {
+                workers.execute(() -> runRequest(ex));
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                inRequest = false;
+                closeAfterResponse = true;
+                setInterest(SelectionKey.OP_READ, false);
+                queuedBytes.addAndGet(BUSY_RESPONSE.length);
+                enqueue(ByteBuffer.wrap(BUSY_RESPONSE), BUSY_RESPONSE.length);
+            }
+        }
+
+        private void rejectHead() {
+            closeAfterResponse = true;
+            setInterest(SelectionKey.OP_READ, false);
+            byte[] resp = ("HTTP/1.1 431 " + Exchange.reason(431) + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            queuedBytes.addAndGet(resp.length);
+            enqueue(ByteBuffer.wrap(resp), resp.length);
+        }
+
+        // roda no worker
+        private void runRequest(NioExchange ex) {
+            try {
+                handler.handle(ex);
+                ex.out.flush();
+            } catch (Exception e) {
+                Log.warn("[%s] Error: %s", Thread.currentThread().getName(), e.getMessage());
+                ex.closeConnection();
+            } finally {
+                loop.execute(() -> onRequestComplete(ex));
+            }
+        }
+
+        private void onRequestComplete(NioExchange ex) {
+            if (closed) return;
+            inRequest = false;
+            body = null;
+            lastActivity = System.nanoTime();
+
+            if (!ex.isKeepAlive() || !ex.isResponseStarted()) {
+                closeAfterResponse = true;
+            } else if (bodyRemaining > 0) {
+                // o handler não leu o corpo todo: descarta o resto, se for pouco
+                if (bodyRemaining <= MAX_DRAIN_BYTES) discardRemaining = bodyRemaining;
+                else closeAfterResponse = true;
+            }
+            bodyRemaining = 0;
+
+            if (closeAfterResponse) {
+                setInterest(SelectionKey.OP_READ, false);
+                if (writeQueue.isEmpty()) close();
+                return;
+            }
+            try {
+                if (discardRemaining > 0) setInterest(SelectionKey.OP_READ, true);
+                else parseNext(); // requisição pipelined já no buffer
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // ---------- escrita ----------
+
+        // chamado pelo worker; queuedBytes já foi somado
+        void submit(Object item, long size) {
+            loop.execute(() -> enqueue(item, size));
+        }
+
+        private void enqueue(Object item, long size) {
+            if (closed) {
+                if (item instanceof FileRegion) ((FileRegion) item).close();
+                return;
+            }
+            writeQueue.add(item);
+            try {
+                flushQueue();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            flushQueue();
+        }
+
+        private void flushQueue() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                Object head = writeQueue.peek();
+                if (head instanceof ByteBuffer) {
+                    ByteBuffer bb = (ByteBuffer) head;
+                    int n = channel.write(bb);
+                    written(n);
+                    if (bb.hasRemaining()) break;
+                } else {
+                    FileRegion region = (FileRegion) head;
+                    long n = region.channel.transferTo(region.position, region.remaining, channel);
+                    region.position += n;
+                    region.remaining -= n;
+                    written(n);
+                    if (region.remaining > 0) {
+                        if (n == 0) break;
+                        continue;
+                    }
+                    region.close();
+                }
+                writeQueue.poll();
+            }
+
+            setInterest(SelectionKey.OP_WRITE, !writeQueue.isEmpty());
+            if (writeQueue.isEmpty()) {
+                lastActivity = System.nanoTime();
+                if (closeAfterResponse && !inRequest) close();
+            }
+        }
+
+        private void written(long n) {
+            if (n <= 0) return;
+            lastActivity = lastDrained = System.nanoTime();
+            if (queuedBytes.addAndGet(-n) <= WRITE_LOW_WATER) {
+                synchronized (drained) {
+                    drained.notifyAll();
+                }
+            }
+        }
+
+        // chamado pelo worker antes de enfileirar mais resposta: com a fila acima do limite,
+        // espera ela baixar. O timeout é de ociosidade: cada escrita aceita pelo socket
+        // empurra o prazo, então cliente lento (mas lendo) não é derrubado
+        void awaitDrain() throws IOException {
+            if (queuedBytes.get() <= WRITE_HIGH_WATER) return;
+            long timeout = TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIMEOUT_MS);
+            synchronized (drained) {
+                while (queuedBytes.get() > WRITE_LOW_WATER) {
+                    if (closed) throw new IOException("Connection closed");
+                    long left = TimeUnit.NANOSECONDS.toMillis(lastDrained + timeout - System.nanoTime());
+                    if (left <= 0) throw new SocketTimeoutException("Client not reading the response");
+                    try {
+                        drained.wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        private void setInterest(int op, boolean on) {
+            if (closed || !key.isValid()) return;
+            int ops = key.interestOps();
+            int updated = on ? ops | op : ops & ~op;
+            if (updated != ops) key.interestOps(updated);
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+            for (Object item : writeQueue) {
+                if (item instanceof FileRegion) ((FileRegion) item).close();
+            }
+            writeQueue.clear();
+            if (body != null) body.fail(new EOFException("Connection closed"));
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+            loop.conns.remove(this);
+            active.decrementAndGet();
+        }
+    }
+
+    private static int findHeadEnd(byte[] data, int limit) {
+        for (int i = 0; i < limit; i++) {
+            if (data[i] != '\n') continue;
+            if (i + 1 < limit && data[i + 1] == '\n') return i + 2;
+            if (i + 2 < limit && data[i + 1] == '\r' && data[i + 2] == '\n') return i + 3;
+        }
+        return -1;
+    }
+
+    private static class FileRegion {
+        final FileChannel channel;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel channel, long position, long remaining) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = remaining;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    // ================================
+    //  Exchange do lado do worker
+    // ================================
+
+    private static class NioExchange extends Exchange {
+        private final ResponseStream stream;
+
+        NioExchange(Conn conn, String requestLine, Map<String, String> headers, BodyPipe body, boolean allowKeepAlive) {
+            this(requestLine, headers, body, new ResponseStream(conn), allowKeepAlive);
+        }
+
+        private NioExchange(String requestLine, Map<String, String> headers, BodyPipe body,
+                            ResponseStream stream, boolean allowKeepAlive) {
+            super(requestLine, headers, body, stream, null, allowKeepAlive);
+            this.stream = stream;
+        }
+
+        // buffer só-leitura compartilhado (cache): vai p/ a fila como está e o worker volta
+        // logo; só espera se a fila ainda tem o bastante da resposta anterior
+        @Override
+        void sendBuffer(ByteBuffer data) throws IOException {
+            stream.flush();
+            stream.conn.awaitDrain();
+            ByteBuffer view = data.duplicate();
+            stream.conn.queuedBytes.addAndGet(view.remaining());
+            stream.conn.submit(view, view.remaining());
+        }
+
+        // o arquivo vai p/ a fila do event loop; o worker fica livre enquanto ele é enviado
+        @Override
+        void sendFile(FileChannel channel, long position, long count) throws IOException {
+            stream.flush();
+            try {
+                stream.conn.awaitDrain();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            stream.conn.queuedBytes.addAndGet(count);
+            stream.conn.submit(new FileRegion(channel, position, count), count);
+        }
+    }
+
+    // junta as escritas do handler em blocos e entrega ao event loop
+    private static class ResponseStream extends OutputStream {
+        final Conn conn;
+        private ByteBuffer buffer;
+
+        ResponseStream(Conn conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffer == null) buffer = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+            buffer.put((byte) b);
+            if (!buffer.hasRemaining()) flush();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= WRITE_CHUNK_SIZE) {
+                // bloco grande vai direto (copiado: o handler reaproveita o array)
+                flush();
+                submit(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+                return;
+            }
+            if (buffer == null) buffer = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+            if (buffer.remaining() < len) flush();
+            if (buffer == null) buffer = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer == null || buffer.position() == 0) return;
+            buffer.flip();
+            ByteBuffer out = buffer;
+            buffer = null;
+            submit(out);
+        }
+
+        private void submit(ByteBuffer bb) throws IOException {
+            conn.awaitDrain();
+            if (conn.closed) throw new IOException("Connection closed");
+            int size = bb.remaining();
+            conn.queuedBytes.addAndGet(size);
+            conn.submit(bb, size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // ================================
+    //  Corpo da requisição: event loop escreve, worker lê
+    // ================================
+
+    private static class BodyPipe extends InputStream {
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int offset;
+        private long buffered;
+        private boolean eof;
+        private IOException error;
+        private Runnable onDrain;
+
+        synchronized void offer(byte[] chunk) {
+            chunks.add(chunk);
+            buffered += chunk.length;
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            eof = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            error = e;
+            notifyAll();
+        }
+
+        // checa e registra juntos: o worker pode esvaziar o pipe entre uma coisa e outra
+        synchronized boolean pauseIfFull(Runnable resume) {
+            if (buffered < BODY_HIGH_WATER) return false;
+            onDrain = resume;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int r = read(one, 0, 1);
+            return r == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIMEOUT_MS);
+            while (chunks.isEmpty()) {
+                if (error != null) throw error;
+                if (eof) return -1;
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) throw new SocketTimeoutException("Timed out reading request body");
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            byte[] head = chunks.peek();
+            int k = Math.min(len, head.length - offset);
+            System.arraycopy(head, offset, b, off, k);
+            offset += k;
+            if (offset == head.length) {
+                chunks.poll();
+                offset = 0;
+            }
+            buffered -= k;
+
+            if (onDrain != null && buffered <= BODY_LOW_WATER) {
+                Runnable r = onDrain;
+                onDrain = null;
+                r.run();
+            }
+            return k;
+        }
+
+        @Override
+        public synchronized int available() {
+            return (int) Math.min(Integer.MAX_VALUE, buffered);
+        }
+    }
+}
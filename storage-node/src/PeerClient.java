@@ -0,0 +1,600 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+// ================================
+//  Cliente HTTP/1.1 das chamadas internas entre nós
+//
+//  Mantém um pool limitado de conexões keep-alive por peer. Os sockets vêm de
+//  SocketChannel, então interromper a thread (Future.cancel(true)) aborta o I/O. O
+//  timeout é da chamada inteira: no prazo, um watchdog fecha o socket, o que também
+//  destrava escrita de corpo e peer que manda a resposta a conta-gotas.
+//
+//  Também mede cada peer (PeerStats): EWMA e percentis da duração das chamadas, leituras
+//  (GET) e escritas (POST) separadas, e quantas estão em andamento. Daí saem o timeout
+//  de cada chamada (timeoutMillis) e a ordem de preferência entre réplicas (score).
+// ================================
+
+public class PeerClient {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // timeout = TIMEOUT_MULTIPLIER x p99 das chamadas recentes ao peer, entre peer.minTimeoutMs
+    // e peer.maxTimeoutMs; até juntar MIN_SAMPLES vale o DEFAULT_TIMEOUT_MS fixo de antes.
+    // Escritas nunca ficam abaixo do default: a duração delas cresce com o corpo, e um
+    // timeout cedo demais vira retry (e upload falho), não failover p/ outra réplica
+    static final int DEFAULT_TIMEOUT_MS = 2000;
+    private static final int MIN_TIMEOUT_MS = Integer.getInteger("peer.minTimeoutMs", 250);
+    private static final int MAX_TIMEOUT_MS = Integer.getInteger("peer.maxTimeoutMs", 10_000);
+    private static final double TIMEOUT_MULTIPLIER = 4;
+    private static final int MIN_SAMPLES = 20;
+    private static final double EWMA_ALPHA = 0.2;
+    private static final long STATS_WINDOW_MS = 60_000;
+
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "peer-deadline");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        WATCHDOG.setRemoveOnCancelPolicy(true); // quase toda chamada termina antes do prazo
+    }
+
+    private final int maxConnectionsPerPeer;
+    private final long idleTimeoutNanos;
+    private final Map<Integer, PeerPool> pools = new ConcurrentHashMap<>();
+    private final Map<Integer, PeerStats> peerStats = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    // nodeId -> endereço (null = nó fora do cluster); consultado ao abrir o pool de cada peer
+    private final IntFunction<InetSocketAddress> resolver;
+
+    public PeerClient(int maxConnectionsPerPeer, long idleTimeoutMs, IntFunction<InetSocketAddress> resolver) {
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.resolver = resolver;
+    }
+
+    private InetSocketAddress addressOf(int nodeId) throws IOException {
+        InetSocketAddress address = resolver.apply(nodeId);
+        if (address == null) throw new IOException("Unknown node " + nodeId);
+        return address;
+    }
+
+    public interface BodyWriter {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    public static class Response {
+        final int status;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        String bodyString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    public Response get(int peer, String pathAndQuery, int timeoutMs) throws IOException {
+        return call(peer, "GET", pathAndQuery, null, 0, null, timeoutMs);
+    }
+
+    public Response post(int peer, String path, String contentType, long contentLength, BodyWriter body, int timeoutMs) throws IOException {
+        return call(peer, "POST", path, contentType, contentLength, body, timeoutMs);
+    }
+
+    public Response call(int peer, String method, String pathAndQuery, String contentType,
+                         long contentLength, BodyWriter body, int timeoutMs) throws IOException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        PeerPool pool = poolOf(peer);
+
+        PeerStats stats = statsOf(peer);
+        boolean write = !"GET".equals(method);
+        stats.inFlight.incrementAndGet();
+        boolean ok = false;
+        try {
+            Response resp = exchange(pool, method, pathAndQuery, contentType, contentLength, body, deadline);
+            ok = true;
+            return resp;
+        } finally {
+            stats.inFlight.decrementAndGet();
+            long elapsed = System.nanoTime() - start;
+            if (ok) {
+                stats.record(write, elapsed);
+            } else if (Thread.currentThread().isInterrupted()) {
+                // cancelada (hedge perdido): foi pelo menos tão lenta quanto o tempo que correu
+                stats.penalize(write, elapsed, false);
+            } else {
+                // falha conta como se tivesse levado o timeout inteiro: um nó que recusa
+                // conexão na hora não pode parecer o mais rápido
+                stats.penalize(write, Math.max(elapsed, deadline - start), true);
+            }
+        }
+    }
+
+    // GET fora da PeerStats: os batimentos do FailureDetector respondem em microssegundos
+    // e puxariam o percentil (e o timeout) das leituras de fragment p/ baixo
+    public Response probe(int peer, String pathAndQuery, int timeoutMs) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        return exchange(poolOf(peer), "GET", pathAndQuery, null, 0, null, deadline);
+    }
+
+    private PeerPool poolOf(int peer) throws IOException {
+        PeerPool pool = pools.get(peer);
+        if (pool == null) {
+            InetSocketAddress address = addressOf(peer);
+            pool = pools.computeIfAbsent(peer, id -> new PeerPool(address));
+        }
+        return pool;
+    }
+
+    private Response exchange(PeerPool pool, String method, String pathAndQuery, String contentType,
+                              long contentLength, BodyWriter body, long deadline) throws IOException {
+        pool.acquire(deadline);
+        Connection conn = null;
+        try {
+            conn = pool.takeIdle();
+            boolean reused = conn != null;
+            if (reused) {
+                hits.increment();
+            } else {
+                misses.increment();
+                conn = pool.connect(deadline);
+            }
+
+            try {
+                return exchange(pool, conn, method, pathAndQuery, contentType, contentLength, body, deadline);
+            } catch (StaleConnectionException e) {
+                // o peer fechou a conexão ociosa antes da gente usar: tenta uma vez numa nova.
+                // Só se o corpo não começou a sair: o BodyWriter pode não ser repetível e o
+                // peer pode já ter gravado um POST cuja resposta se perdeu
+                if (!e.retryable) throw e;
+                conn.close();
+                misses.increment();
+                conn = pool.connect(deadline);
+                return exchange(pool, conn, method, pathAndQuery, contentType, contentLength, body, deadline);
+            }
+        } catch (IOException e) {
+            errors.increment();
+            if (conn != null) conn.close();
+            throw e;
+        } finally {
+            pool.release();
+        }
+    }
+
+    // timeout da próxima chamada ao peer (ver DEFAULT_TIMEOUT_MS)
+    public int timeoutMillis(int peer, boolean write) {
+        PeerStats stats = peerStats.get(peer);
+        long p99 = stats == null ? -1 : (write ? stats.writes : stats.reads).percentileNanos(99, MIN_SAMPLES);
+        if (p99 < 0) return DEFAULT_TIMEOUT_MS;
+        long adaptive = (long) (TimeUnit.NANOSECONDS.toMillis(p99) * TIMEOUT_MULTIPLIER);
+        return (int) Math.min(MAX_TIMEOUT_MS, Math.max(write ? DEFAULT_TIMEOUT_MS : MIN_TIMEOUT_MS, adaptive));
+    }
+
+    // menor = melhor p/ ler: EWMA das leituras x (chamadas em andamento + 1). Peer sem
+    // medida nenhuma tem score 0 e é experimentado primeiro
+    public double score(int peer) {
+        PeerStats stats = peerStats.get(peer);
+        if (stats == null) return 0;
+        return stats.readEwmaNanos * (stats.inFlight.get() + 1);
+    }
+
+    private PeerStats statsOf(int peer) {
+        PeerStats stats = peerStats.get(peer);
+        return stats != null ? stats : peerStats.computeIfAbsent(peer, id -> new PeerStats());
+    }
+
+    private Response exchange(PeerPool pool, Connection conn, String method, String pathAndQuery, String contentType,
+                              long contentLength, BodyWriter body, long deadline) throws IOException {
+        conn.arm(deadline);
+
+        boolean bodyStarted = false;
+        boolean done = false;
+        try {
+            StringBuilder head = new StringBuilder();
+            head.append(method).append(' ').append(pathAndQuery).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(pool.address.getHostString()).append(':').append(pool.address.getPort()).append("\r\n");
+            if (body != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+                head.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+            head.append("\r\n");
+            conn.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (body != null) {
+                bodyStarted = true;
+                body.writeTo(new NonClosing(conn.out));
+            }
+            conn.out.flush();
+
+            String statusLine = readLine(conn.in);
+            if (statusLine == null) throw new EOFException("Connection closed by peer");
+            Response resp = readResponse(conn, statusLine);
+            done = true;
+            // desarma antes de devolver: no pool a conexão já pode ser de outra chamada, e
+            // depois do giveBack esta aqui não mexe mais nela
+            if (conn.disarm() && conn.keepAlive) {
+                pool.giveBack(conn);
+            } else {
+                conn.close();
+            }
+            return resp;
+        } catch (IOException e) {
+            if (conn.expired) {
+                SocketTimeoutException timeout = new SocketTimeoutException("Deadline exceeded");
+                timeout.initCause(e);
+                throw timeout;
+            }
+            if (conn.reused && !conn.gotResponse && !(e instanceof SocketTimeoutException) && !Thread.currentThread().isInterrupted()) {
+                // sem corpo (GET) repetir é seguro: a leitura é idempotente
+                throw new StaleConnectionException(e, !bodyStarted);
+            }
+            throw e;
+        } finally {
+            if (!done) conn.disarm(); // falha: a conexão é fechada por quem chamou
+        }
+    }
+
+    private Response readResponse(Connection conn, String statusLine) throws IOException {
+        conn.gotResponse = true;
+        String[] parts = statusLine.split(" ", 3);
+        int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        while (true) {
+            String line = readLine(conn.in);
+            if (line == null) throw new EOFException("Connection closed while reading headers");
+            if (line.isEmpty()) break;
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+
+        // corpo sempre lido até o fim (inclusive em erro), senão a conexão não volta p/ o pool
+        byte[] body;
+        boolean reusable = !"close".equalsIgnoreCase(headers.get("connection"));
+        String length = headers.get("content-length");
+        if (length != null) {
+            int n = parseContentLength(length);
+            body = conn.in.readNBytes(n);
+            if (body.length != n) throw new EOFException("Truncated response body");
+        } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = readChunked(conn.in);
+        } else {
+            body = conn.in.readAllBytes();
+            reusable = false;
+        }
+
+        conn.keepAlive = reusable;
+        return new Response(status, headers, body);
+    }
+
+    // o corpo vai inteiro p/ um byte[]: acima de 2 GB não cabe
+    private static int parseContentLength(String value) throws IOException {
+        long n = Exchange.parseContentLength(value.trim());
+        if (n < 0) throw new IOException("Invalid Content-Length: " + value);
+        if (n > Integer.MAX_VALUE - 8) throw new IOException("Response too large: " + n + " bytes");
+        return (int) n;
+    }
+
+    private byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) throw new EOFException("Truncated chunked body");
+            int semi = sizeLine.indexOf(';');
+            int size = Integer.parseInt((semi >= 0 ? sizeLine.substring(0, semi) : sizeLine).trim(), 16);
+            if (size == 0) {
+                while (true) {
+                    String trailer = readLine(in);
+                    if (trailer == null || trailer.isEmpty()) break;
+                }
+                return buffer.toByteArray();
+            }
+            byte[] chunk = in.readNBytes(size);
+            if (chunk.length != size) throw new EOFException("Truncated chunk");
+            buffer.write(chunk);
+            readLine(in);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (b != '\r') sb.append((char) b);
+        }
+        if (b == -1 && sb.length() == 0) return null;
+        return sb.toString();
+    }
+
+    // ================================
+    //  Métricas
+    // ================================
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long errors() {
+        return errors.sum();
+    }
+
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public double averageWaitMillis() {
+        long n = waits.sum();
+        return n == 0 ? 0.0 : waitNanos.sum() / 1e6 / n;
+    }
+
+    public String statsJson() {
+        StringBuilder peers = new StringBuilder();
+        for (Map.Entry<Integer, PeerStats> e : new java.util.TreeMap<>(peerStats).entrySet()) {
+            if (peers.length() > 0) peers.append(',');
+            peers.append('"').append(e.getKey()).append("\":").append(e.getValue().json(timeoutMillis(e.getKey(), false),
+                    timeoutMillis(e.getKey(), true)));
+        }
+        return String.format(java.util.Locale.ROOT,
+                "{\"hits\":%d,\"misses\":%d,\"hitRate\":%.3f,\"avgWaitMs\":%.3f,\"errors\":%d,\"peers\":{%s}}",
+                hits(), misses(), hitRate(), averageWaitMillis(), errors(), peers);
+    }
+
+    void writeMetrics(Metrics.Exposition m) {
+        Map<Integer, PeerStats> byPeer = new java.util.TreeMap<>(peerStats);
+        m.family("dfs_peer_request_duration_seconds", "histogram", "Successful calls to other nodes.");
+        for (Map.Entry<Integer, PeerStats> e : byPeer.entrySet()) {
+            String peer = Metrics.label("peer", e.getKey());
+            m.histogram("dfs_peer_request_duration_seconds", peer + ",kind=\"read\"", e.getValue().readHistogram);
+            m.histogram("dfs_peer_request_duration_seconds", peer + ",kind=\"write\"", e.getValue().writeHistogram);
+        }
+        m.family("dfs_peer_request_errors_total", "counter", "Calls to other nodes that failed or timed out.");
+        for (Map.Entry<Integer, PeerStats> e : byPeer.entrySet()) {
+            m.sample("dfs_peer_request_errors_total", Metrics.label("peer", e.getKey()), e.getValue().failures.sum());
+        }
+        m.family("dfs_peer_requests_in_flight", "gauge", "Calls to other nodes waiting for an answer.");
+        for (Map.Entry<Integer, PeerStats> e : byPeer.entrySet()) {
+            m.sample("dfs_peer_requests_in_flight", Metrics.label("peer", e.getKey()), e.getValue().inFlight.get());
+        }
+        m.family("dfs_peer_connections_total", "counter", "Peer calls by connection source (reused from the pool or new).");
+        m.sample("dfs_peer_connections_total", "source=\"pool\"", hits());
+        m.sample("dfs_peer_connections_total", "source=\"new\"", misses());
+    }
+
+    // ================================
+    //  Latência por peer
+    // ================================
+
+    private static class PeerStats {
+        final LatencyTracker reads = new LatencyTracker(STATS_WINDOW_MS);
+        final LatencyTracker writes = new LatencyTracker(STATS_WINDOW_MS);
+        // os mesmos tempos, acumulados desde o start (o /metrics quer contadores, não janela)
+        final Metrics.Histogram readHistogram = new Metrics.Histogram();
+        final Metrics.Histogram writeHistogram = new Metrics.Histogram();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final LongAdder failures = new LongAdder();
+        volatile double readEwmaNanos;  // 0 = sem amostra
+        volatile double writeEwmaNanos;
+
+        void record(boolean write, long nanos) {
+            (write ? writes : reads).record(nanos);
+            (write ? writeHistogram : readHistogram).record(nanos);
+            updateEwma(write, nanos);
+        }
+
+        // só no EWMA: o percentil (e o timeout) fica com as chamadas que deram certo
+        void penalize(boolean write, long nanos, boolean failed) {
+            if (failed) failures.increment();
+            updateEwma(write, nanos);
+        }
+
+        private synchronized void updateEwma(boolean write, long nanos) {
+            if (write) {
+                writeEwmaNanos = writeEwmaNanos == 0 ? nanos : writeEwmaNanos + EWMA_ALPHA * (nanos - writeEwmaNanos);
+            } else {
+                readEwmaNanos = readEwmaNanos == 0 ? nanos : readEwmaNanos + EWMA_ALPHA * (nanos - readEwmaNanos);
+            }
+        }
+
+        String json(int readTimeoutMs, int writeTimeoutMs) {
+            return String.format(java.util.Locale.ROOT,
+                    "{\"readEwmaMs\":%s,\"readP50Ms\":%s,\"readP99Ms\":%s,\"readTimeoutMs\":%d,"
+                            + "\"writeEwmaMs\":%s,\"writeP99Ms\":%s,\"writeTimeoutMs\":%d,\"inFlight\":%d,\"failures\":%d}",
+                    millis(readEwmaNanos), millis(reads.percentileNanos(50, 1)), millis(reads.percentileNanos(99, 1)), readTimeoutMs,
+                    millis(writeEwmaNanos), millis(writes.percentileNanos(99, 1)), writeTimeoutMs, inFlight.get(), failures.sum());
+        }
+
+        // sem amostra = null
+        private static String millis(double nanos) {
+            return nanos <= 0 ? "null" : String.format(java.util.Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+    }
+
+    // ================================
+    //  Pool por peer
+    // ================================
+
+    private class PeerPool {
+        final InetSocketAddress address;
+        final Semaphore permits = new Semaphore(maxConnectionsPerPeer);
+        final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+        PeerPool(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void acquire(long deadline) throws IOException {
+            long start = System.nanoTime();
+            try {
+                if (!permits.tryAcquire(Math.max(0, deadline - start), TimeUnit.NANOSECONDS)) {
+                    throw new SocketTimeoutException("Timed out waiting for a connection to " + address);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + address);
+            } finally {
+                waits.increment();
+                waitNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        void release() {
+            permits.release();
+        }
+
+        Connection takeIdle() {
+            long now = System.nanoTime();
+            Connection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                if (now - conn.lastUsed < idleTimeoutNanos && conn.isOpen()) {
+                    conn.reused = true;
+                    conn.gotResponse = false;
+                    return conn;
+                }
+                conn.close();
+            }
+            return null;
+        }
+
+        // só conexão já desarmada (ver exchange)
+        void giveBack(Connection conn) {
+            conn.lastUsed = System.nanoTime();
+            idle.offerFirst(conn);
+        }
+
+        Connection connect(long deadline) throws IOException {
+            int timeout = remainingMillis(deadline);
+            SocketChannel channel = SocketChannel.open();
+            try {
+                Socket socket = channel.socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(address, timeout);
+                return new Connection(channel, socket);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    private static int remainingMillis(long deadline) throws SocketTimeoutException {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) throw new SocketTimeoutException("Deadline exceeded");
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed = System.nanoTime();
+        boolean reused;
+        boolean gotResponse;
+        boolean keepAlive;
+        volatile boolean expired;
+        // de uma chamada por vez: armado e desarmado pela thread dona, antes de ir p/ o pool
+        private volatile ScheduledFuture<?> watchdog;
+
+        Connection(SocketChannel channel, Socket socket) throws IOException {
+            this.channel = channel;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        // SO_TIMEOUT limita cada leitura; o watchdog, a chamada toda
+        void arm(long deadline) throws IOException {
+            socket.setSoTimeout(remainingMillis(deadline));
+            expired = false;
+            watchdog = WATCHDOG.schedule(() -> {
+                expired = true;
+                close();
+            }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        // false se o watchdog já disparou
+        boolean disarm() {
+            ScheduledFuture<?> armed = watchdog;
+            if (armed == null) return !expired;
+            watchdog = null;
+            return armed.cancel(false) && !expired;
+        }
+
+        boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final boolean retryable;
+
+        StaleConnectionException(IOException cause, boolean retryable) {
+            super("Stale pooled connection" + (retryable ? "" : " (request body sent)"), cause);
+            this.retryable = retryable;
+        }
+    }
+
+    private static class NonClosing extends FilterOutputStream {
+        NonClosing(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// ================================
+//  Token bucket em bytes/s p/ tráfego de fundo (reparo, scrub)
+//
+//  Quem pede mais do que tem fica devendo e dorme o tempo de pagar a dívida, fora do
+//  lock; a taxa média fica no limite mesmo com vários pedindo ao mesmo tempo. O que
+//  sobra acumula até 100 ms de taxa (rajada curta). Taxa <= 0 = sem limite.
+// ================================
+
+public class RateLimiter {
+
+    private static final int CHUNK = 16 * 1024;
+
+    private final long bytesPerSecond;
+    private final long burst;
+    private long available;
+    private long lastRefill = System.nanoTime();
+
+    RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burst = Math.max(CHUNK, bytesPerSecond / 10);
+        this.available = burst;
+    }
+
+    boolean limited() {
+        return bytesPerSecond > 0;
+    }
+
+    long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    // ms que `bytes` levam na taxa do limiter (0 sem limite)
+    long millisFor(long bytes) {
+        return limited() ? bytes * 1000 / bytesPerSecond : 0;
+    }
+
+    void acquire(long bytes) throws InterruptedIOException {
+        if (!limited() || bytes <= 0) return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long elapsed = Math.min(now - lastRefill, TimeUnit.SECONDS.toNanos(1)); // burst < 1 s de taxa
+            available = Math.min(burst, available + elapsed * bytesPerSecond / 1_000_000_000L);
+            lastRefill = now;
+            available -= bytes;
+            waitNanos = available < 0 ? (long) (-available * 1e9 / bytesPerSecond) : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    // cada escrita paga antes de passar adiante, em pedaços de 16 KB
+    OutputStream throttle(OutputStream out) {
+        if (!limited()) return out;
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, CHUNK);
+                    acquire(n);
+                    out.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+}
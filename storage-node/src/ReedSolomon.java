@@ -0,0 +1,169 @@
+// ================================
+//  Reed-Solomon sistemático sobre GF(2^8)
+//
+//  k data shards + m parity shards, todos do mesmo tamanho. A matriz de codificação é
+//  a identidade (data shards saem como estão) em cima de uma matriz de Cauchy, então
+//  quaisquer k shards reconstroem o resto. As multiplicações usam uma tabela 256x256
+//  pré-calculada: o laço interno é só lookup + xor por byte.
+// ================================
+
+public class ReedSolomon {
+
+    private static final int FIELD_SIZE = 256;
+    private static final int POLYNOMIAL = 0x11D; // x^8 + x^4 + x^3 + x^2 + 1
+
+    private static final byte[] EXP = new byte[FIELD_SIZE * 2];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= FIELD_SIZE) x ^= POLYNOMIAL;
+        }
+        // duplicada p/ mul não precisar de % 255
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 1; a < FIELD_SIZE; a++) {
+            for (int b = 1; b < FIELD_SIZE; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix; // (k+m) x k
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Invalid shard counts: " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.matrix = new byte[dataShards + parityShards][dataShards];
+
+        for (int i = 0; i < dataShards; i++) {
+            matrix[i][i] = 1;
+        }
+        // Cauchy: 1 / (x_r + y_c), com x_r = k + r e y_c = c (conjuntos disjuntos)
+        for (int r = 0; r < parityShards; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                matrix[dataShards + r][c] = inverse((dataShards + r) ^ c);
+            }
+        }
+    }
+
+    public int dataShards() {
+        return dataShards;
+    }
+
+    public int parityShards() {
+        return parityShards;
+    }
+
+    public int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    // parity[r][offset..offset+length) a partir de data[c][offset..offset+length)
+    public void encodeParity(byte[][] data, byte[][] parity, int offset, int length) {
+        for (int r = 0; r < parityShards; r++) {
+            combine(matrix[dataShards + r], data, parity[r], offset, length);
+        }
+    }
+
+    // shards[i] == null => perdido. Precisa de pelo menos k presentes; preenche os que faltam
+    public void reconstruct(byte[][] shards, int shardSize) {
+        int total = totalShards();
+        int[] present = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < total && found < dataShards; i++) {
+            if (shards[i] != null) present[found++] = i;
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards, only " + found + " available");
+        }
+
+        // linhas da matriz que geraram os shards presentes, invertidas => volta p/ os data shards
+        byte[][] sub = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int j = 0; j < dataShards; j++) {
+            sub[j] = matrix[present[j]].clone();
+            inputs[j] = shards[present[j]];
+        }
+        byte[][] decode = invert(sub);
+
+        for (int d = 0; d < dataShards; d++) {
+            if (shards[d] == null) {
+                shards[d] = new byte[shardSize];
+                combine(decode[d], inputs, shards[d], 0, shardSize);
+            }
+        }
+        for (int r = 0; r < parityShards; r++) {
+            if (shards[dataShards + r] == null) {
+                shards[dataShards + r] = new byte[shardSize];
+                combine(matrix[dataShards + r], shards, shards[dataShards + r], 0, shardSize);
+            }
+        }
+    }
+
+    // out = sum(coef[c] * in[c]) na faixa pedida
+    private static void combine(byte[] coefs, byte[][] in, byte[] out, int offset, int length) {
+        int end = offset + length;
+        byte[] table = MUL[coefs[0] & 0xFF];
+        byte[] src = in[0];
+        for (int i = offset; i < end; i++) {
+            out[i] = table[src[i] & 0xFF];
+        }
+        for (int c = 1; c < coefs.length; c++) {
+            table = MUL[coefs[c] & 0xFF];
+            src = in[c];
+            for (int i = offset; i < end; i++) {
+                out[i] ^= table[src[i] & 0xFF];
+            }
+        }
+    }
+
+    // Gauss-Jordan em GF(2^8)
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] inv = new byte[n][n];
+        for (int i = 0; i < n; i++) inv[i][i] = 1;
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && m[pivot][col] == 0) pivot++;
+            if (pivot == n) throw new IllegalArgumentException("Singular matrix");
+            if (pivot != col) {
+                byte[] t = m[pivot]; m[pivot] = m[col]; m[col] = t;
+                t = inv[pivot]; inv[pivot] = inv[col]; inv[col] = t;
+            }
+
+            byte[] scale = MUL[inverse(m[col][col] & 0xFF) & 0xFF];
+            for (int j = 0; j < n; j++) {
+                m[col][j] = scale[m[col][j] & 0xFF];
+                inv[col][j] = scale[inv[col][j] & 0xFF];
+            }
+
+            for (int row = 0; row < n; row++) {
+                if (row == col || m[row][col] == 0) continue;
+                byte[] factor = MUL[m[row][col] & 0xFF];
+                for (int j = 0; j < n; j++) {
+                    m[row][j] ^= factor[m[col][j] & 0xFF];
+                    inv[row][j] ^= factor[inv[col][j] & 0xFF];
+                }
+            }
+        }
+        return inv;
+    }
+
+    private static byte inverse(int a) {
+        if (a == 0) throw new ArithmeticException("Zero has no inverse in GF(2^8)");
+        return EXP[FIELD_SIZE - 1 - LOG[a]];
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.Locale;
+import java.util.Random;
+
+// ================================
+//  Vazão do ReedSolomon numa thread (= por core)
+//
+//  java -cp out ReedSolomonBenchmark [dataShards] [parityShards] [shardKB] [rounds]
+//
+//  encode: bytes de dados / tempo p/ gerar as parities
+//  decode: bytes de dados / tempo p/ reconstruir com os m primeiros data shards perdidos
+// ================================
+
+public class ReedSolomonBenchmark {
+
+    public static void main(String[] args) {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int m = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int shardSize = (args.length > 2 ? Integer.parseInt(args[2]) : 1024) * 1024;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        ReedSolomon rs = new ReedSolomon(k, m);
+        Random random = new Random(42);
+        byte[][] data = new byte[k][shardSize];
+        byte[][] parity = new byte[m][shardSize];
+        for (byte[] shard : data) random.nextBytes(shard);
+
+        System.out.printf("Reed-Solomon %d+%d, shard %d KB, %d rounds%n", k, m, shardSize / 1024, rounds);
+
+        // warmup p/ o JIT compilar o laço interno
+        for (int i = 0; i < 10; i++) rs.encodeParity(data, parity, 0, shardSize);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            rs.encodeParity(data, parity, 0, shardSize);
+        }
+        report("encode", (long) k * shardSize * rounds, System.nanoTime() - start);
+
+        int lost = Math.min(m, k);
+        byte[][] shards = new byte[k + m][];
+        for (int i = 0; i < 10; i++) decodeOnce(rs, data, parity, shards, lost, shardSize);
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            decodeOnce(rs, data, parity, shards, lost, shardSize);
+        }
+        report("decode (" + lost + " lost)", (long) k * shardSize * rounds, System.nanoTime() - start);
+
+        for (int i = 0; i < k; i++) {
+            if (!java.util.Arrays.equals(shards[i], data[i])) {
+                System.out.println("MISMATCH on shard " + i);
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void decodeOnce(ReedSolomon rs, byte[][] data, byte[][] parity, byte[][] shards, int lost, int shardSize) {
+        int k = data.length;
+        for (int i = 0; i < k; i++) shards[i] = i < lost ? null : data[i];
+        for (int r = 0; r < parity.length; r++) shards[k + r] = parity[r];
+        rs.reconstruct(shards, shardSize);
+    }
+
+    private static void report(String what, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf(Locale.ROOT, "%-18s %8.1f MB/s per core%n", what, bytes / 1e6 / seconds);
+    }
+}
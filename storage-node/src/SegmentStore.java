@@ -0,0 +1,774 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// ================================
+//  Store log-structured (-Dstorage.engine=segments)
+//
+//  Fragments, chunks e manifests são anexados a data/node-X/segments/<id>.seg (até
+//  segments.maxMB cada) e achados por um índice em memória (key, index) -> (segmento,
+//  offset, tamanho). Milhões de uploads pequenos viram poucos arquivos grandes escritos
+//  em sequência, sem um inode e um diretório por fragment.
+//
+//  Registro:  int magic "DFSR" | byte tipo (1 put, 2 delete) | byte flags (1 = .z)
+//             | short tamanho da key | int index | long tamanho do payload | key | payload
+//             | int crc32c de tudo antes
+//             (delete não tem payload: o campo de tamanho guarda o segmento do put apagado)
+//  Rodapé, escrito quando o segmento enche: uma entrada por registro (tipo, flags, key,
+//             index, offset, tamanho) | int quantidade | long offset do rodapé
+//             | int crc32c das entradas | int magic "DFSE"
+//
+//  No start o índice sai dos rodapés, em ordem de segmento (o registro mais novo ganha).
+//  Só o segmento ativo, sem rodapé, é lido registro a registro e truncado no primeiro
+//  registro incompleto (nó caiu no meio de uma escrita).
+//
+//  Sobrescrever ou apagar deixa bytes mortos no segmento antigo. A compactação (thread
+//  de fundo) copia p/ o segmento ativo o que ainda está vivo nos segmentos com mais de
+//  segments.compactRatio de lixo e apaga o arquivo. Um delete só é copiado se o segmento
+//  do put que ele apagou ainda existe; senão o put voltaria no restart.
+//
+//  Durabilidade: o fsync (group ou write) é do segmento ativo, fora do writeLock. Um lote
+//  do group commit cobre todas as escritas que terminaram antes dele, de qualquer key.
+//  Segmento cheio é forçado antes de ser fechado; segmento novo, com fsync do diretório.
+// ================================
+
+public class SegmentStore extends FragmentStore {
+
+    private static final int RECORD_MAGIC = 0x44465352; // "DFSR"
+    private static final int FOOTER_MAGIC = 0x44465345; // "DFSE"
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte FLAG_COMPRESSED = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 2 + 4 + 8;
+    private static final int TRAILER_SIZE = 4 + 8 + 4 + 4;
+    private static final int IO_BUFFER_SIZE = 256 * 1024;
+    // gravação maior que isso vai p/ um arquivo temporário em vez da memória até o commit
+    private static final int MAX_BUFFERED_WRITE = 4 * 1024 * 1024;
+
+    private final Path dir;
+    private final Path tmpDir;
+    private final long maxSegmentBytes;
+    private final double compactRatio;
+    private final long compactIntervalMs;
+
+    // key -> index -> posição. Leitura sem lock; toda mudança (e toda escrita no segmento
+    // ativo) acontece com writeLock, na mesma ordem em que os registros vão p/ o disco
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Location>> locations = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    private Segment active;
+    private long entries;
+    private long compactions;
+    private long reclaimedBytes;
+
+    private ScheduledExecutorService compactor;
+
+    private final GroupCommit<FileChannel> syncer = new GroupCommit<>(batch -> {
+        for (FileChannel channel : batch) force(channel);
+    });
+
+    private static class Location {
+        final int segment;
+        final long recordOffset;
+        final long recordSize;
+        final long payloadOffset;
+        final long length;
+        final boolean compressed;
+
+        Location(int segment, Entry e) {
+            this.segment = segment;
+            this.recordOffset = e.recordOffset;
+            this.recordSize = e.recordSize();
+            this.payloadOffset = e.recordOffset + HEADER_SIZE + e.keyLength;
+            this.length = e.type == PUT ? e.length : 0;
+            this.compressed = (e.flags & FLAG_COMPRESSED) != 0;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        FileChannel channel;  // só o ativo fica aberto p/ escrita
+        long size;            // bytes de registros (sem o rodapé)
+        long deadBytes;
+        List<Entry> entries;  // registros do ativo, p/ o rodapé
+
+        Segment(int id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    // cabeçalho de um registro + onde ele está (também é a entrada do rodapé)
+    private static class Entry {
+        final byte type;
+        final byte flags;
+        final String key;
+        final int keyLength;
+        final int index;
+        final long recordOffset;
+        final long length;
+
+        Entry(byte type, byte flags, String key, int keyLength, int index, long recordOffset, long length) {
+            this.type = type;
+            this.flags = flags;
+            this.key = key;
+            this.keyLength = keyLength;
+            this.index = index;
+            this.recordOffset = recordOffset;
+            this.length = length;
+        }
+
+        long recordSize() {
+            return HEADER_SIZE + keyLength + (type == PUT ? length : 0) + 4;
+        }
+
+        Entry at(long offset) {
+            return new Entry(type, flags, key, keyLength, index, offset, length);
+        }
+    }
+
+    SegmentStore(Path dir, long maxSegmentBytes, double compactRatio, long compactIntervalMs) {
+        this.dir = dir;
+        this.tmpDir = dir.resolve("tmp");
+        this.maxSegmentBytes = Math.max(1024 * 1024, maxSegmentBytes);
+        this.compactRatio = compactRatio;
+        this.compactIntervalMs = compactIntervalMs;
+    }
+
+    @Override
+    public String name() {
+        return "segments";
+    }
+
+    // ================================
+    //  Start: índice a partir dos rodapés
+    // ================================
+
+    @Override
+    public void start() throws IOException {
+        Files.createDirectories(tmpDir);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tmpDir)) {
+            for (Path p : stream) Files.deleteIfExists(p); // gravações interrompidas
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - ".seg".length())));
+                } catch (NumberFormatException ignored) { }
+            }
+        }
+        Collections.sort(ids);
+
+        synchronized (writeLock) {
+            for (int i = 0; i < ids.size(); i++) {
+                Segment seg = new Segment(ids.get(i), segmentPath(ids.get(i)));
+                boolean last = i == ids.size() - 1;
+                List<Entry> found;
+                try (FileChannel ch = FileChannel.open(seg.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    Footer footer = readFooter(ch);
+                    if (footer != null) {
+                        seg.size = footer.offset;
+                        found = footer.entries;
+                    } else {
+                        found = scan(ch);
+                        seg.size = found.isEmpty() ? 0 : found.get(found.size() - 1).recordOffset
+                                + found.get(found.size() - 1).recordSize();
+                        ch.truncate(seg.size);
+                        // sem rodapé e não é o último: o nó caiu enquanto fechava o segmento
+                        if (!last) writeFooter(ch, seg.size, found);
+                    }
+                    if (last && footer == null) {
+                        seg.entries = new ArrayList<>(found);
+                    }
+                }
+                segments.put(seg.id, seg);
+                for (Entry e : found) replay(seg, e);
+                if (seg.entries != null) {
+                    seg.channel = FileChannel.open(seg.path, StandardOpenOption.WRITE);
+                    seg.channel.position(seg.size);
+                    active = seg;
+                }
+            }
+            if (active == null) {
+                active = newSegment(ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1);
+            }
+        }
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "segment-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compactGarbage, compactIntervalMs, compactIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void replay(Segment seg, Entry e) {
+        if (e.type == PUT) {
+            publish(e.key, e.index, new Location(seg.id, e));
+        } else {
+            unpublish(e.key, e.index);
+            seg.deadBytes += e.recordSize();
+        }
+    }
+
+    private static class Footer {
+        final long offset;
+        final List<Entry> entries;
+
+        Footer(long offset, List<Entry> entries) {
+            this.offset = offset;
+            this.entries = entries;
+        }
+    }
+
+    // null se o segmento não tem rodapé íntegro
+    private Footer readFooter(FileChannel ch) throws IOException {
+        long fileSize = ch.size();
+        if (fileSize < TRAILER_SIZE) return null;
+        ByteBuffer trailer = readAt(ch, fileSize - TRAILER_SIZE, TRAILER_SIZE);
+        int count = trailer.getInt();
+        long offset = trailer.getLong();
+        int crc = trailer.getInt();
+        if (trailer.getInt() != FOOTER_MAGIC || count < 0 || offset < 0 || offset > fileSize - TRAILER_SIZE
+                || fileSize - TRAILER_SIZE - offset > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        ByteBuffer footer = readAt(ch, offset, (int) (fileSize - TRAILER_SIZE - offset));
+        CRC32C check = new CRC32C();
+        check.update(footer.duplicate());
+        if ((int) check.getValue() != crc) return null;
+
+        List<Entry> found = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                byte type = footer.get();
+                byte flags = footer.get();
+                int keyLength = footer.getShort() & 0xFFFF;
+                byte[] key = new byte[keyLength];
+                footer.get(key);
+                int index = footer.getInt();
+                long recordOffset = footer.getLong();
+                long length = footer.getLong();
+                found.add(new Entry(type, flags, new String(key, StandardCharsets.UTF_8), keyLength, index, recordOffset, length));
+            }
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+        return new Footer(offset, found);
+    }
+
+    // registros íntegros desde o começo; para no primeiro incompleto ou com crc errado
+    private List<Entry> scan(FileChannel ch) throws IOException {
+        List<Entry> found = new ArrayList<>();
+        long fileSize = ch.size();
+        long pos = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        while (pos + HEADER_SIZE + 4 <= fileSize) {
+            ByteBuffer header = readAt(ch, pos, HEADER_SIZE);
+            int magic = header.getInt();
+            byte type = header.get();
+            byte flags = header.get();
+            int keyLength = header.getShort() & 0xFFFF;
+            int index = header.getInt();
+            long length = header.getLong();
+            if (magic != RECORD_MAGIC || (type != PUT && type != DELETE) || length < 0) break;
+            Entry e = new Entry(type, flags, null, keyLength, index, pos, length);
+            if (pos + e.recordSize() > fileSize) break;
+
+            CRC32C crc = new CRC32C();
+            crc.update(header.flip());
+            ByteBuffer key = readAt(ch, pos + HEADER_SIZE, keyLength);
+            crc.update(key.duplicate());
+            long payload = type == PUT ? length : 0;
+            long payloadStart = pos + HEADER_SIZE + keyLength;
+            for (long done = 0; done < payload; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), payload - done));
+                readFully(ch, buffer, payloadStart + done);
+                crc.update(buffer.flip());
+                done += buffer.limit();
+            }
+            if (readAt(ch, payloadStart + payload, 4).getInt() != (int) crc.getValue()) break;
+
+            found.add(new Entry(type, flags, StandardCharsets.UTF_8.decode(key).toString(), keyLength, index, pos, length));
+            pos += e.recordSize();
+        }
+        return found;
+    }
+
+    // ================================
+    //  Leitura
+    // ================================
+
+    private Location lookup(String key, int index) {
+        Map<Integer, Location> byIndex = locations.get(key);
+        return byIndex == null ? null : byIndex.get(index);
+    }
+
+    @Override
+    Stored open(String key, int index) throws IOException {
+        // a compactação pode apagar o segmento entre o lookup e o open: a segunda
+        // tentativa já acha a cópia nova
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location loc = lookup(key, index);
+            if (loc == null) return null;
+            try {
+                FileChannel channel = FileChannel.open(segmentPath(loc.segment), StandardOpenOption.READ);
+                return new Stored(channel, loc.payloadOffset, loc.length, loc.compressed);
+            } catch (NoSuchFileException ignored) { }
+        }
+        return null;
+    }
+
+    @Override
+    boolean contains(String key, int index) {
+        return lookup(key, index) != null;
+    }
+
+    @Override
+    List<Integer> fragmentIndexes(String key) {
+        List<Integer> indexes = new ArrayList<>();
+        Map<Integer, Location> byIndex = locations.get(key);
+        if (byIndex == null) return indexes;
+        for (int index : byIndex.keySet()) {
+            if (index >= 0) indexes.add(index);
+        }
+        Collections.sort(indexes);
+        return indexes;
+    }
+
+    @Override
+    List<String> keys(int index) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentHashMap<Integer, Location>> e : locations.entrySet()) {
+            if (e.getValue().containsKey(index)) keys.add(e.getKey());
+        }
+        return keys;
+    }
+
+    // ================================
+    //  Escrita
+    // ================================
+
+    @Override
+    Writer create(String key, int index, boolean compressed, long sizeHint) {
+        return new SegmentWriter(key, index, compressed, sizeHint);
+    }
+
+    @Override
+    void write(String key, int index, boolean compressed, byte[] data, Durability durability) throws IOException {
+        sync(appendBytes(key, index, compressed, data, 0, data.length), durability);
+    }
+
+    @Override
+    void put(String key, int index, boolean compressed, Path source, Durability durability) throws IOException {
+        try (FileChannel src = FileChannel.open(source, StandardOpenOption.READ)) {
+            sync(appendFile(key, index, compressed, src, src.size()), durability);
+        }
+    }
+
+    // fora do writeLock: o fsync não segura as outras escritas
+    private void sync(FileChannel written, Durability durability) throws IOException {
+        if (durability == Durability.WRITE) {
+            force(written);
+        } else if (durability == Durability.GROUP) {
+            syncer.await(written);
+        }
+    }
+
+    // segmento fechado nesse meio tempo já foi forçado quando encheu
+    private static void force(FileChannel channel) throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException ignored) { }
+    }
+
+    @Override
+    boolean delete(String key, int index) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        synchronized (writeLock) {
+            Location old = lookup(key, index);
+            if (old == null) return false;
+            ByteBuffer header = header(DELETE, false, keyBytes, index, old.segment);
+            CRC32C crc = new CRC32C();
+            crc.update(header.duplicate());
+            Entry e = new Entry(DELETE, (byte) 0, key, keyBytes.length, index, 0, old.segment);
+            Segment seg = appendLocked(e, header, null, crc);
+            unpublish(key, index);
+            seg.deadBytes += e.recordSize();
+            return true;
+        }
+    }
+
+    // payload em memória: crc fora do lock, uma escrita só (gather) dentro. Devolve o
+    // channel onde o registro foi escrito (p/ o fsync)
+    private FileChannel appendBytes(String key, int index, boolean compressed, byte[] data, int off, int len) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = header(PUT, compressed, keyBytes, index, len);
+        CRC32C crc = new CRC32C();
+        crc.update(header.duplicate());
+        crc.update(data, off, len);
+        Entry e = new Entry(PUT, compressed ? FLAG_COMPRESSED : 0, key, keyBytes.length, index, 0, len);
+        synchronized (writeLock) {
+            return appendLocked(e, header, ByteBuffer.wrap(data, off, len), crc).channel;
+        }
+    }
+
+    // payload num arquivo: crc numa leitura fora do lock, cópia pelo kernel dentro
+    private FileChannel appendFile(String key, int index, boolean compressed, FileChannel src, long len) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = header(PUT, compressed, keyBytes, index, len);
+        CRC32C crc = new CRC32C();
+        crc.update(header.duplicate());
+        ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        for (long done = 0; done < len; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), len - done));
+            readFully(src, buffer, done);
+            crc.update(buffer.flip());
+            done += buffer.limit();
+        }
+        Entry e = new Entry(PUT, compressed ? FLAG_COMPRESSED : 0, key, keyBytes.length, index, 0, len);
+        synchronized (writeLock) {
+            Segment seg = activeFor(e.recordSize());
+            long recordOffset = seg.size;
+            try {
+                writeFully(seg.channel, header);
+                transferFully(src, 0, len, seg.channel);
+                writeFully(seg.channel, ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip());
+            } catch (IOException ex) {
+                discardPartial(seg);
+                throw ex;
+            }
+            commitEntry(seg, e.at(recordOffset));
+            return seg.channel;
+        }
+    }
+
+    // com writeLock; payload null = delete
+    private Segment appendLocked(Entry e, ByteBuffer header, ByteBuffer payload, CRC32C crc) throws IOException {
+        Segment seg = activeFor(e.recordSize());
+        long recordOffset = seg.size;
+        ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip();
+        try {
+            if (payload == null) {
+                writeFully(seg.channel, header, trailer);
+            } else {
+                writeFully(seg.channel, header, payload, trailer);
+            }
+        } catch (IOException ex) {
+            discardPartial(seg);
+            throw ex;
+        }
+        commitEntry(seg, e.at(recordOffset));
+        return seg;
+    }
+
+    private void commitEntry(Segment seg, Entry e) {
+        seg.entries.add(e);
+        seg.size += e.recordSize();
+        if (e.type == PUT) publish(e.key, e.index, new Location(seg.id, e));
+    }
+
+    // escrita que falhou no meio: o próximo registro começa onde este começaria
+    private void discardPartial(Segment seg) throws IOException {
+        seg.channel.truncate(seg.size);
+        seg.channel.position(seg.size);
+    }
+
+    private ByteBuffer header(byte type, boolean compressed, byte[] key, int index, long length) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + key.length);
+        b.putInt(RECORD_MAGIC).put(type).put(compressed ? FLAG_COMPRESSED : 0).putShort((short) key.length)
+                .putInt(index).putLong(length).put(key);
+        return b.flip();
+    }
+
+    // com writeLock
+    private void publish(String key, int index, Location loc) {
+        Location old = locations.computeIfAbsent(key, k -> new ConcurrentHashMap<>(4)).put(index, loc);
+        if (old != null) {
+            markDead(old);
+        } else {
+            entries++;
+        }
+    }
+
+    // com writeLock
+    private void unpublish(String key, int index) {
+        ConcurrentHashMap<Integer, Location> byIndex = locations.get(key);
+        if (byIndex == null) return;
+        Location old = byIndex.remove(index);
+        if (old == null) return;
+        markDead(old);
+        entries--;
+        if (byIndex.isEmpty()) locations.remove(key, byIndex);
+    }
+
+    private void markDead(Location loc) {
+        Segment s = segments.get(loc.segment);
+        if (s != null) s.deadBytes += loc.recordSize;
+    }
+
+    // com writeLock: o ativo, ou um novo se o registro não cabe mais nele
+    private Segment activeFor(long recordSize) throws IOException {
+        if (active.size > 0 && active.size + recordSize > maxSegmentBytes) {
+            Segment full = active;
+            writeFooter(full.channel, full.size, full.entries);
+            full.channel.force(false); // quem ainda espera o group commit deste segmento
+            full.channel.close();
+            full.channel = null;
+            full.entries = null;
+            active = newSegment(full.id + 1);
+        }
+        return active;
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment seg = new Segment(id, segmentPath(id));
+        seg.channel = FileChannel.open(seg.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        fsync(dir);
+        seg.entries = new ArrayList<>();
+        segments.put(id, seg);
+        return seg;
+    }
+
+    private void writeFooter(FileChannel ch, long offset, List<Entry> found) throws IOException {
+        int size = 0;
+        for (Entry e : found) size += 1 + 1 + 2 + e.keyLength + 4 + 8 + 8;
+        ByteBuffer footer = ByteBuffer.allocate(size);
+        for (Entry e : found) {
+            footer.put(e.type).put(e.flags).putShort((short) e.keyLength).put(e.key.getBytes(StandardCharsets.UTF_8))
+                    .putInt(e.index).putLong(e.recordOffset).putLong(e.length);
+        }
+        footer.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(footer.duplicate());
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putInt(found.size()).putLong(offset).putInt((int) crc.getValue()).putInt(FOOTER_MAGIC).flip();
+
+        long pos = offset;
+        while (footer.hasRemaining()) pos += ch.write(footer, pos);
+        while (trailer.hasRemaining()) pos += ch.write(trailer, pos);
+        ch.truncate(pos);
+    }
+
+    // gravação em memória até MAX_BUFFERED_WRITE; acima disso num arquivo temporário
+    private class SegmentWriter extends Writer {
+        private final String key;
+        private final int index;
+        private final boolean compressed;
+        private byte[] buffer;
+        private int count;
+        private Path spillPath;
+        private OutputStream spill;
+
+        SegmentWriter(String key, int index, boolean compressed, long sizeHint) {
+            this.key = key;
+            this.index = index;
+            this.compressed = compressed;
+            this.buffer = new byte[(int) Math.max(256, Math.min(sizeHint, MAX_BUFFERED_WRITE))];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (spill == null && (long) count + len > MAX_BUFFERED_WRITE) {
+                spillPath = Files.createTempFile(tmpDir, "write", ".tmp");
+                spill = new BufferedOutputStream(Files.newOutputStream(spillPath), IO_BUFFER_SIZE);
+                spill.write(buffer, 0, count);
+                buffer = null;
+            }
+            if (spill != null) {
+                spill.write(b, off, len);
+                return;
+            }
+            if (count + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(MAX_BUFFERED_WRITE, Math.max(count + len, 2L * buffer.length)));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        InputStream readBack() throws IOException {
+            if (spill == null) return new ByteArrayInputStream(buffer, 0, count);
+            spill.flush();
+            return Files.newInputStream(spillPath);
+        }
+
+        @Override
+        void commit(Durability durability) throws IOException {
+            if (spill == null) {
+                sync(appendBytes(key, index, compressed, buffer, 0, count), durability);
+                return;
+            }
+            spill.close();
+            try (FileChannel src = FileChannel.open(spillPath, StandardOpenOption.READ)) {
+                sync(appendFile(key, index, compressed, src, src.size()), durability);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            buffer = null;
+            if (spill != null) {
+                spill.close();
+                Files.deleteIfExists(spillPath);
+                spill = null;
+            }
+        }
+    }
+
+    // ================================
+    //  Compactação
+    // ================================
+
+    private void compactGarbage() {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (writeLock) {
+            for (Segment s : segments.values()) {
+                if (s != active && s.size > 0 && s.deadBytes >= s.size * compactRatio) candidates.add(s);
+            }
+        }
+        for (Segment s : candidates) {
+            try {
+                compact(s);
+            } catch (IOException e) {
+                Log.error("[store] Compaction of segment %d failed: %s", s.id, e.getMessage());
+            }
+        }
+    }
+
+    private void compact(Segment s) throws IOException {
+        long fileSize;
+        long moved = 0;
+        try (FileChannel src = FileChannel.open(s.path, StandardOpenOption.READ)) {
+            fileSize = src.size();
+            Footer footer = readFooter(src);
+            if (footer == null) throw new IOException("segment has no footer");
+
+            // um registro por vez com o lock: escritas dos clientes se intercalam com a cópia
+            for (Entry e : footer.entries) {
+                synchronized (writeLock) {
+                    if (e.type == PUT) {
+                        Location cur = lookup(e.key, e.index);
+                        if (cur == null || cur.segment != s.id || cur.recordOffset != e.recordOffset) continue;
+                        copyRecord(src, e);
+                        moved += e.recordSize();
+                    } else if (e.length != s.id && segments.containsKey((int) e.length) && lookup(e.key, e.index) == null) {
+                        copyRecord(src, e).deadBytes += e.recordSize();
+                        moved += e.recordSize();
+                    }
+                }
+            }
+
+            synchronized (writeLock) {
+                active.channel.force(false); // cópias no disco antes de apagar o original
+                segments.remove(s.id);
+                compactions++;
+                reclaimedBytes += fileSize - moved;
+            }
+        }
+        Files.deleteIfExists(s.path);
+    }
+
+    // com writeLock: registro copiado byte a byte (não tem nada que dependa da posição)
+    private Segment copyRecord(FileChannel src, Entry e) throws IOException {
+        Segment seg = activeFor(e.recordSize());
+        long recordOffset = seg.size;
+        try {
+            transferFully(src, e.recordOffset, e.recordSize(), seg.channel);
+        } catch (IOException ex) {
+            discardPartial(seg);
+            throw ex;
+        }
+        commitEntry(seg, e.at(recordOffset));
+        return seg;
+    }
+
+    // ================================
+    //  Helpers / métricas
+    // ================================
+
+    private Path segmentPath(int id) {
+        return dir.resolve(String.format(Locale.ROOT, "%08d.seg", id));
+    }
+
+    private static ByteBuffer readAt(FileChannel ch, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(ch, buffer, position);
+        return buffer.flip();
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer dst, long position) throws IOException {
+        long pos = position;
+        while (dst.hasRemaining()) {
+            int n = ch.read(dst, pos);
+            if (n == -1) throw new EOFException("Segment truncated");
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer... srcs) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer b : srcs) remaining += b.remaining();
+        while (remaining > 0) remaining -= ch.write(srcs);
+    }
+
+    private static void transferFully(FileChannel src, long position, long count, FileChannel dst) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = src.transferTo(position + done, count - done, dst);
+            if (n <= 0) throw new EOFException("Source shorter than expected");
+            done += n;
+        }
+    }
+
+    @Override
+    public String statsJson() {
+        synchronized (writeLock) {
+            long bytes = 0;
+            long dead = 0;
+            for (Segment s : segments.values()) {
+                bytes += s.size;
+                dead += s.deadBytes;
+            }
+            return String.format(Locale.ROOT,
+                    "{\"engine\":\"segments\",\"segments\":%d,\"bytes\":%d,\"deadBytes\":%d,\"entries\":%d,"
+                            + "\"compactions\":%d,\"reclaimedBytes\":%d,\"groupCommit\":%s}",
+                    segments.size(), bytes, dead, entries, compactions, reclaimedBytes, syncer.statsJson());
+        }
+    }
+}
@@ -1,10 +1,21 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.Base64;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+import java.util.stream.Stream;
 
 public class StorageNode {
 
@@ -12,512 +23,2955 @@ public class StorageNode {
     private final int port;
     private final Path dataRoot;
 
-    private final int TOTAL_NODES = 5;
-
-    public StorageNode(String nodeId, int port) {
+    // onde fragments, chunks e manifests ficam (-Dstorage.engine=files|segments, ver FragmentStore)
+    private final FragmentStore store;
+    // fsync antes de confirmar uma escrita (-Dstore.durability=none|group|write); o upload pode
+    // pedir outro nível com ?durability=, repassado aos peers na mesma query. Padrão: group nos
+    // segmentos (várias escritas por fsync do mesmo arquivo); write no files, onde cada fragment
+    // tem arquivo e diretório próprios e não há o que agrupar (ver StoreBenchmark)
+    private final FragmentStore.Durability durability;
+
+    // membros do cluster e anel de placement; trocado inteiro no /internal/rebalance
+    private static final String CLUSTER_CONFIG = System.getProperty("cluster.config");
+    private volatile ClusterConfig cluster;
+
+    // cópias de cada fragment no layout replicated
+    private static final int REPLICAS = 2;
+    private static final String PLACEMENT_RING = "ring";
+    // erasure com cada shard no seu trecho do anel (ver fragmentOwners); "ring" nos
+    // manifests erasure de antes continua com a caminhada única a partir do fileId
+    private static final String PLACEMENT_SHARD_RING = "ring-shards";
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    // quantos fragments o /download busca à frente do que está sendo escrito
+    private static final int DOWNLOAD_PREFETCH = Math.max(1, Integer.getInteger("download.prefetch", 2));
+
+    // framing binário do /internal/storeFragments (ver writeFragmentsBinary)
+    private static final String FRAGMENTS_BINARY_TYPE = "application/x-dfs-fragments";
+    private static final int FRAGMENTS_MAGIC = 0x44465346; // "DFSF"
+    private static final int FRAGMENTS_VERSION = 1;
+    private static final String FRAGMENTS_BINARY_PROTOCOL = "fragments-binary-v1";
+    // v2: cada fragment pode ir comprimido (o .z inteiro, como fica no disco)
+    private static final int FRAGMENTS_COMPRESSED_VERSION = 2;
+    private static final String FRAGMENTS_COMPRESSED_PROTOCOL = "fragments-binary-v2";
+    private static final long CAPABILITIES_TTL_MS = 60_000;
+
+    private final Map<Integer, PeerCapabilities> peerCapabilities = new ConcurrentHashMap<>();
+
+    // fragments lidos recentemente, fora do heap (-Dcache.maxBytes, 0 desliga)
+    private final FragmentCache fragmentCache = new FragmentCache(Long.getLong("cache.maxBytes", 64L * 1024 * 1024));
+
+    // manifests conhecidos pelo nó: montado no start, atualizado a cada saveManifestLocal
+    private final ManifestIndex manifestIndex = new ManifestIndex();
+    private static final int MAX_LIST_PAGE = 10_000;
+
+    // prazo total da replicação de um upload; o timeout de cada chamada interna sai da
+    // latência observada de cada peer (PeerClient.timeoutMillis). Leituras ganham ainda o
+    // tempo de transferir o corpo a READ_ALLOWANCE_BYTES_PER_MS (~20 MB/s)
+    private static final long READ_ALLOWANCE_BYTES_PER_MS = 20_000;
+    private static final long REPLICATION_DEADLINE_MS = Long.getLong("replication.deadlineMs", 10_000L);
+    private static final int REPLICATION_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MS = 100;
+
+    private final PeerClient peers = new PeerClient(
+            Integer.getInteger("peer.maxConnections", 8),
+            Long.getLong("peer.idleTimeoutMs", 10_000L),
+            id -> cluster.addressOf(id));
+
+    // batimentos entre os nós (-DfailureDetector.intervalMs, 0 desliga): peer suspeito fica
+    // fora das leituras, escritas, rebalance e anti-entropy até responder de novo
+    private final FailureDetector failureDetector;
+
+    // upload confirmado quando cada fragment (ou chunk) tem replication.ackQuorum cópias nos
+    // donos (padrão all = todas, como antes; ?quorum= no upload). Erasure: k shards nos
+    // donos, ou todos com all. Com quorum menor, as cópias que não chegaram viram hints
+    // guardados aqui e reenviados quando o dono volta (HintedHandoff). Até lá a escrita
+    // confirmada pode depender de um nó só: por isso é opcional
+    private static final int ALL_OWNERS = Integer.MAX_VALUE;
+    private static final int ACK_QUORUM = parseQuorum(System.getProperty("replication.ackQuorum", "all"));
+    private final HintedHandoff hints;
+
+    private final ExecutorService fragmentFetchPool = newTaskExecutor("fragment-fetch");
+    private final ExecutorService replicationPool = newTaskExecutor("replication");
+
+    private final ConnectionEngine engine;
+
+    // layout dos uploads novos (-Dstorage.layout): "replicated" = cada fragment em 2 nós;
+    // "erasure" = k data shards + m parity shards (Reed-Solomon), cada shard num nó;
+    // "cdc" = chunks cortados pelo conteúdo, guardados pelo hash e compartilhados entre
+    // arquivos (cada chunk em 2 nós). O download segue o layout gravado no manifest.
+    private static final String LAYOUT_REPLICATED = "replicated";
+    private static final String LAYOUT_ERASURE = "erasure";
+    private static final String LAYOUT_CDC = "cdc";
+    private final String storageLayout = System.getProperty("storage.layout", LAYOUT_REPLICATED);
+    private final ReedSolomon erasureCodec;
+    private final ContentChunker chunker;
+
+    // chunks são endereçados pelo hash: (hash, CHUNK_INDEX) no lugar de (fileId, index)
+    private static final int CHUNK_INDEX = FragmentStore.CHUNK_INDEX;
+    private static final String CHUNKS_BINARY_TYPE = "application/x-dfs-chunks";
+    private static final int CHUNKS_MAGIC = 0x44465343; // "DFSC"
+    private static final int CHUNKS_VERSION = 1;
+    private static final String CHUNKS_PROTOCOL = "chunks-v1";
+
+    // chunks que os donos já tinham (não enviados) x enviados, nos uploads deste nó
+    private final LongAdder chunksSent = new LongAdder();
+    private final LongAdder chunkBytesSent = new LongAdder();
+    private final LongAdder chunksDeduplicated = new LongAdder();
+    private final LongAdder chunkBytesDeduplicated = new LongAdder();
+
+    // compressão dos fragments novos (-Dcompression.codec, ver FragmentCodec); null = desligada.
+    // O <n>.frag.z é também o que vai p/ os peers e o que o getFragment devolve com ?encoding=z
+    private final FragmentCodec compressionCodec = FragmentCodec.byName(System.getProperty("compression.codec", "none"));
+    private static final String COMPRESSED_SUFFIX = ".z";
+    private static final String FRAGMENT_ENCODING = "x-dfs-z";
+    private final LongAdder fragmentsCompressed = new LongAdder();
+    private final LongAdder fragmentsIncompressible = new LongAdder();
+    private final LongAdder compressionRawBytes = new LongAdder();
+    private final LongAdder compressionStoredBytes = new LongAdder();
+
+    // hedged reads: fragment remoto pedido ao primeiro dono; sem resposta depois do percentil
+    // hedge.percentile das buscas recentes de tamanho parecido, pede também ao segundo e
+    // fica com a primeira resposta boa. hedge.maxRatio limita os pedidos extras (0 desliga)
+    private static final double HEDGE_PERCENTILE = Double.parseDouble(System.getProperty("hedge.percentile", "95"));
+    private static final double HEDGE_MAX_RATIO = Double.parseDouble(System.getProperty("hedge.maxRatio", "0.2"));
+    private static final long HEDGE_INITIAL_DELAY_MS = 100; // até juntar HEDGE_MIN_SAMPLES
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    private static final long HEDGE_MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int HEDGE_BURST = 10;
+    // latência das buscas remotas por tamanho: < 64 KB, < 1 MB, < 16 MB, maiores
+    private static final long[] FETCH_SIZE_CLASSES = { 64L << 10, 1L << 20, 16L << 20 };
+    private final LatencyTracker[] fetchLatency = new LatencyTracker[FETCH_SIZE_CLASSES.length + 1];
+    // milésimos de hedge: cada busca rende HEDGE_MAX_RATIO, cada hedge gasta 1
+    private final AtomicLong hedgeBudget = new AtomicLong(HEDGE_BURST * 1000L);
+    private final LongAdder remoteFetches = new LongAdder();
+    private final LongAdder fetchFailovers = new LongAdder();
+    private final LongAdder hedgesSent = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    // entre os donos, o primeiro pedido vai p/ o de menor PeerClient.score (latência x carga);
+    // REPLICA_EXPLORE_RATIO das buscas usa ordem sorteada p/ a medida dos outros não envelhecer
+    private static final double REPLICA_EXPLORE_RATIO = 0.05;
+    private final LongAdder replicaReorders = new LongAdder();
+
+    // anti-entropy (-DantiEntropy.intervalMs, 0 desliga): rodadas de árvore de Merkle com cada
+    // peer e scrub do disco; reparo e scrub limitados a antiEntropy.maxMBps no total
+    private static final long ANTI_ENTROPY_INTERVAL_MS = Long.getLong("antiEntropy.intervalMs", 60_000L);
+    private static final int MERKLE_DEPTH = 12;
+    private static final int MERKLE_STEP = 4; // níveis descidos por troca
+    private static final long MERKLE_TREE_TTL_MS = 60_000;
+    private static final int MAX_MERKLE_REQUEST = 1 << 20;
+    private static final long CHUNK_REPAIR_BATCH_BYTES = 4L * 1024 * 1024;
+    private static final String UNDECODABLE = "undecodable"; // "hash" de .z corrompido: nunca confere
+    private final RateLimiter repairLimiter = new RateLimiter(
+            (long) (Double.parseDouble(System.getProperty("antiEntropy.maxMBps", "8")) * 1024 * 1024));
+    private ScheduledExecutorService antiEntropy;
+    private final Object scrubLock = new Object();
+    // árvore que este nó montou p/ cada peer que está comparando com ele
+    private final Map<Integer, MerkleTree> servedTrees = new ConcurrentHashMap<>();
+    private volatile String lastAntiEntropyRound = "null";
+    private final LongAdder antiEntropyRounds = new LongAdder();
+    private final LongAdder merkleExchanges = new LongAdder();
+    private final LongAdder merkleDifferingLeaves = new LongAdder();
+    private final LongAdder repairedManifests = new LongAdder();
+    private final LongAdder repairedFragments = new LongAdder();
+    private final LongAdder repairedChunks = new LongAdder();
+    private final LongAdder repairBytes = new LongAdder();
+    private final LongAdder repairFailures = new LongAdder();
+    private final LongAdder repairConflicts = new LongAdder();
+    private final LongAdder scrubbedItems = new LongAdder();
+    private final LongAdder scrubbedBytes = new LongAdder();
+    private final LongAdder corruptRemoved = new LongAdder();
+    private final LongAdder shardsRebuilt = new LongAdder();
+    private final LongAdder scrubSkipped = new LongAdder();
+
+    // GET /metrics (ver Metrics): requisições por rota, bytes do caminho de dados e tempo de
+    // disco dos fragments. Rota fora da lista conta como "other" (path do cliente não vira label)
+    private static final String[] METRIC_ROUTES = { "/status", "/files", "/download", "/upload", "/metrics",
+            "/internal/heartbeat", "/internal/storeFragments", "/internal/stats", "/internal/capabilities",
+            "/internal/announceFile", "/internal/getFragment", "/internal/storeChunks", "/internal/hasChunks",
+            "/internal/getChunk", "/internal/listFragments", "/internal/rebalance", "/internal/merkle",
+            "/internal/merkleLeaves", "/internal/replayHints", "/internal/antiEntropy" };
+    private static final String OTHER_ROUTE = "other";
+    private final Map<String, Metrics.RequestStats> routeStats = new LinkedHashMap<>();
+    private final LongAdder bytesIngested = new LongAdder();
+    private final LongAdder bytesReplicated = new LongAdder();
+    private final LongAdder bytesServedToClients = new LongAdder();
+    private final LongAdder bytesServedToPeers = new LongAdder();
+    private final Metrics.Histogram diskReads = new Metrics.Histogram();
+    private final Metrics.Histogram diskWrites = new Metrics.Histogram();
+
+    public StorageNode(String nodeId, int port, ClusterConfig cluster) {
         this.nodeId = nodeId;
         this.port = port;
+        this.cluster = cluster;
         this.dataRoot = Paths.get("data", "node-" + nodeId);
+        this.store = FragmentStore.create(System.getProperty("storage.engine", "files"), dataRoot);
+        this.durability = FragmentStore.Durability.parse(System.getProperty("store.durability",
+                store instanceof SegmentStore ? "group" : "write"));
+        for (int i = 0; i < fetchLatency.length; i++) fetchLatency[i] = new LatencyTracker(30_000);
+        // só leitura depois daqui: as threads das requisições não disputam o mapa
+        for (String route : METRIC_ROUTES) routeStats.put(route, new Metrics.RequestStats());
+        routeStats.put(OTHER_ROUTE, new Metrics.RequestStats());
+        this.failureDetector = new FailureDetector(nodeId, this::otherMembers, (peer, timeoutMs) -> {
+            try {
+                peers.probe(peer, "/internal/heartbeat", timeoutMs); // qualquer status serve
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        if (ACK_QUORUM < 1) throw new IllegalArgumentException("Invalid replication.ackQuorum");
+        this.hints = new HintedHandoff(nodeId, dataRoot.resolve("hints"), peers, failureDetector::isAvailable,
+                id -> this.cluster.contains(id),
+                new RateLimiter(Long.getLong("hints.replayMaxMBps", 16L) * 1024 * 1024),
+                Long.getLong("hints.replayIntervalMs", 1000L));
+        this.engine = ConnectionEngine.create(System.getProperty("node.engine", "pool"), this::handleClient, this::handleRequest);
+
+        if (LAYOUT_ERASURE.equals(storageLayout)) {
+            int k = Integer.getInteger("erasure.dataShards", 3);
+            int m = Integer.getInteger("erasure.parityShards", 2);
+            if (k + m > cluster.size()) {
+                throw new IllegalArgumentException("erasure.dataShards + erasure.parityShards must be <= " + cluster.size());
+            }
+            this.erasureCodec = new ReedSolomon(k, m);
+            this.chunker = null;
+        } else if (LAYOUT_CDC.equals(storageLayout)) {
+            this.erasureCodec = null;
+            this.chunker = new ContentChunker(Integer.getInteger("cdc.avgChunkKB", 64) * 1024);
+        } else if (LAYOUT_REPLICATED.equals(storageLayout)) {
+            this.erasureCodec = null;
+            this.chunker = null;
+        } else {
+            throw new IllegalArgumentException("Unknown storage.layout: " + storageLayout);
+        }
     }
 
     public void start() throws IOException {
         Files.createDirectories(dataRoot);
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.printf("Node %s listening on port %d%n", nodeId, port);
-
-        while (true) {
-            Socket clientSocket = serverSocket.accept();
-            new Thread(() -> handleClient(clientSocket)).start();
+        deleteRecursively(dataRoot.resolve(".incoming")); // uploads interrompidos
+        store.start();
+        loadManifestIndex();
+        startAntiEntropy();
+        failureDetector.start();
+        hints.start();
+        Log.info("Node %s listening on port %d (engine=%s, store=%s, durability=%s, layout=%s, compression=%s, cluster=%d nodes)",
+                nodeId, port, engine.name(), store.name(), durability.label(),
+                erasureCodec != null ? storageLayout + " " + erasureCodec.dataShards() + "+" + erasureCodec.parityShards()
+                        : chunker != null ? storageLayout + " avg " + chunker.avgSize() / 1024 + "KB" : storageLayout,
+                compressionCodec != null ? compressionCodec.name() : "none", cluster.size());
+        if (!cluster.contains(Integer.parseInt(nodeId))) {
+            Log.warn("[%s] node is not in the cluster config, it will not own fragments", nodeId);
         }
+        engine.serve(port);
     }
 
     private void handleClient(Socket clientSocket) {
         try (Socket socket = clientSocket;
-             InputStream in = socket.getInputStream();
-             OutputStream out = socket.getOutputStream();
-             PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), true)) {
+             InputStream in = new BufferedInputStream(socket.getInputStream(), IO_BUFFER_SIZE);
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream(), IO_BUFFER_SIZE)) {
 
-            String requestLine = readLine(in);
-            if (requestLine == null || requestLine.isEmpty()) return;
+            socket.setSoTimeout(ConnectionEngine.KEEP_ALIVE_TIMEOUT_MS);
 
-            System.out.println("[" + nodeId + "] Request: " + requestLine);
+            // conexão persistente: atende as requisições em sequência (inclusive pipelined)
+            // até Connection: close, ociosidade ou o limite de requisições por conexão
+            for (int served = 1; ; served++) {
+                Exchange ex;
+                try {
+                    ex = readRequest(in, out, socket.getChannel(), served);
+                } catch (SocketTimeoutException e) {
+                    return; // conexão ociosa
+                }
+                if (ex == null) return;
 
-            String[] parts = requestLine.split(" ");
-            String method = parts.length > 0 ? parts[0] : "";
-            String rawPath = parts.length > 1 ? parts[1] : "";
+                handleRequest(ex);
+                out.flush();
 
-            // separa path e query (?fileId=...&name=...)
-            String path = rawPath;
-            String query = null;
-            int qPos = rawPath.indexOf('?');
-            if (qPos != -1) {
-                path = rawPath.substring(0, qPos);
-                query = rawPath.substring(qPos + 1);
+                // com o engine saturado, não segura worker esperando a próxima requisição
+                if (!ex.isKeepAlive() || !ex.isResponseStarted() || engine.queuedConnections() > 0) return;
+                if (!ex.body.drain(ConnectionEngine.MAX_DRAIN_BYTES)) return;
             }
+        } catch (IOException e) {
+            Log.warn("[%s] Error: %s", nodeId, e.getMessage());
+        }
+    }
 
-            int contentLength = -1;
-            while (true) {
-                String headerLine = readLine(in);
-                if (headerLine == null || headerLine.isEmpty()) break;
-                String lower = headerLine.toLowerCase();
-                if (lower.startsWith("content-length:")) {
-                    try {
-                        contentLength = Integer.parseInt(headerLine.split(":", 2)[1].trim());
-                    } catch (NumberFormatException ignored) { }
-                }
-            }
+    private Exchange readRequest(InputStream in, OutputStream out, WritableByteChannel channel, int served) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) return null;
 
-            // ======== ROTAS EXTERNAS ========
-            if ("GET".equalsIgnoreCase(method) && "/status".equals(path)) {
-                sendPlain(writer, out, 200, "OK");
-                return;
+        Map<String, String> headers = new HashMap<>();
+        while (true) {
+            String headerLine = readLine(in);
+            if (headerLine == null || headerLine.isEmpty()) break;
+            int colon = headerLine.indexOf(':');
+            if (colon > 0) {
+                headers.put(headerLine.substring(0, colon).trim().toLowerCase(), headerLine.substring(colon + 1).trim());
             }
+        }
 
-            if ("GET".equalsIgnoreCase(method) && "/files".equals(path)) {
-                handleListFiles(writer, out);
-                return;
-            }
+        return new Exchange(requestLine, headers, in, out, channel, served < ConnectionEngine.MAX_REQUESTS_PER_CONNECTION);
+    }
 
-            if ("GET".equalsIgnoreCase(method) && "/download".equals(path)) {
-                handleDownload(writer, out, query);
-                return;
-            }
+    private void handleRequest(Exchange ex) throws IOException {
+        if (!"/internal/heartbeat".equals(ex.path)) Log.info("[%s] Request: %s", nodeId, ex.requestLine);
+        long start = System.nanoTime();
+        try {
+            route(ex);
+        } finally {
+            Metrics.RequestStats stats = routeStats.get(ex.path);
+            (stats != null ? stats : routeStats.get(OTHER_ROUTE)).record(ex.status(), System.nanoTime() - start);
+            // getFragment/getChunk: só o que saiu inteiro (a resposta sempre tem Content-Length)
+            if (ex.status() == 200 && ex.path.startsWith("/internal/get")) bytesServedToPeers.add(ex.responseLength());
+        }
+    }
 
-            if ("POST".equalsIgnoreCase(method) && "/upload".equals(path)) {
-                handleUpload(writer, out, in, contentLength, query);
-                return;
-            }
+    private void route(Exchange ex) throws IOException {
+        String method = ex.method;
+        String path = ex.path;
 
-            // ======== ROTAS INTERNAS ========
-            if ("POST".equalsIgnoreCase(method) && "/internal/storeFragments".equals(path)) {
-                handleInternalStoreFragments(writer, out, in, contentLength);
-                return;
-            }
+        // ======== ROTAS EXTERNAS ========
+        if ("GET".equalsIgnoreCase(method) && "/status".equals(path)) {
+            sendPlain(ex, 200, "OK");
+            return;
+        }
 
-            if ("POST".equalsIgnoreCase(method) && "/internal/announceFile".equals(path)) {
-                handleInternalAnnounceFile(writer, out, in, contentLength);
-                return;
-            }
+        if ("GET".equalsIgnoreCase(method) && "/files".equals(path)) {
+            handleListFiles(ex);
+            return;
+        }
 
-            if ("GET".equalsIgnoreCase(method) && "/internal/getFragment".equals(path)) {
-                handleInternalGetFragment(writer, out, query);
-                return;
+        if ("GET".equalsIgnoreCase(method) && "/download".equals(path)) {
+            handleDownload(ex);
+            return;
+        }
+
+        if ("POST".equalsIgnoreCase(method) && "/upload".equals(path)) {
+            handleUpload(ex);
+            return;
+        }
+
+        if ("GET".equalsIgnoreCase(method) && "/metrics".equals(path)) {
+            byte[] bytes = buildMetrics().getBytes(StandardCharsets.UTF_8);
+            ex.writeHead(200, Metrics.CONTENT_TYPE, bytes.length);
+            ex.out.write(bytes);
+            return;
+        }
+
+        // ======== ROTAS INTERNAS ========
+        if ("GET".equalsIgnoreCase(method) && "/internal/heartbeat".equals(path)) {
+            sendPlain(ex, 200, "OK");
+            return;
+        }
+
+        if ("POST".equalsIgnoreCase(method) && "/internal/storeFragments".equals(path)) {
+            if (ex.contentType.startsWith(FRAGMENTS_BINARY_TYPE)) {
+                handleInternalStoreFragmentsBinary(ex);
+            } else {
+                handleInternalStoreFragments(ex);
             }
+            return;
+        }
 
-            sendPlain(writer, out, 404, "Not Found");
+        if ("GET".equalsIgnoreCase(method) && "/internal/stats".equals(path)) {
+            sendJson(ex, 200, buildStatsJson());
+            return;
+        }
 
-        } catch (IOException e) {
-            System.err.println("[" + nodeId + "] Error: " + e.getMessage());
+        if ("GET".equalsIgnoreCase(method) && "/internal/capabilities".equals(path)) {
+            sendJson(ex, 200, "{\"protocols\":[\"fragments-json\",\"" + FRAGMENTS_BINARY_PROTOCOL + "\",\""
+                    + FRAGMENTS_COMPRESSED_PROTOCOL + "\",\"" + CHUNKS_PROTOCOL + "\"]}");
+            return;
+        }
+
+        if ("POST".equalsIgnoreCase(method) && "/internal/announceFile".equals(path)) {
+            handleInternalAnnounceFile(ex);
+            return;
+        }
+
+        if ("GET".equalsIgnoreCase(method) && "/internal/getFragment".equals(path)) {
+            handleInternalGetFragment(ex);
+            return;
+        }
+
+        if ("POST".equalsIgnoreCase(method) && "/internal/storeChunks".equals(path)) {
+            handleInternalStoreChunks(ex);
+            return;
+        }
+
+        if ("POST".equalsIgnoreCase(method) && "/internal/hasChunks".equals(path)) {
+            handleInternalHasChunks(ex);
+            return;
+        }
+
+        if ("GET".equalsIgnoreCase(method) && "/internal/getChunk".equals(path)) {
+            handleInternalGetFragment(ex);
+            return;
+        }
+
+        if ("GET".equalsIgnoreCase(method) && "/internal/listFragments".equals(path)) {
+            handleInternalListFragments(ex);
+            return;
+        }
+
+        if ("POST".equalsIgnoreCase(method) && "/internal/rebalance".equals(path)) {
+            handleInternalRebalance(ex);
+            return;
+        }
+
+        if ("POST".equalsIgnoreCase(method) && ("/internal/merkle".equals(path) || "/internal/merkleLeaves".equals(path))) {
+            handleInternalMerkle(ex);
+            return;
         }
+
+        if ("POST".equalsIgnoreCase(method) && "/internal/replayHints".equals(path)) {
+            sendJson(ex, 200, hints.replay());
+            return;
+        }
+
+        if ("POST".equalsIgnoreCase(method) && "/internal/antiEntropy".equals(path)) {
+            handleInternalAntiEntropy(ex);
+            return;
+        }
+
+        sendPlain(ex, 404, "Not Found");
     }
 
     // ================================
     //  UPLOAD
     // ================================
 
-    private void handleUpload(PrintWriter writer, OutputStream out, InputStream in, int contentLength, String query) throws IOException {
+    private void handleUpload(Exchange ex) throws IOException {
+        long contentLength = ex.contentLength;
         if (contentLength < 0) {
-            sendPlain(writer, out, 411, "Content-Length required");
+            sendPlain(ex, 411, "Content-Length required");
+            return;
+        }
+
+        Map<String, String> params = parseQuery(ex.query);
+        FragmentStore.Durability durability = requestDurability(params);
+        if (durability == null) {
+            sendPlain(ex, 400, "Invalid durability");
+            return;
+        }
+        int quorum = params.containsKey("quorum") ? parseQuorum(params.get("quorum")) : ACK_QUORUM;
+        if (quorum < 1) {
+            sendPlain(ex, 400, "Invalid quorum");
             return;
         }
 
-        byte[] fileBytes = readFixed(in, contentLength);
-        System.out.printf("[%s] Received upload: %d bytes%n", nodeId, fileBytes.length);
+        Log.info("[%s] Receiving upload: %d bytes", nodeId, contentLength);
 
-        String fileId = sha256Hex(fileBytes);
-        System.out.printf("[%s] FileId = %s%n", nodeId, fileId);
+        // o fileId (sha256 do conteúdo) só é conhecido no último byte, então os
+        // fragments vão para uma área de staging enquanto o corpo chega
+        Path stagingDir = dataRoot.resolve(".incoming").resolve(UUID.randomUUID().toString());
+        Files.createDirectories(stagingDir);
 
-        // pega nome amigável da query (?name=...)
-        Map<String, String> params = parseQuery(query);
-        String originalName = params.get("name");
-        if (originalName == null || originalName.isEmpty()) {
-            originalName = "file-" + fileId.substring(0, 8);
-        }
-        System.out.printf("[%s] Original name = %s%n", nodeId, originalName);
+        try {
+            MessageDigest fileDigest = newSha256();
+            List<Chunk> chunks = null;
+            List<Fragment> fragments;
+            if (chunker != null) {
+                chunks = spoolChunks(ex.body, contentLength, stagingDir.resolve("body"), fileDigest);
+                // no manifest cada chunk vira um "fragment" (índice, tamanho, hash)
+                fragments = new ArrayList<>();
+                for (Chunk c : chunks) fragments.add(new Fragment(fragments.size(), null, c.size, c.hash));
+            } else if (erasureCodec != null) {
+                fragments = spoolErasureShards(ex.body, contentLength, stagingDir, fileDigest);
+            } else {
+                fragments = spoolFragments(ex.body, contentLength, stagingDir, fileDigest);
+            }
+            if (compressionCodec != null && chunks == null) {
+                compressFragments(fragments, stagingDir);
+            }
+
+            String fileId = toHex(fileDigest.digest());
+            Log.info("[%s] FileId = %s", nodeId, fileId);
+
+            // pega nome amigável da query (?name=...)
+            String originalName = params.get("name");
+            if (originalName == null || originalName.isEmpty()) {
+                originalName = "file-" + fileId.substring(0, 8);
+            }
+            Log.info("[%s] Original name = %s", nodeId, originalName);
+
+            // 1) Replicação: chunks só p/ os donos que ainda não os têm; fragments p/ os outros nós
+            if (chunks != null) {
+                if (!storeChunks(chunks, durability, quorum)) {
+                    sendPlain(ex, 500, "Replication failed");
+                    return;
+                }
+            } else {
+                // nó -> fragments que ele guarda
+                Map<Integer, List<Fragment>> placement = new TreeMap<>();
+                for (Fragment f : fragments) {
+                    int[] owners = fragmentOwners(fileId, f.index, erasureCodec != null, fragments.size(), newPlacement(erasureCodec != null));
+                    for (int node : owners) {
+                        placement.computeIfAbsent(node, n -> new ArrayList<>()).add(f);
+                    }
+                }
+
+                List<Fragment> local = placement.remove(Integer.parseInt(nodeId));
+
+                if (!replicateFragments(fileId, fragments, placement, durability, quorum)) {
+                    sendPlain(ex, 500, "Replication failed");
+                    return;
+                }
+
+                // depois dos peers: no engine files o put move o arquivo do staging. O .z vai
+                // p/ o store e o cru fica no staging (só servia p/ peers sem o v2)
+                for (Fragment f : local != null ? local : Collections.<Fragment>emptyList()) {
+                    long start = System.nanoTime();
+                    store.put(fileId, f.index, f.compressed, f.compressed ? f.compressedFile : f.file, durability);
+                    diskWrites.record(System.nanoTime() - start);
+                    if (Log.sample()) Log.info("[%s] Saved fragment %d locally", nodeId, f.index);
+                }
+            }
+
+            // 2) Geração do manifest (fileId + originalName + tamanho + hash de cada fragment)
+            String manifestJson = buildManifestJson(fileId, originalName, contentLength, fragments, erasureCodec,
+                    chunks != null);
 
-        int total = fileBytes.length;
-        int parts = TOTAL_NODES;
-        int baseSize = total / parts;
-        int remainder = total % parts;
+            // 3) Salva manifest localmente
+            saveManifestLocal(fileId, manifestJson, durability);
 
-        int nodeIndex = Integer.parseInt(nodeId) - 1;
-        int myFrag1 = nodeIndex;
-        int myFrag2 = (nodeIndex + 1) % parts;
+            // 4) Anuncia o arquivo para os outros nós
+            announceManifestToPeers(fileId, manifestJson, durability);
 
-        Path fileDir = dataRoot.resolve(fileId);
-        Path fragmentsDir = fileDir.resolve("fragments");
-        Files.createDirectories(fragmentsDir);
+            bytesIngested.add(contentLength);
+            sendPlain(ex, 201, "Uploaded");
+        } finally {
+            deleteRecursively(stagingDir);
+        }
+    }
+
+    // <n>.frag.z ao lado de cada fragment do staging, quando a amostra e o total encolhem o bastante
+    private void compressFragments(List<Fragment> fragments, Path stagingDir) throws IOException {
+        for (Fragment f : fragments) {
+            Path zPath = stagingDir.resolve(f.index + ".frag" + COMPRESSED_SUFFIX);
+            if (compressionCodec.compressFile(f.file, zPath)) {
+                f.compressed = true;
+                f.compressedFile = zPath;
+                f.compressedSize = Files.size(zPath);
+                fragmentsCompressed.increment();
+                compressionRawBytes.add(f.size);
+                compressionStoredBytes.add(f.compressedSize);
+            } else {
+                fragmentsIncompressible.increment();
+            }
+        }
+    }
 
+    // corpo dividido em um fragment contíguo por nó do cluster
+    private List<Fragment> spoolFragments(InputStream in, long contentLength, Path stagingDir,
+                                          MessageDigest fileDigest) throws IOException {
+        int parts = cluster.size();
+        long baseSize = contentLength / parts;
+        long remainder = contentLength % parts;
+
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
         List<Fragment> fragments = new ArrayList<>();
-        int offset = 0;
 
         for (int i = 0; i < parts; i++) {
-            int partSize = baseSize + (i < remainder ? 1 : 0);
-            byte[] fragment = new byte[partSize];
-            if (partSize > 0) System.arraycopy(fileBytes, offset, fragment, 0, partSize);
+            long partSize = baseSize + (i < remainder ? 1 : 0);
+            Path spoolPath = stagingDir.resolve(i + ".frag");
+            MessageDigest fragDigest = newSha256();
+
+            try (OutputStream fos = Files.newOutputStream(spoolPath)) {
+                copyExactly(in, fos, partSize, buffer, fileDigest, fragDigest);
+            }
+
+            String hash = toHex(fragDigest.digest());
+            if (Log.sample()) Log.info("[%s] Fragment %d: %d bytes, hash=%s", nodeId, i, partSize, hash);
+
+            fragments.add(new Fragment(i, spoolPath, partSize, hash));
+        }
+        return fragments;
+    }
 
-            String hash = sha256Hex(fragment);
-            System.out.printf("[%s] Fragment %d: %d bytes, hash=%s%n", nodeId, i, partSize, hash);
+    // k data shards contíguos de ceil(size/k) bytes (o último completado com zeros)
+    // + m parity shards calculados em blocos a partir dos data shards já no disco
+    private List<Fragment> spoolErasureShards(InputStream in, long contentLength, Path stagingDir,
+                                              MessageDigest fileDigest) throws IOException {
+        int k = erasureCodec.dataShards();
+        int m = erasureCodec.parityShards();
+        long shardSize = (contentLength + k - 1) / k;
+
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        List<Fragment> shards = new ArrayList<>();
+
+        for (int i = 0; i < k; i++) {
+            long dataSize = Math.max(0, Math.min(shardSize, contentLength - i * shardSize));
+            Path spoolPath = stagingDir.resolve(i + ".frag");
+            MessageDigest shardDigest = newSha256();
+
+            try (OutputStream fos = Files.newOutputStream(spoolPath)) {
+                copyExactly(in, fos, dataSize, buffer, fileDigest, shardDigest);
+                Arrays.fill(buffer, (byte) 0);
+                for (long pad = shardSize - dataSize; pad > 0; ) {
+                    int n = (int) Math.min(buffer.length, pad);
+                    fos.write(buffer, 0, n);
+                    shardDigest.update(buffer, 0, n);
+                    pad -= n;
+                }
+            }
+            shards.add(new Fragment(i, spoolPath, shardSize, toHex(shardDigest.digest())));
+        }
 
-            fragments.add(new Fragment(i, fragment, hash));
+        InputStream[] dataIn = new InputStream[k];
+        OutputStream[] parityOut = new OutputStream[m];
+        MessageDigest[] parityDigest = new MessageDigest[m];
+        try {
+            for (int i = 0; i < k; i++) {
+                dataIn[i] = Files.newInputStream(shards.get(i).file);
+            }
+            for (int r = 0; r < m; r++) {
+                parityOut[r] = Files.newOutputStream(stagingDir.resolve((k + r) + ".frag"));
+                parityDigest[r] = newSha256();
+            }
 
-            if (i == myFrag1 || i == myFrag2) {
-                Path fragPath = fragmentsDir.resolve(i + ".frag");
-                Files.write(fragPath, fragment);
-                System.out.printf("[%s] Saved fragment %d locally%n", nodeId, i);
+            byte[][] dataBlocks = new byte[k][IO_BUFFER_SIZE];
+            byte[][] parityBlocks = new byte[m][IO_BUFFER_SIZE];
+            for (long done = 0; done < shardSize; ) {
+                int n = (int) Math.min(IO_BUFFER_SIZE, shardSize - done);
+                for (int i = 0; i < k; i++) {
+                    if (dataIn[i].readNBytes(dataBlocks[i], 0, n) != n) throw new EOFException("Short shard spool");
+                }
+                erasureCodec.encodeParity(dataBlocks, parityBlocks, 0, n);
+                for (int r = 0; r < m; r++) {
+                    parityOut[r].write(parityBlocks[r], 0, n);
+                    parityDigest[r].update(parityBlocks[r], 0, n);
+                }
+                done += n;
             }
+        } finally {
+            for (InputStream s : dataIn) if (s != null) s.close();
+            for (OutputStream s : parityOut) if (s != null) s.close();
+        }
+
+        for (int r = 0; r < m; r++) {
+            shards.add(new Fragment(k + r, stagingDir.resolve((k + r) + ".frag"), shardSize, toHex(parityDigest[r].digest())));
+        }
+        for (Fragment f : shards) {
+            if (Log.sample()) Log.info("[%s] Shard %d (%s): %d bytes, hash=%s",
+                    nodeId, f.index, f.index < k ? "data" : "parity", f.size, f.hash);
+        }
+        return shards;
+    }
 
-            offset += partSize;
+    // corpo cortado em chunks pelo conteúdo (ContentChunker) e gravado inteiro no spool;
+    // cada chunk guarda a posição no spool e o próprio sha256
+    private List<Chunk> spoolChunks(InputStream in, long contentLength, Path spool,
+                                    MessageDigest fileDigest) throws IOException {
+        int maxChunk = chunker.maxSize();
+        byte[] buffer = new byte[maxChunk * 2];
+        int start = 0;
+        int end = 0;
+        long remaining = contentLength;
+        long offset = 0;
+        List<Chunk> chunks = new ArrayList<>();
+
+        try (OutputStream out = Files.newOutputStream(spool)) {
+            while (true) {
+                // o chunker precisa de maxChunk bytes à frente (menos só no fim do corpo)
+                if (end - start < maxChunk && remaining > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    while (end < buffer.length && remaining > 0) {
+                        int r = in.read(buffer, end, (int) Math.min(buffer.length - end, remaining));
+                        if (r == -1) throw new IOException("Unexpected end of stream");
+                        end += r;
+                        remaining -= r;
+                    }
+                }
+                if (start == end) break;
+
+                int length = chunker.cut(buffer, start, end - start);
+                MessageDigest chunkDigest = newSha256();
+                chunkDigest.update(buffer, start, length);
+                fileDigest.update(buffer, start, length);
+                out.write(buffer, start, length);
+                chunks.add(new Chunk(toHex(chunkDigest.digest()), spool, offset, length));
+                offset += length;
+                start += length;
+            }
         }
+        Log.info("[%s] %d chunks (avg %d bytes)", nodeId, chunks.size(),
+                chunks.isEmpty() ? 0 : contentLength / chunks.size());
+        return chunks;
+    }
 
-        // 1) Replicação dos fragments para os outros nós
-        if (!sendFragmentsToPeers(fileId, fragments, myFrag1, myFrag2)) {
-            sendPlain(writer, out, 500, "Replication failed");
-            return;
+    // nós donos do fragment. Placement no anel: replicated = REPLICAS nós distintos a partir
+    // de fileId:index; erasure ("ring-shards") = shard i no primeiro nó a partir de
+    // fileId:i que nenhum shard anterior usa, então um nó a mais só leva os shards cujo
+    // trecho ele tomou. Erasure em "ring" (manifests de antes) = os k+m primeiros nós
+    // distintos a partir do fileId. Manifests sem placement usam a regra fixa antiga
+    private int[] fragmentOwners(String fileId, int index, boolean erasure, int totalFragments, String placement) {
+        if (!isRingPlacement(placement)) {
+            return erasure
+                    ? new int[] { legacyShardNode(fileId, index) }
+                    : legacyReplicaNodes(index, totalFragments);
         }
+        if (erasure) {
+            int[] nodes = PLACEMENT_SHARD_RING.equals(placement)
+                    ? cluster.ring().nodesForShards(fileId, totalFragments)
+                    : cluster.ring().nodesFor(fileId, totalFragments);
+            return new int[] { nodes[index % nodes.length] };
+        }
+        return cluster.ring().nodesFor(fileId + ":" + index, REPLICAS);
+    }
+
+    private static boolean isRingPlacement(String placement) {
+        return PLACEMENT_RING.equals(placement) || PLACEMENT_SHARD_RING.equals(placement);
+    }
 
-        // 2) Geração do manifest (só com fileId + originalName + totalFragments)
-        String manifestJson = buildManifestJson(fileId, originalName);
+    // placement gravado nos manifests novos
+    private static String newPlacement(boolean erasure) {
+        return erasure ? PLACEMENT_SHARD_RING : PLACEMENT_RING;
+    }
+
+    // donos primeiro e o resto do cluster depois: depois de uma mudança de membros o
+    // fragment pode ainda estar no dono antigo até o rebalance terminar
+    private int[] fragmentHolders(int[] owners) {
+        int[] holders = Arrays.copyOf(owners, owners.length + cluster.size());
+        int n = owners.length;
+        for (ClusterConfig.Member m : cluster.members()) {
+            boolean owner = false;
+            for (int o : owners) owner |= o == m.id;
+            if (!owner) holders[n++] = m.id;
+        }
+        return Arrays.copyOf(holders, n);
+    }
 
-        // 3) Salva manifest localmente
-        saveManifestLocal(fileId, manifestJson);
+    // regra antiga (5 nós fixos): fragment i nos nós i+1 e (i-1+N)%N+1
+    private int[] legacyReplicaNodes(int index, int totalFragments) {
+        return new int[] { index + 1, ((index - 1 + totalFragments) % totalFragments) + 1 };
+    }
 
-        // 4) Anuncia o arquivo para os outros nós
-        announceManifestToPeers(fileId, manifestJson);
+    // regra antiga do erasure: um shard por nó a partir de um nó derivado do fileId
+    private int legacyShardNode(String fileId, int index) {
+        int start = Integer.parseInt(fileId.substring(0, 2), 16) % ClusterConfig.LEGACY_NODES;
+        return ((start + index) % ClusterConfig.LEGACY_NODES) + 1;
+    }
 
-        sendPlain(writer, out, 201, "Uploaded");
+    // layout cdc: REPLICAS nós a partir do hash do chunk (o mesmo chunk em arquivos
+    // diferentes cai sempre nos mesmos nós)
+    private int[] chunkOwners(String hash) {
+        return cluster.ring().nodesFor(hash, REPLICAS);
     }
 
     // ================================
     //  SEND FRAGMENTS TO PEERS
     // ================================
 
-    private boolean sendFragmentsToPeers(String fileId, List<Fragment> fragments, int myFrag1, int myFrag2) {
-        for (int node = 0; node < TOTAL_NODES; node++) {
-            if (node == (Integer.parseInt(nodeId) - 1)) continue;
-
-            int frag1 = node;
-            int frag2 = (node + 1) % TOTAL_NODES;
-
-            List<Fragment> sendList = new ArrayList<>();
-            sendList.add(fragments.get(frag1));
-            sendList.add(fragments.get(frag2));
-
-            boolean ok = false;
+    // envia para todos os peers em paralelo: a latência passa a ser a do peer mais lento,
+    // não a soma de todos; na primeira falha o resto é cancelado
+    private boolean sendFragmentsToPeers(String fileId, Map<Integer, List<Fragment>> placement,
+                                         FragmentStore.Durability durability) {
+        return sendFragmentsToPeers(fileId, placement, durability, true).isEmpty();
+    }
 
-            for (int attempt = 1; attempt <= 3; attempt++) {
-                System.out.printf("[%s] Sending fragments %d and %d to node %d (attempt %d)%n",
-                        nodeId, frag1, frag2, (node+1), attempt);
+    // nós que não confirmaram; sem failFast todos são tentados até o fim
+    private Set<Integer> sendFragmentsToPeers(String fileId, Map<Integer, List<Fragment>> placement,
+                                              FragmentStore.Durability durability, boolean failFast) {
+        List<Integer> targets = new ArrayList<>(placement.keySet());
+
+        FanOut fanOut = new FanOut(REPLICATION_DEADLINE_MS);
+        fanOut.run(targets, "fragments", failFast, (targetNodeId, attempt) -> {
+            List<Fragment> sendList = placement.get(targetNodeId);
+
+            List<Integer> indexes = new ArrayList<>();
+            for (Fragment f : sendList) indexes.add(f.index);
+            Log.debug("[%s] Sending fragments %s to node %d (attempt %d)",
+                    nodeId, indexes, targetNodeId, attempt);
+            return sendFragmentsToNode(targetNodeId, fileId, sendList, durability, fanOut);
+        });
+        return fanOut.failed;
+    }
 
-                try {
-                    ok = sendFragmentsToNode(node + 1, fileId, sendList);
-                    if (ok) break;
-                } catch (Exception ignored) { }
+    // fragments do upload p/ os donos remotos (a cópia local é gravada depois, sempre);
+    // o que não chegou vira hint, se o quorum foi atingido sem ele
+    private boolean replicateFragments(String fileId, List<Fragment> fragments, Map<Integer, List<Fragment>> placement,
+                                       FragmentStore.Durability durability, int quorum) throws IOException {
+        Set<Integer> failed = sendFragmentsToPeers(fileId, placement, durability, quorum == ALL_OWNERS);
+        if (failed.isEmpty()) return true;
+
+        boolean erasure = erasureCodec != null;
+        int shardsAcked = 0;
+        for (Fragment f : fragments) {
+            int[] owners = fragmentOwners(fileId, f.index, erasure, fragments.size(), newPlacement(erasure));
+            int acked = 0;
+            for (int node : owners) if (!failed.contains(node)) acked++;
+            shardsAcked += acked;
+            if (!erasure && acked < Math.min(quorum, owners.length)) {
+                Log.warn("[%s] Fragment %d of %s on %d of %d owners, quorum not met",
+                        nodeId, f.index, fileId, acked, owners.length);
+                return false;
             }
-
-            if (!ok) {
-                System.out.printf("[%s] FAILED sending to node %d%n", nodeId, node+1);
+        }
+        if (erasure) {
+            // com k shards nos donos o arquivo já pode ser lido (e os que faltam, decodificados)
+            int shardQuorum = quorum == ALL_OWNERS ? fragments.size() : erasureCodec.dataShards();
+            if (shardsAcked < shardQuorum) {
+                Log.warn("[%s] %d of %d shards of %s on their owners, need %d",
+                        nodeId, shardsAcked, fragments.size(), fileId, shardQuorum);
                 return false;
             }
         }
+
+        for (int target : failed) {
+            if (!hintFragments(target, fileId, placement.get(target), durability)) return false;
+        }
         return true;
     }
 
-    private boolean sendFragmentsToNode(int targetNodeId, String fileId, List<Fragment> frags) throws IOException {
-        URL url = new URL("http://localhost:500" + targetNodeId + "/internal/storeFragments");
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setConnectTimeout(2000);
-        conn.setReadTimeout(2000);
-        conn.setRequestMethod("POST");
-        conn.setDoOutput(true);
-        conn.setRequestProperty("Content-Type", "application/json");
+    // o frame que o nó aceitava da última vez que respondeu (v1 se nunca respondeu)
+    private boolean hintFragments(int target, String fileId, List<Fragment> frags, FragmentStore.Durability durability) {
+        PeerCapabilities cached = peerCapabilities.get(target);
+        int version = cached != null ? cached.fragmentsVersion : FRAGMENTS_VERSION;
+        List<String> expect = new ArrayList<>();
+        for (Fragment f : frags) expect.add(f.hash);
+        String url = "/internal/storeFragments?durability=" + durability.label();
+        try {
+            if (version > 0) {
+                hints.add(target, url, FRAGMENTS_BINARY_TYPE, expect, fragmentsBinaryLength(fileId, frags, version),
+                        os -> writeFragmentsBinary(os, fileId, frags, version), durability);
+            } else {
+                hints.add(target, url, "application/json", expect, fragmentsJsonLength(fileId, frags),
+                        os -> writeFragmentsJson(os, fileId, frags), durability);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.warn("[%s] Could not store hint for node %d: %s", nodeId, target, e.getMessage());
+            return false;
+        }
+    }
 
-        String json = buildFragmentsJson(fileId, frags);
+    private boolean sendFragmentsToNode(int targetNodeId, String fileId, List<Fragment> frags,
+                                        FragmentStore.Durability durability, FanOut fanOut) throws IOException {
+        return sendFragmentsToNode(targetNodeId, fileId, frags, durability, () -> fanOut.timeoutMillis(targetNodeId), null);
+    }
 
-        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
-        conn.setRequestProperty("Content-Length", String.valueOf(jsonBytes.length));
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(jsonBytes);
+    // limiter != null: corpo enviado no ritmo dele (reparo do anti-entropy)
+    private boolean sendFragmentsToNode(int targetNodeId, String fileId, List<Fragment> frags,
+                                        FragmentStore.Durability durability, IntSupplier timeoutMs,
+                                        RateLimiter limiter) throws IOException {
+        int version = peerFragmentsVersion(targetNodeId, timeoutMs.getAsInt());
+        String url = "/internal/storeFragments?durability=" + durability.label();
+
+        // corpo gerado direto dos arquivos dos fragments, sem montar o payload em memória
+        PeerClient.Response resp;
+        long length;
+        if (version > 0) {
+            length = fragmentsBinaryLength(fileId, frags, version);
+            resp = peers.post(targetNodeId, url, FRAGMENTS_BINARY_TYPE, length,
+                    os -> writeFragmentsBinary(limiter != null ? limiter.throttle(os) : os, fileId, frags, version),
+                    timeoutMs.getAsInt());
+        } else {
+            length = fragmentsJsonLength(fileId, frags);
+            resp = peers.post(targetNodeId, url, "application/json", length,
+                    os -> writeFragmentsJson(limiter != null ? limiter.throttle(os) : os, fileId, frags),
+                    timeoutMs.getAsInt());
         }
 
-        int status = conn.getResponseCode();
-        if (status != 200) return false;
-
-        String response = new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (resp.status != 200) return false;
 
-        Map<Integer, String> remoteHashes = parseResponseHashes(response);
+        Map<Integer, String> remoteHashes = parseResponseHashes(resp.bodyString());
 
         for (Fragment f : frags) {
             String hashRemote = remoteHashes.get(f.index);
             if (!f.hash.equals(hashRemote)) {
-                System.out.printf("[%s] Hash mismatch on fragment %d (local=%s, remote=%s)%n",
+                Log.warn("[%s] Hash mismatch on fragment %d (local=%s, remote=%s)",
                         nodeId, f.index, f.hash, hashRemote);
                 return false;
             }
         }
+        bytesReplicated.add(length);
         return true;
     }
 
+    // versão do frame binário que o nó aceita: 0 = só JSON (nós de versões antigas não
+    // conhecem /internal/capabilities e respondem 404), 1 = binário cru, 2 = binário com .z
+    private int peerFragmentsVersion(int targetNodeId, int timeoutMs) throws IOException {
+        PeerCapabilities cached = peerCapabilities.get(targetNodeId);
+        if (cached != null && System.currentTimeMillis() - cached.checkedAt < CAPABILITIES_TTL_MS) {
+            return cached.fragmentsVersion;
+        }
+
+        // nó fora do ar: a exceção sobe e conta como tentativa falha, nada fica em cache
+        PeerClient.Response resp = peers.get(targetNodeId, "/internal/capabilities", timeoutMs);
+
+        String body = resp.status == 200 ? resp.bodyString() : "";
+        int version = body.contains("\"" + FRAGMENTS_COMPRESSED_PROTOCOL + "\"") ? FRAGMENTS_COMPRESSED_VERSION
+                : body.contains("\"" + FRAGMENTS_BINARY_PROTOCOL + "\"") ? FRAGMENTS_VERSION : 0;
+        peerCapabilities.put(targetNodeId, new PeerCapabilities(version, System.currentTimeMillis()));
+        Log.info("[%s] Node %d fragment protocol: %s", nodeId, targetNodeId,
+                version > 0 ? "binary v" + version : "json");
+        return version;
+    }
+
     // ================================
-    //  INTERNAL: STORE FRAGMENTS
+    //  CHUNKS (layout cdc)
+    //
+    //  Cada chunk vai p/ os donos do hash dele. Antes de mandar, cada dono diz quais já
+    //  tem (/internal/hasChunks): um chunk já guardado por causa de outro arquivo, ou de
+    //  outra versão deste, não é regravado nem reenviado.
     // ================================
 
-    private void handleInternalStoreFragments(PrintWriter writer, OutputStream out, InputStream in, int contentLength) throws IOException {
-        String body = new String(readFixed(in, contentLength), StandardCharsets.UTF_8);
+    private boolean storeChunks(List<Chunk> chunks, FragmentStore.Durability durability, int quorum) throws IOException {
+        // nó -> chunks dele, sem repetir chunks iguais dentro do arquivo
+        Map<Integer, Map<String, Chunk>> placement = new TreeMap<>();
+        for (Chunk c : chunks) {
+            for (int node : chunkOwners(c.hash)) {
+                placement.computeIfAbsent(node, n -> new LinkedHashMap<>()).putIfAbsent(c.hash, c);
+            }
+        }
 
-        Map<String, Object> parsed = parseJson(body);
+        Map<String, Chunk> local = placement.remove(Integer.parseInt(nodeId));
+        if (local != null) {
+            int written = 0;
+            for (Chunk c : local.values()) {
+                if (storeChunkLocal(c, durability)) written++;
+            }
+            Log.info("[%s] Stored %d new chunks locally (%d already present)",
+                    nodeId, written, local.size() - written);
+        }
 
-        String fileId = (String) parsed.get("fileId");
-        List<Map<String, String>> fragList = (List<Map<String, String>>) parsed.get("fragments");
+        FanOut fanOut = new FanOut(REPLICATION_DEADLINE_MS);
+        fanOut.run(new ArrayList<>(placement.keySet()), "chunks", quorum == ALL_OWNERS, (targetNodeId, attempt) -> {
+            Map<String, Chunk> wanted = placement.get(targetNodeId);
+            Set<String> present = remoteChunks(targetNodeId, wanted.keySet(), fanOut.timeoutMillis(targetNodeId));
+
+            List<Chunk> missing = new ArrayList<>();
+            long missingBytes = 0;
+            for (Chunk c : wanted.values()) {
+                if (!present.contains(c.hash)) {
+                    missing.add(c);
+                    missingBytes += c.size;
+                }
+            }
+            Log.debug("[%s] Sending %d of %d chunks to node %d (attempt %d)",
+                    nodeId, missing.size(), wanted.size(), targetNodeId, attempt);
+            if (!missing.isEmpty() && !sendChunksToNode(targetNodeId, missing, durability, fanOut.timeoutMillis(targetNodeId), null)) {
+                return false;
+            }
 
-        Path fileDir = dataRoot.resolve(fileId);
-        Path fragmentsDir = fileDir.resolve("fragments");
-        Files.createDirectories(fragmentsDir);
+            long wantedBytes = 0;
+            for (Chunk c : wanted.values()) wantedBytes += c.size;
+            chunksSent.add(missing.size());
+            chunkBytesSent.add(missingBytes);
+            chunksDeduplicated.add(wanted.size() - missing.size());
+            chunkBytesDeduplicated.add(wantedBytes - missingBytes);
+            return true;
+        });
+        if (fanOut.failed.isEmpty()) return true;
+
+        for (Chunk c : chunks) {
+            int[] owners = chunkOwners(c.hash);
+            int acked = 0;
+            for (int node : owners) if (!fanOut.failed.contains(node)) acked++;
+            if (acked < Math.min(quorum, owners.length)) {
+                Log.warn("[%s] Chunk %s on %d of %d owners, quorum not met", nodeId, c.hash, acked, owners.length);
+                return false;
+            }
+        }
+        // sem o hasChunks do dono, vão todos os chunks dele
+        for (int target : fanOut.failed) {
+            List<Chunk> wanted = new ArrayList<>(placement.get(target).values());
+            List<String> expect = new ArrayList<>();
+            long length = 4 + 1 + 4;
+            for (Chunk c : wanted) {
+                expect.add(c.hash);
+                length += 8 + 32 + c.size;
+            }
+            try {
+                hints.add(target, "/internal/storeChunks?durability=" + durability.label(), CHUNKS_BINARY_TYPE, expect,
+                        length, os -> writeChunksBinary(os, wanted), durability);
+            } catch (IOException e) {
+                Log.warn("[%s] Could not store hint for node %d: %s", nodeId, target, e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
 
-        Map<Integer, String> response = new HashMap<>();
+    // false se o chunk já estava aqui
+    private boolean storeChunkLocal(Chunk chunk, FragmentStore.Durability durability) throws IOException {
+        if (store.contains(chunk.hash, CHUNK_INDEX)) return false;
+        try (FileChannel src = FileChannel.open(chunk.file, StandardOpenOption.READ);
+             FragmentStore.Writer out = store.create(chunk.hash, CHUNK_INDEX, false, chunk.size)) {
+            copyRange(src, chunk.offset, chunk.size, out);
+            long start = System.nanoTime();
+            out.commit(durability);
+            diskWrites.record(System.nanoTime() - start);
+        }
+        return true;
+    }
 
-        for (Map<String, String> fragInfo : fragList) {
-            int index = Integer.parseInt(fragInfo.get("index"));
-            byte[] data = Base64.getDecoder().decode(fragInfo.get("data"));
-            String hash = sha256Hex(data);
+    // quais dos hashes o nó já tem
+    private Set<String> remoteChunks(int targetNodeId, Collection<String> hashes, int timeoutMs) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String h : hashes) sb.append(h).append('\n');
+        byte[] body = sb.toString().getBytes(StandardCharsets.US_ASCII);
 
-            Path fragPath = fragmentsDir.resolve(index + ".frag");
-            Files.write(fragPath, data);
+        PeerClient.Response resp = peers.post(targetNodeId, "/internal/hasChunks", "text/plain",
+                body.length, os -> os.write(body), timeoutMs);
+        if (resp.status != 200) throw new IOException("hasChunks failed on node " + targetNodeId + ": " + resp.status);
 
-            response.put(index, hash);
+        Set<String> present = new HashSet<>();
+        for (String line : resp.bodyString().split("\n")) {
+            if (!line.isEmpty()) present.add(line.trim());
         }
+        return present;
+    }
 
-        String jsonResponse = buildHashResponse(fileId, response);
+    private boolean sendChunksToNode(int targetNodeId, List<Chunk> chunks, FragmentStore.Durability durability,
+                                     int timeoutMs, RateLimiter limiter) throws IOException {
+        long length = 4 + 1 + 4;
+        for (Chunk c : chunks) length += 8 + 32 + c.size;
+
+        PeerClient.Response resp = peers.post(targetNodeId, "/internal/storeChunks?durability=" + durability.label(),
+                CHUNKS_BINARY_TYPE,
+                length, os -> writeChunksBinary(limiter != null ? limiter.throttle(os) : os, chunks), timeoutMs);
+        if (resp.status != 200) return false;
+
+        // o nó responde com os hashes que conferiram e estão gravados
+        String stored = resp.bodyString();
+        for (Chunk c : chunks) {
+            if (!stored.contains("\"" + c.hash + "\"")) {
+                Log.warn("[%s] Node %d did not store chunk %s", nodeId, targetNodeId, c.hash);
+                return false;
+            }
+        }
+        bytesReplicated.add(length);
+        return true;
+    }
 
-        sendJson(writer, out, 200, jsonResponse);
+    // Frame do /internal/storeChunks:
+    //   int magic ("DFSC") | byte versão | int quantidade
+    //   por chunk: long tamanho | 32 bytes sha256 (= nome do chunk) | bytes
+    private void writeChunksBinary(OutputStream os, List<Chunk> chunks) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new NonClosingOutputStream(os));
+        dos.writeInt(CHUNKS_MAGIC);
+        dos.writeByte(CHUNKS_VERSION);
+        dos.writeInt(chunks.size());
+        for (Chunk c : chunks) {
+            dos.writeLong(c.size);
+            dos.write(fromHex(c.hash));
+            if (c.file != null) {
+                try (FileChannel ch = FileChannel.open(c.file, StandardOpenOption.READ)) {
+                    copyRange(ch, c.offset, c.size, dos);
+                }
+            } else {
+                FragmentStore.Stored stored = openStored(c.hash, CHUNK_INDEX);
+                try (FileChannel ch = stored.channel) {
+                    copyRange(ch, stored.offset, c.size, dos);
+                }
+            }
+        }
+        dos.flush();
     }
 
-    // ================================
-    //  INTERNAL: ANNOUNCE FILE (MANIFEST)
-    // ================================
+    private void handleInternalStoreChunks(Exchange ex) throws IOException {
+        FragmentStore.Durability durability = requestDurability(parseQuery(ex.query));
+        if (durability == null) {
+            sendPlain(ex, 400, "Invalid durability");
+            return;
+        }
+        DataInputStream din = new DataInputStream(ex.body);
+        if (din.readInt() != CHUNKS_MAGIC) {
+            sendPlain(ex, 400, "Invalid chunks frame");
+            return;
+        }
+        int version = din.readUnsignedByte();
+        if (version != CHUNKS_VERSION) {
+            sendPlain(ex, 400, "Unsupported chunks frame version " + version);
+            return;
+        }
+        int count = din.readInt();
+
+        List<String> stored = new ArrayList<>();
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        for (int i = 0; i < count; i++) {
+            long length = din.readLong();
+            byte[] checksum = new byte[32];
+            din.readFully(checksum);
+            if (length < 0) {
+                sendPlain(ex, 400, "Invalid chunk header");
+                return;
+            }
 
-    private void handleInternalAnnounceFile(PrintWriter writer, OutputStream out, InputStream in, int contentLength) throws IOException {
-        String body = new String(readFixed(in, contentLength), StandardCharsets.UTF_8);
+            String hash = toHex(checksum);
+            if (store.contains(hash, CHUNK_INDEX)) {
+                copyExactly(din, OutputStream.nullOutputStream(), length, buffer);
+                stored.add(hash);
+                continue;
+            }
 
-        String fileId = extractFileIdFromManifest(body);
-        if (fileId == null) {
-            sendPlain(writer, out, 400, "Invalid manifest");
+            MessageDigest digest = newSha256();
+            try (FragmentStore.Writer out = store.create(hash, CHUNK_INDEX, false, length)) {
+                copyExactly(din, out, length, buffer, digest);
+                if (MessageDigest.isEqual(digest.digest(), checksum)) {
+                    long start = System.nanoTime();
+                    out.commit(durability);
+                    diskWrites.record(System.nanoTime() - start);
+                    stored.add(hash);
+                } else {
+                    Log.warn("[%s] Checksum mismatch on received chunk %s", nodeId, hash);
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("{\"stored\":[");
+        for (int i = 0; i < stored.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append('"').append(stored.get(i)).append('"');
+        }
+        sb.append("]}");
+        sendJson(ex, 200, sb.toString());
+    }
+
+    // corpo e resposta: um hash por linha; a resposta só traz os que existem aqui
+    private void handleInternalHasChunks(Exchange ex) throws IOException {
+        if (ex.contentLength < 0 || ex.contentLength > Integer.MAX_VALUE) {
+            sendPlain(ex, 413, "Invalid chunk list size");
             return;
         }
+        String body = new String(readFixed(ex.body, (int) ex.contentLength), StandardCharsets.US_ASCII);
 
-        saveManifestLocal(fileId, body);
+        StringBuilder present = new StringBuilder();
+        for (String line : body.split("\n")) {
+            String hash = line.trim();
+            if (isValidFileId(hash) && store.contains(hash, CHUNK_INDEX)) {
+                present.append(hash).append('\n');
+            }
+        }
+        byte[] bytes = present.toString().getBytes(StandardCharsets.US_ASCII);
+        ex.writeHead(200, "text/plain; charset=us-ascii", bytes.length);
+        ex.out.write(bytes);
+        ex.out.flush();
+    }
 
-        sendJson(writer, out, 200, "{\"status\":\"OK\"}");
+    // fragment (fileId, index) ou chunk (hash, CHUNK_INDEX) que tem que estar aqui
+    private FragmentStore.Stored openStored(String key, int index) throws IOException {
+        FragmentStore.Stored stored = store.open(key, index);
+        if (stored == null) throw new NoSuchFileException(key + ":" + index);
+        return stored;
     }
 
-    private void announceManifestToPeers(String fileId, String manifestJson) {
-        int myIndex = Integer.parseInt(nodeId) - 1;
+    private String fragmentUrl(String key, int index) {
+        return index == CHUNK_INDEX
+                ? "/internal/getChunk?hash=" + key
+                : "/internal/getFragment?fileId=" + key + "&index=" + index;
+    }
 
-        for (int node = 0; node < TOTAL_NODES; node++) {
-            if (node == myIndex) continue; // já salvei localmente
+    // ================================
+    //  INTERNAL: STORE FRAGMENTS
+    // ================================
 
-            int targetNodeId = node + 1;
-            for (int attempt = 1; attempt <= 3; attempt++) {
-                try {
-                    URL url = new URL("http://localhost:500" + targetNodeId + "/internal/announceFile");
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setConnectTimeout(2000);
-                    conn.setReadTimeout(2000);
-                    conn.setRequestMethod("POST");
-                    conn.setDoOutput(true);
-                    conn.setRequestProperty("Content-Type", "application/json");
-
-                    byte[] bytes = manifestJson.getBytes(StandardCharsets.UTF_8);
-                    conn.setRequestProperty("Content-Length", String.valueOf(bytes.length));
-                    try (OutputStream os = conn.getOutputStream()) {
-                        os.write(bytes);
-                    }
+    private void handleInternalStoreFragmentsBinary(Exchange ex) throws IOException {
+        FragmentStore.Durability durability = requestDurability(parseQuery(ex.query));
+        if (durability == null) {
+            sendPlain(ex, 400, "Invalid durability");
+            return;
+        }
+        DataInputStream din = new DataInputStream(ex.body);
 
-                    int status = conn.getResponseCode();
-                    if (status == 200) {
-                        System.out.printf("[%s] Manifest announced to node %d%n", nodeId, targetNodeId);
-                        break;
-                    } else {
-                        System.out.printf("[%s] Manifest announce to node %d failed (status=%d, attempt=%d)%n",
-                                nodeId, targetNodeId, status, attempt);
-                    }
-                } catch (IOException e) {
-                    System.out.printf("[%s] Manifest announce to node %d failed: %s (attempt=%d)%n",
-                            nodeId, targetNodeId, e.getMessage(), attempt);
-                }
+        if (din.readInt() != FRAGMENTS_MAGIC) {
+            sendPlain(ex, 400, "Invalid fragments frame");
+            return;
+        }
+        int version = din.readUnsignedByte();
+        if (version != FRAGMENTS_VERSION && version != FRAGMENTS_COMPRESSED_VERSION) {
+            sendPlain(ex, 400, "Unsupported fragments frame version " + version);
+            return;
+        }
+
+        String fileId = din.readUTF();
+        if (!isValidFileId(fileId)) {
+            sendPlain(ex, 400, "Invalid fileId");
+            return;
+        }
+        int count = din.readInt();
+
+        Map<Integer, String> response = new HashMap<>();
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+
+        for (int i = 0; i < count; i++) {
+            int index = din.readInt();
+            long length = din.readLong();
+            byte[] checksum = new byte[32];
+            din.readFully(checksum);
+            boolean compressed = version >= FRAGMENTS_COMPRESSED_VERSION && din.readUnsignedByte() == 1;
+            long storedLength = compressed ? din.readLong() : length;
+
+            if (index < 0 || length < 0 || storedLength < 0) {
+                sendPlain(ex, 400, "Invalid fragment header");
+                return;
+            }
+
+            // grava direto no store; só fica visível se o checksum do header bater
+            MessageDigest digest = newSha256();
+            try (FragmentStore.Writer out = store.create(fileId, index, compressed, storedLength)) {
+                if (compressed) {
+                    copyExactly(din, out, storedLength, buffer);
+                } else {
+                    copyExactly(din, out, length, buffer, digest);
+                }
+                // o checksum é do conteúdo original: o .z é conferido descomprimido
+                byte[] actual = compressed ? compressedContentHash(out) : digest.digest();
+                if (MessageDigest.isEqual(actual, checksum)) {
+                    long start = System.nanoTime();
+                    out.commit(durability);
+                    diskWrites.record(System.nanoTime() - start);
+                } else {
+                    Log.warn("[%s] Checksum mismatch on received fragment %d of %s", nodeId, index, fileId);
+                }
+                response.put(index, toHex(actual));
+            }
+        }
+
+        sendJson(ex, 200, buildHashResponse(fileId, response));
+    }
+
+    // sha256 do conteúdo original de um .z (vazio se o .z estiver corrompido)
+    private byte[] compressedContentHash(FragmentStore.Writer written) {
+        MessageDigest digest = newSha256();
+        try (InputStream in = new BufferedInputStream(written.readBack(), IO_BUFFER_SIZE)) {
+            FragmentCodec.decodeTo(in, new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+            return digest.digest();
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    private void handleInternalStoreFragments(Exchange ex) throws IOException {
+        if (ex.contentLength < 0 || ex.contentLength > Integer.MAX_VALUE) {
+            sendPlain(ex, 413, "Invalid fragments payload size");
+            return;
+        }
+        FragmentStore.Durability durability = requestDurability(parseQuery(ex.query));
+        if (durability == null) {
+            sendPlain(ex, 400, "Invalid durability");
+            return;
+        }
+        String body = new String(readFixed(ex.body, (int) ex.contentLength), StandardCharsets.UTF_8);
+
+        Map<String, Object> parsed = parseJson(body);
+
+        String fileId = (String) parsed.get("fileId");
+        List<Map<String, String>> fragList = (List<Map<String, String>>) parsed.get("fragments");
+
+        Map<Integer, String> response = new HashMap<>();
+
+        for (Map<String, String> fragInfo : fragList) {
+            int index = Integer.parseInt(fragInfo.get("index"));
+            byte[] data = Base64.getDecoder().decode(fragInfo.get("data"));
+            String hash = sha256Hex(data);
+
+            long start = System.nanoTime();
+            store.write(fileId, index, false, data, durability);
+            diskWrites.record(System.nanoTime() - start);
+
+            response.put(index, hash);
+        }
+
+        String jsonResponse = buildHashResponse(fileId, response);
+
+        sendJson(ex, 200, jsonResponse);
+    }
+
+    // ================================
+    //  INTERNAL: ANNOUNCE FILE (MANIFEST)
+    // ================================
+
+    private void handleInternalAnnounceFile(Exchange ex) throws IOException {
+        if (ex.contentLength < 0 || ex.contentLength > Integer.MAX_VALUE) {
+            sendPlain(ex, 413, "Invalid manifest size");
+            return;
+        }
+        String body = new String(readFixed(ex.body, (int) ex.contentLength), StandardCharsets.UTF_8);
+
+        String fileId = extractFileIdFromManifest(body);
+        if (fileId == null) {
+            sendPlain(ex, 400, "Invalid manifest");
+            return;
+        }
+        FragmentStore.Durability durability = requestDurability(parseQuery(ex.query));
+        if (durability == null) {
+            sendPlain(ex, 400, "Invalid durability");
+            return;
+        }
+
+        saveManifestLocal(fileId, body, durability);
+
+        sendJson(ex, 200, "{\"status\":\"OK\"}");
+    }
+
+    // membros do cluster menos este nó
+    private List<Integer> otherMembers() {
+        int myId = Integer.parseInt(nodeId);
+        List<Integer> others = new ArrayList<>();
+        for (ClusterConfig.Member m : cluster.members()) {
+            if (m.id != myId) others.add(m.id);
+        }
+        return others;
+    }
+
+    private void announceManifestToPeers(String fileId, String manifestJson, FragmentStore.Durability durability) {
+        List<Integer> targets = otherMembers(); // já salvei localmente
+
+        byte[] bytes = manifestJson.getBytes(StandardCharsets.UTF_8);
+        FanOut fanOut = new FanOut(REPLICATION_DEADLINE_MS);
+        fanOut.run(targets, "manifest", false, (targetNodeId, attempt) -> {
+            try {
+                PeerClient.Response resp = peers.post(targetNodeId, "/internal/announceFile?durability=" + durability.label(),
+                        "application/json", bytes.length, os -> os.write(bytes), fanOut.timeoutMillis(targetNodeId));
+                if (resp.status == 200) {
+                    Log.debug("[%s] Manifest announced to node %d", nodeId, targetNodeId);
+                    return true;
+                }
+                Log.warn("[%s] Manifest announce to node %d failed (status=%d, attempt=%d)",
+                        nodeId, targetNodeId, resp.status, attempt);
+                return false;
+            } catch (IOException e) {
+                Log.warn("[%s] Manifest announce to node %d failed: %s (attempt=%d)",
+                        nodeId, targetNodeId, e.getMessage(), attempt);
+                throw e;
+            }
+        });
+
+        // o anti-entropy também acharia a falta, mas só na próxima rodada
+        for (int target : fanOut.failed) {
+            try {
+                hints.add(target, "/internal/announceFile?durability=" + durability.label(), "application/json",
+                        Collections.emptyList(), bytes.length, os -> os.write(bytes), durability);
+            } catch (IOException e) {
+                Log.warn("[%s] Could not store manifest hint for node %d: %s", nodeId, target, e.getMessage());
+            }
+        }
+    }
+
+    private void saveManifestLocal(String fileId, String manifestJson, FragmentStore.Durability durability) throws IOException {
+        store.write(fileId, FragmentStore.MANIFEST_INDEX, false, manifestJson.getBytes(StandardCharsets.UTF_8), durability);
+        indexManifest(fileId, manifestJson);
+        Log.debug("[%s] Saved manifest of %s", nodeId, fileId);
+    }
+
+    // ================================
+    //  INTERNAL: REBALANCE (depois de mudar os membros do cluster)
+    //
+    //  Relê o arquivo do cluster e, p/ cada fragment guardado aqui, garante que os donos
+    //  atuais no anel tenham uma cópia; se este nó deixou de ser dono, apaga a sua depois
+    //  que todos os donos confirmarem. Só trafegam os fragments cujos donos mudaram. Os
+    //  membros que ainda não têm o manifest (nós novos) também o recebem. Os chunks do
+    //  layout cdc passam pelo mesmo processo, com os donos do hash de cada chunk.
+    // ================================
+
+    private void handleInternalRebalance(Exchange ex) throws IOException {
+        if (CLUSTER_CONFIG != null) {
+            try {
+                cluster = ClusterConfig.load(Paths.get(CLUSTER_CONFIG));
+            } catch (IOException | IllegalArgumentException e) {
+                sendPlain(ex, 500, "Invalid cluster config: " + e.getMessage());
+                return;
+            }
+        }
+        if (erasureCodec != null && erasureCodec.totalShards() > cluster.size()) {
+            Log.warn("[%s] %d shards per file but only %d nodes, some nodes will hold two shards",
+                    nodeId, erasureCodec.totalShards(), cluster.size());
+        }
+        sendJson(ex, 200, rebalance());
+    }
+
+    private synchronized String rebalance() throws IOException {
+        ClusterConfig current = cluster;
+        int myId = Integer.parseInt(nodeId);
+        int files = 0;
+        int copied = 0;
+        int removed = 0;
+        int failed = 0;
+
+        for (String fileId : store.keys(FragmentStore.MANIFEST_INDEX)) {
+            if (!isValidFileId(fileId)) continue;
+            byte[] manifest = store.read(fileId, FragmentStore.MANIFEST_INDEX);
+            if (manifest == null) continue;
+            String manifestJson = new String(manifest, StandardCharsets.UTF_8);
+            files++;
+
+            // o que cada membro já tem; quem não respondeu fica de fora e nada é apagado por ele
+            Map<Integer, Set<Integer>> remote = new HashMap<>();
+            byte[] manifestBytes = manifestJson.getBytes(StandardCharsets.UTF_8);
+            for (ClusterConfig.Member m : current.members()) {
+                if (m.id == myId || !failureDetector.isAvailable(m.id)) continue;
+                try {
+                    PeerClient.Response resp = peers.get(m.id, "/internal/listFragments?fileId=" + fileId, peers.timeoutMillis(m.id, false));
+                    if (resp.status != 200) continue;
+                    String body = resp.bodyString();
+                    if (!body.contains("\"manifest\":true")) {
+                        peers.post(m.id, "/internal/announceFile", "application/json",
+                                manifestBytes.length, os -> os.write(manifestBytes), peers.timeoutMillis(m.id, true));
+                    }
+                    remote.put(m.id, parseIndexList(body));
+                } catch (IOException e) {
+                    Log.warn("[%s] Rebalance: node %d unreachable (%s)", nodeId, m.id, e.getMessage());
+                }
+            }
+
+            // manifests antigos têm placement fixo: nada a mover
+            String placement = extractStringFromManifest(manifestJson, "placement");
+            if (!isRingPlacement(placement)) continue;
+
+            boolean erasure = LAYOUT_ERASURE.equals(extractStringFromManifest(manifestJson, "layout"));
+            int totalFragments = (int) extractLongFromManifest(manifestJson, "totalFragments");
+            Map<Integer, Fragment> expected = parseManifestFragments(manifestJson);
+
+            Map<Integer, List<Fragment>> toSend = new TreeMap<>();
+            List<Integer> notOwned = new ArrayList<>();
+            for (int index : store.fragmentIndexes(fileId)) {
+                Fragment exp = expected.get(index);
+                if (exp == null || exp.hash == null) continue;
+                FragmentStore.Stored stored = store.open(fileId, index);
+                if (stored == null) continue;
+                stored.channel.close();
+                // lido do store na hora de enviar
+                Fragment frag = new Fragment(index, null, stored.compressed ? exp.size : stored.length, exp.hash);
+                frag.storeKey = fileId;
+                frag.compressed = stored.compressed;
+                frag.compressedSize = stored.compressed ? stored.length : 0;
+
+                boolean owner = false;
+                boolean confirmed = true;
+                for (int node : fragmentOwners(fileId, index, erasure, totalFragments, placement)) {
+                    if (node == myId) {
+                        owner = true;
+                    } else if (!remote.containsKey(node)) {
+                        confirmed = false;
+                    } else if (!remote.get(node).contains(index)) {
+                        toSend.computeIfAbsent(node, n -> new ArrayList<>()).add(frag);
+                    }
+                }
+                if (!owner && confirmed) notOwned.add(index);
+            }
+
+            if (!toSend.isEmpty()) {
+                if (!sendFragmentsToPeers(fileId, toSend, durability)) {
+                    failed++;
+                    continue;
+                }
+                for (List<Fragment> sent : toSend.values()) copied += sent.size();
+            }
+            for (int index : notOwned) {
+                store.delete(fileId, index);
+                removed++;
+            }
+        }
+
+        // chunks (layout cdc): os donos vêm do hash do chunk, não do arquivo
+        List<String> localChunks = localChunkHashes();
+        Map<Integer, List<String>> byOwner = new TreeMap<>();
+        for (String hash : localChunks) {
+            for (int node : chunkOwners(hash)) {
+                if (node != myId) byOwner.computeIfAbsent(node, n -> new ArrayList<>()).add(hash);
+            }
+        }
+
+        // dono -> chunks que ele confirmou ter (já tinha ou acabou de receber)
+        Map<Integer, Set<String>> confirmed = new HashMap<>();
+        int chunksCopied = 0;
+        for (Map.Entry<Integer, List<String>> e : byOwner.entrySet()) {
+            int node = e.getKey();
+            if (!failureDetector.isAvailable(node)) continue; // fica sem confirmação: nada é apagado
+            try {
+                Set<String> present = remoteChunks(node, e.getValue(), peers.timeoutMillis(node, true));
+                List<Chunk> missing = new ArrayList<>();
+                for (String hash : e.getValue()) {
+                    if (present.contains(hash)) continue;
+                    FragmentStore.Stored stored = store.open(hash, CHUNK_INDEX);
+                    if (stored == null) continue;
+                    stored.channel.close();
+                    missing.add(new Chunk(hash, null, 0, stored.length));
+                }
+                if (missing.isEmpty() || sendChunksToNode(node, missing, durability, peers.timeoutMillis(node, true), null)) {
+                    present.addAll(e.getValue());
+                    chunksCopied += missing.size();
+                } else {
+                    failed++;
+                }
+                confirmed.put(node, present);
+            } catch (IOException ex) {
+                Log.warn("[%s] Rebalance: chunks to node %d failed (%s)", nodeId, node, ex.getMessage());
+            }
+        }
+
+        int chunksRemoved = 0;
+        for (String hash : localChunks) {
+            boolean owner = false;
+            boolean everywhere = true;
+            for (int node : chunkOwners(hash)) {
+                if (node == myId) owner = true;
+                else if (!confirmed.getOrDefault(node, Collections.emptySet()).contains(hash)) everywhere = false;
+            }
+            if (!owner && everywhere) {
+                store.delete(hash, CHUNK_INDEX);
+                chunksRemoved++;
+            }
+        }
+
+        Log.info("[%s] Rebalance done: %d files, %d fragment copies sent, %d local fragments removed, "
+                        + "%d chunk copies sent, %d local chunks removed, %d failures",
+                nodeId, files, copied, removed, chunksCopied, chunksRemoved, failed);
+        return "{\"nodes\":" + current.size() + ",\"files\":" + files + ",\"copied\":" + copied
+                + ",\"removed\":" + removed + ",\"chunksCopied\":" + chunksCopied
+                + ",\"chunksRemoved\":" + chunksRemoved + ",\"failed\":" + failed + "}";
+    }
+
+    private List<String> localChunkHashes() throws IOException {
+        List<String> hashes = new ArrayList<>();
+        for (String hash : store.keys(CHUNK_INDEX)) {
+            if (isValidFileId(hash)) hashes.add(hash);
+        }
+        return hashes;
+    }
+
+    // GET /internal/listFragments?fileId=... -> {"fileId":"...","manifest":true,"indexes":[0,3]}
+    private void handleInternalListFragments(Exchange ex) throws IOException {
+        String fileId = parseQuery(ex.query).get("fileId");
+        if (fileId == null || !isValidFileId(fileId)) {
+            sendPlain(ex, 400, "Invalid fileId");
+            return;
+        }
+        boolean manifest = store.contains(fileId, FragmentStore.MANIFEST_INDEX);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"fileId\":\"").append(fileId).append("\",\"manifest\":").append(manifest).append(",\"indexes\":[");
+        List<Integer> indexes = store.fragmentIndexes(fileId);
+        for (int i = 0; i < indexes.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(indexes.get(i));
+        }
+        sb.append("]}");
+        sendJson(ex, 200, sb.toString());
+    }
+
+    private Set<Integer> parseIndexList(String json) {
+        Set<Integer> indexes = new HashSet<>();
+        int start = json.indexOf("\"indexes\"");
+        if (start == -1) return indexes;
+        start = json.indexOf("[", start);
+        int end = json.indexOf("]", start);
+        if (start == -1 || end == -1) return indexes;
+        for (String item : json.substring(start + 1, end).split(",")) {
+            if (!item.trim().isEmpty()) indexes.add(Integer.parseInt(item.trim()));
+        }
+        return indexes;
+    }
+
+    // ================================
+    //  ANTI-ENTROPY (árvores de Merkle entre pares de nós)
+    //
+    //  Pra cada peer o nó monta uma MerkleTree com o que guarda e que o peer também
+    //  deveria guardar pelo placement: todos os manifests (só a presença: o mesmo conteúdo
+    //  reenviado com outro nome tem outro manifest, e nenhum dos dois está errado), os
+    //  fragments de que os dois são donos, com o hash do manifest, e os chunks dos dois.
+    //  Quem inicia a rodada pede ao peer o hash da raiz e desce MERKLE_STEP níveis por
+    //  troca só nas subárvores que diferem (4 trocas até as 4096 folhas); das folhas que
+    //  diferem vem a lista de itens, e o que falta no peer é empurrado p/ ele. O que falta
+    //  aqui o peer empurra na rodada dele. Reparo e scrub dividem o repairLimiter.
+    //
+    //  O scrub relê tudo o que está aqui e confere com o hash do manifest (ou com o nome
+    //  do chunk); o que não confere é apagado e volta na rodada de quem tem a cópia boa.
+    //  Shards do layout erasure têm um dono só e nenhuma árvore os cobre: o scrub os
+    //  reconstrói a partir dos outros shards e regrava no lugar. Item que não deu p/ ler
+    //  (erro de I/O, não conteúdo errado) fica como está e é relido na próxima passada.
+    // ================================
+
+    private void startAntiEntropy() {
+        if (ANTI_ENTROPY_INTERVAL_MS <= 0) return;
+        antiEntropy = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "anti-entropy");
+            t.setDaemon(true);
+            return t;
+        });
+        // primeira rodada em instante aleatório: os nós não sincronizam todos juntos
+        long first = ANTI_ENTROPY_INTERVAL_MS / 2 + ThreadLocalRandom.current().nextLong(ANTI_ENTROPY_INTERVAL_MS / 2 + 1);
+        scheduleBackground("Anti-entropy round", first, this::antiEntropyRound);
+        scheduleBackground("Scrub", first + ANTI_ENTROPY_INTERVAL_MS / 2, this::scrub);
+    }
+
+    private void scheduleBackground(String what, long delayMs, Callable<String> task) {
+        antiEntropy.scheduleWithFixedDelay(() -> {
+            try {
+                task.call();
+            } catch (Exception e) {
+                Log.warn("[%s] %s failed: %s", nodeId, what, e.getMessage());
+            }
+        }, delayMs, ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // POST /internal/antiEntropy[?scrub=true]: roda uma rodada agora (e antes o scrub)
+    private void handleInternalAntiEntropy(Exchange ex) throws IOException {
+        String scrubbed = "true".equals(parseQuery(ex.query).get("scrub")) ? scrub() : "null";
+        sendJson(ex, 200, "{\"scrub\":" + scrubbed + ",\"round\":" + antiEntropyRound() + "}");
+    }
+
+    // junto com a rebalance (mesmo monitor): as duas movem fragments entre os nós
+    private synchronized String antiEntropyRound() throws IOException {
+        long start = System.nanoTime();
+        List<Integer> others = otherMembers();
+
+        Map<Integer, MerkleTree> trees = buildMerkleTrees(others);
+        RepairTally tally = new RepairTally();
+        int inSync = 0;
+        int unreachable = 0;
+        for (int peer : others) {
+            if (!failureDetector.isAvailable(peer)) {
+                unreachable++;
+                continue;
+            }
+            try {
+                if (syncWithPeer(peer, trees.get(peer), tally)) inSync++;
+            } catch (IOException e) {
+                unreachable++;
+                Log.warn("[%s] Anti-entropy with node %d failed (%s)", nodeId, peer, e.getMessage());
+            }
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        antiEntropyRounds.increment();
+        merkleExchanges.add(tally.exchanges);
+        merkleDifferingLeaves.add(tally.leaves);
+        repairedManifests.add(tally.manifests);
+        repairedFragments.add(tally.fragments);
+        repairedChunks.add(tally.chunks);
+        repairBytes.add(tally.bytes);
+        repairFailures.add(tally.failed);
+        repairConflicts.add(tally.conflicts);
+        if (inSync < others.size()) {
+            Log.info("[%s] Anti-entropy: %d of %d peers in sync, %d exchanges, %d manifests, %d fragments "
+                            + "and %d chunks repaired (%d bytes), %d failures, %d ms",
+                    nodeId, inSync, others.size(), tally.exchanges, tally.manifests, tally.fragments, tally.chunks,
+                    tally.bytes, tally.failed, elapsedMs);
+        }
+        String json = "{\"peers\":" + others.size() + ",\"inSync\":" + inSync + ",\"unreachable\":" + unreachable
+                + ",\"exchanges\":" + tally.exchanges + ",\"differingLeaves\":" + tally.leaves
+                + ",\"manifests\":" + tally.manifests + ",\"fragments\":" + tally.fragments
+                + ",\"chunks\":" + tally.chunks + ",\"bytes\":" + tally.bytes + ",\"failed\":" + tally.failed
+                + ",\"conflicts\":" + tally.conflicts + ",\"ms\":" + elapsedMs + "}";
+        lastAntiEntropyRound = json;
+        return json;
+    }
+
+    // true se as árvores batem; senão empurra p/ o peer o que só existe aqui
+    private boolean syncWithPeer(int peer, MerkleTree tree, RepairTally tally) throws IOException {
+        List<Integer> frontier = Collections.singletonList(1);
+        List<Integer> differing;
+        while (true) {
+            Map<Integer, Long> remote = parseMerkleHashes(merkleCall(peer, "/internal/merkle", frontier));
+            tally.exchanges++;
+            differing = new ArrayList<>();
+            for (int node : frontier) {
+                Long theirs = remote.get(node);
+                if (theirs == null || theirs != tree.hash(node)) differing.add(node);
+            }
+            if (differing.isEmpty()) return true;
+            if (tree.isLeaf(differing.get(0))) break;
+            frontier = new ArrayList<>();
+            for (int node : differing) frontier.addAll(tree.descendants(node, MERKLE_STEP));
+        }
+        tally.leaves += differing.size();
+
+        // (chave:índice) -> hash, dos itens do peer nas folhas que diferem
+        Map<String, String> remoteItems = new HashMap<>();
+        for (String line : merkleCall(peer, "/internal/merkleLeaves", differing).split("\n")) {
+            String[] parts = line.split(" ");
+            if (parts.length == 3) remoteItems.put(parts[0] + ":" + parts[1], parts[2]);
+        }
+        tally.exchanges++;
+
+        List<MerkleTree.Item> missing = new ArrayList<>();
+        for (int leaf : differing) {
+            for (MerkleTree.Item item : tree.items(leaf)) {
+                String theirs = remoteItems.get(item.key + ":" + item.index);
+                if (theirs == null) {
+                    missing.add(item);
+                } else if (!theirs.equals(item.hash)) {
+                    // o mesmo fileId com manifests diferentes (outro layout): nenhum lado é o certo
+                    tally.conflicts++;
+                }
+            }
+        }
+        if (!missing.isEmpty()) repairPeer(peer, missing, tally);
+        return false;
+    }
+
+    private String merkleCall(int peer, String path, List<Integer> nodes) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int node : nodes) sb.append(node).append('\n');
+        byte[] body = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        PeerClient.Response resp = peers.post(peer, path + "?peer=" + nodeId + "&depth=" + MERKLE_DEPTH, "text/plain",
+                body.length, os -> os.write(body), peers.timeoutMillis(peer, true));
+        if (resp.status != 200) throw new IOException(path + " answered " + resp.status);
+        return resp.bodyString();
+    }
+
+    private Map<Integer, Long> parseMerkleHashes(String body) {
+        Map<Integer, Long> hashes = new HashMap<>();
+        for (String line : body.split("\n")) {
+            int space = line.indexOf(' ');
+            if (space > 0) {
+                hashes.put(Integer.parseInt(line.substring(0, space)), Long.parseUnsignedLong(line.substring(space + 1), 16));
+            }
+        }
+        return hashes;
+    }
+
+    // manifests primeiro (com eles o peer já lista e serve o arquivo), depois um fragment por
+    // chamada e os chunks em lotes, tudo no ritmo do repairLimiter
+    private void repairPeer(int peer, List<MerkleTree.Item> missing, RepairTally tally) throws IOException {
+        Map<String, List<Fragment>> fragments = new TreeMap<>();
+        List<Chunk> chunks = new ArrayList<>();
+        for (MerkleTree.Item item : missing) {
+            if (item.index == FragmentStore.MANIFEST_INDEX) {
+                byte[] manifest = store.read(item.key, FragmentStore.MANIFEST_INDEX);
+                if (manifest == null) continue; // apagado depois da árvore montada
+                repairLimiter.acquire(manifest.length);
+                PeerClient.Response resp = peers.post(peer, "/internal/announceFile?durability=" + durability.label(),
+                        "application/json", manifest.length, os -> os.write(manifest), peers.timeoutMillis(peer, true));
+                if (resp.status == 200) {
+                    tally.manifests++;
+                    tally.bytes += manifest.length;
+                } else {
+                    tally.failed++;
+                }
+                continue;
+            }
+
+            FragmentStore.Stored stored = store.open(item.key, item.index);
+            if (stored == null) continue;
+            long rawSize;
+            try (FileChannel ch = stored.channel) {
+                rawSize = stored.compressed ? FragmentCodec.rawLength(ch, stored.offset) : stored.length;
+            }
+            if (item.index == CHUNK_INDEX) {
+                chunks.add(new Chunk(item.key, null, 0, stored.length));
+                continue;
+            }
+            Fragment frag = new Fragment(item.index, null, rawSize, item.hash);
+            frag.storeKey = item.key;
+            frag.compressed = stored.compressed;
+            frag.compressedSize = stored.compressed ? stored.length : 0;
+            fragments.computeIfAbsent(item.key, k -> new ArrayList<>()).add(frag);
+        }
+
+        for (Map.Entry<String, List<Fragment>> e : fragments.entrySet()) {
+            for (Fragment f : e.getValue()) {
+                long bytes = f.compressed ? f.compressedSize : f.size;
+                int timeout = repairTimeout(peer, bytes);
+                if (sendFragmentsToNode(peer, e.getKey(), Collections.singletonList(f), durability, () -> timeout, repairLimiter)) {
+                    if (Log.sample()) Log.info("[%s] Anti-entropy: fragment %d of %s restored on node %d", nodeId, f.index, e.getKey(), peer);
+                    tally.fragments++;
+                    tally.bytes += bytes;
+                } else {
+                    tally.failed++;
+                }
+            }
+        }
+
+        for (int next = 0; next < chunks.size(); ) {
+            List<Chunk> batch = new ArrayList<>();
+            long bytes = 0;
+            while (next < chunks.size() && (batch.isEmpty() || bytes + chunks.get(next).size <= CHUNK_REPAIR_BATCH_BYTES)) {
+                Chunk c = chunks.get(next++);
+                batch.add(c);
+                bytes += c.size;
+            }
+            if (sendChunksToNode(peer, batch, durability, repairTimeout(peer, bytes), repairLimiter)) {
+                tally.chunks += batch.size();
+                tally.bytes += bytes;
+            } else {
+                tally.failed++;
+            }
+        }
+    }
+
+    // o prazo normal mais o tempo que os bytes levam no limiter
+    private int repairTimeout(int peer, long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, peers.timeoutMillis(peer, true) + repairLimiter.millisFor(bytes));
+    }
+
+    // uma árvore por peer numa passada só pelos manifests e chunks do nó
+    private Map<Integer, MerkleTree> buildMerkleTrees(Collection<Integer> peerIds) throws IOException {
+        int myId = Integer.parseInt(nodeId);
+        Map<Integer, MerkleTree> trees = new HashMap<>();
+        for (int peer : peerIds) trees.put(peer, new MerkleTree(MERKLE_DEPTH));
+
+        for (String fileId : store.keys(FragmentStore.MANIFEST_INDEX)) {
+            if (!isValidFileId(fileId)) continue;
+            byte[] manifest = store.read(fileId, FragmentStore.MANIFEST_INDEX);
+            if (manifest == null) continue;
+            for (MerkleTree tree : trees.values()) tree.add(fileId, FragmentStore.MANIFEST_INDEX, "-");
+
+            String manifestJson = new String(manifest, StandardCharsets.UTF_8);
+            String layout = extractStringFromManifest(manifestJson, "layout");
+            if (LAYOUT_CDC.equals(layout)) continue; // os chunks entram abaixo, pelo hash
+            boolean erasure = LAYOUT_ERASURE.equals(layout);
+            String placement = extractStringFromManifest(manifestJson, "placement");
+            int totalFragments = (int) extractLongFromManifest(manifestJson, "totalFragments");
+            if (totalFragments <= 0) totalFragments = ClusterConfig.LEGACY_NODES;
+            Map<Integer, Fragment> expected = parseManifestFragments(manifestJson);
+
+            for (int index : store.fragmentIndexes(fileId)) {
+                Fragment exp = expected.get(index);
+                if (exp == null || exp.hash == null) continue;
+                addToSharedTrees(trees, myId, fragmentOwners(fileId, index, erasure, totalFragments, placement),
+                        fileId, index, exp.hash);
+            }
+        }
+        for (String hash : localChunkHashes()) {
+            addToSharedTrees(trees, myId, chunkOwners(hash), hash, CHUNK_INDEX, hash);
+        }
+
+        for (MerkleTree tree : trees.values()) tree.seal();
+        return trees;
+    }
+
+    // o item vai p/ a árvore de cada peer que é dono dele junto com este nó
+    private void addToSharedTrees(Map<Integer, MerkleTree> trees, int myId, int[] owners,
+                                  String key, int index, String hash) {
+        boolean mine = false;
+        for (int owner : owners) mine |= owner == myId;
+        if (!mine) return;
+        for (int owner : owners) {
+            MerkleTree tree = trees.get(owner);
+            if (tree != null) tree.add(key, index, hash);
+        }
+    }
+
+    // POST /internal/merkle?peer=<quem pede>&depth=<d>, corpo com um nó por linha
+    //   -> "<nó> <hash hex>" por linha
+    // POST /internal/merkleLeaves?peer=...&depth=..., corpo com uma folha por linha
+    //   -> "<chave> <índice> <hash>" por item dessas folhas
+    private void handleInternalMerkle(Exchange ex) throws IOException {
+        Map<String, String> params = parseQuery(ex.query);
+        int peer;
+        try {
+            peer = Integer.parseInt(params.getOrDefault("peer", ""));
+        } catch (NumberFormatException e) {
+            sendPlain(ex, 400, "Invalid peer");
+            return;
+        }
+        if (!String.valueOf(MERKLE_DEPTH).equals(params.get("depth"))) {
+            sendPlain(ex, 400, "Unsupported tree depth");
+            return;
+        }
+        if (ex.contentLength < 0 || ex.contentLength > MAX_MERKLE_REQUEST) {
+            sendPlain(ex, 413, "Invalid node list size");
+            return;
+        }
+
+        List<Integer> nodes = new ArrayList<>();
+        for (String line : new String(readFixed(ex.body, (int) ex.contentLength), StandardCharsets.US_ASCII).split("\n")) {
+            if (line.trim().isEmpty()) continue;
+            try {
+                nodes.add(Integer.parseInt(line.trim()));
+            } catch (NumberFormatException e) {
+                sendPlain(ex, 400, "Invalid tree node");
+                return;
+            }
+        }
+
+        // a raiz abre uma troca: árvore montada agora; os níveis seguintes usam a mesma
+        boolean leaves = "/internal/merkleLeaves".equals(ex.path);
+        MerkleTree tree = servedTrees.get(peer);
+        if (tree == null || nodes.contains(1) || System.currentTimeMillis() - tree.builtAt() > MERKLE_TREE_TTL_MS) {
+            tree = buildMerkleTrees(Collections.singletonList(peer)).get(peer);
+            servedTrees.put(peer, tree);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int node : nodes) {
+            if (!tree.contains(node) || (leaves && !tree.isLeaf(node))) {
+                sendPlain(ex, 400, "Invalid tree node " + node);
+                return;
+            }
+            if (leaves) {
+                for (MerkleTree.Item item : tree.items(node)) {
+                    sb.append(item.key).append(' ').append(item.index).append(' ').append(item.hash).append('\n');
+                }
+            } else {
+                sb.append(node).append(' ').append(Long.toHexString(tree.hash(node))).append('\n');
+            }
+        }
+        if (leaves) servedTrees.remove(peer); // as folhas fecham a troca
+
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        ex.writeHead(200, "text/plain; charset=us-ascii", bytes.length);
+        ex.out.write(bytes);
+        ex.out.flush();
+    }
+
+    // relê cada manifest, fragment e chunk daqui; o que não confere é apagado (shard do
+    // erasure: reconstruído), o que não deu p/ ler fica p/ a próxima passada
+    private String scrub() throws IOException {
+        synchronized (scrubLock) {
+            long start = System.nanoTime();
+            int items = 0;
+            int corrupt = 0;
+            int rebuilt = 0;
+            int skipped = 0;
+            long bytesBefore = scrubbedBytes.sum();
+
+            for (String fileId : store.keys(FragmentStore.MANIFEST_INDEX)) {
+                if (!isValidFileId(fileId)) continue;
+                byte[] manifest;
+                try {
+                    manifest = store.read(fileId, FragmentStore.MANIFEST_INDEX);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    Log.warn("[%s] Scrub: could not read manifest of %s (%s), retrying next pass", nodeId, fileId, e.getMessage());
+                    skipped++;
+                    continue;
+                }
+                if (manifest == null) continue;
+                String manifestJson = new String(manifest, StandardCharsets.UTF_8);
+                items++;
+                scrubbedBytes.add(manifest.length);
+                if (!fileId.equals(extractFileIdFromManifest(manifestJson))) {
+                    removeCorrupt("manifest", fileId, FragmentStore.MANIFEST_INDEX);
+                    corrupt++;
+                    continue;
+                }
+                String layout = extractStringFromManifest(manifestJson, "layout");
+                if (LAYOUT_CDC.equals(layout)) continue;
+
+                boolean erasure = LAYOUT_ERASURE.equals(layout);
+                Map<Integer, Fragment> expected = parseManifestFragments(manifestJson);
+                for (int index : store.fragmentIndexes(fileId)) {
+                    Fragment exp = expected.get(index);
+                    if (exp == null || exp.hash == null) continue;
+                    items++;
+                    Boolean intact = scrubItem(fileId, index, exp.hash);
+                    if (intact == null) {
+                        skipped++;
+                    } else if (!intact && erasure) {
+                        if (rebuildShard(fileId, index, manifestJson, expected)) {
+                            rebuilt++;
+                        } else {
+                            skipped++; // menos de k shards bons agora: a cópia fica, o download ainda reconstrói
+                        }
+                    } else if (!intact) {
+                        removeCorrupt("fragment " + index, fileId, index);
+                        corrupt++;
+                    }
+                }
+            }
+            for (String hash : localChunkHashes()) {
+                items++;
+                Boolean intact = scrubItem(hash, CHUNK_INDEX, hash);
+                if (intact == null) {
+                    skipped++;
+                } else if (!intact) {
+                    removeCorrupt("chunk", hash, CHUNK_INDEX);
+                    corrupt++;
+                }
+            }
+
+            scrubbedItems.add(items);
+            corruptRemoved.add(corrupt);
+            shardsRebuilt.add(rebuilt);
+            scrubSkipped.add(skipped);
+            return "{\"items\":" + items + ",\"bytes\":" + (scrubbedBytes.sum() - bytesBefore) + ",\"corrupt\":" + corrupt
+                    + ",\"rebuilt\":" + rebuilt + ",\"skipped\":" + skipped
+                    + ",\"ms\":" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "}";
+        }
+    }
+
+    // true se confere, false se o conteúdo está errado; null se o item sumiu ou não deu
+    // p/ ler (EMFILE, EIO, compactação no meio): nada a dizer sobre ele nesta passada
+    private Boolean scrubItem(String key, int index, String expectedHash) throws IOException {
+        try {
+            String actual = storedContentHash(key, index);
+            return actual == null ? null : expectedHash.equals(actual);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.warn("[%s] Scrub: could not read %d of %s (%s), retrying next pass", nodeId, index, key, e.getMessage());
+            return null;
+        }
+    }
+
+    // sha256 do conteúdo original (o .z é descomprimido); null se o item sumiu, UNDECODABLE
+    // se o .z não decodifica. Erro de leitura do disco sobe como IOException
+    private String storedContentHash(String key, int index) throws IOException {
+        FragmentStore.Stored stored = store.open(key, index);
+        if (stored == null) return null;
+        MessageDigest digest = newSha256();
+        OutputStream sink = repairLimiter.throttle(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+        try (FileChannel ch = stored.channel) {
+            if (!stored.compressed) {
+                copyRange(ch, stored.offset, stored.length, sink);
+            } else {
+                // o codec não distingue disco com erro de .z corrompido: a falha de leitura
+                // atravessa o decoder como UncheckedIOException
+                InputStream disk = new FilterInputStream(Channels.newInputStream(ch.position(stored.offset))) {
+                    @Override
+                    public int read() {
+                        try {
+                            return super.read();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) {
+                        try {
+                            return super.read(b, off, len);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                };
+                try {
+                    FragmentCodec.decodeTo(new BufferedInputStream(disk, IO_BUFFER_SIZE), sink);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    return UNDECODABLE;
+                }
+            }
+        }
+        scrubbedBytes.add(stored.length);
+        return toHex(digest.digest());
+    }
+
+    // shard do erasure que não confere: reconstruído dos outros k (como no download) e
+    // regravado aqui; false se não deu (shards insuficientes ou resultado sem o hash certo)
+    private boolean rebuildShard(String fileId, int index, String manifestJson, Map<Integer, Fragment> expected)
+            throws IOException {
+        int k = (int) extractLongFromManifest(manifestJson, "dataShards");
+        int m = (int) extractLongFromManifest(manifestJson, "parityShards");
+        long shardSize = extractLongFromManifest(manifestJson, "shardSize");
+        int totalFragments = (int) extractLongFromManifest(manifestJson, "totalFragments");
+        String placement = extractStringFromManifest(manifestJson, "placement");
+        if (k <= 0 || m < 0 || shardSize < 0 || shardSize > Integer.MAX_VALUE || index >= k + m) return false;
+        int parts = totalFragments > 0 ? totalFragments : k + m;
+
+        repairLimiter.acquire((long) k * shardSize);
+        ByteBuffer shard = reconstructShard(fileId, index, k, m, shardSize, expected,
+                i -> fragmentHolders(fragmentOwners(fileId, i, true, parts, placement)), new HashMap<>());
+        if (shard == null || !matchesHash(shard, expected.get(index).hash)) {
+            Log.warn("[%s] Scrub: shard %d of %s is corrupted and could not be rebuilt, retrying next pass", nodeId, index, fileId);
+            return false;
+        }
+        byte[] bytes = new byte[shard.remaining()];
+        shard.get(bytes);
+        store.delete(fileId, index); // pode ser um .z: o cru regravado não fica atrás dele
+        store.write(fileId, index, false, bytes, durability);
+        repairBytes.add(bytes.length);
+        Log.warn("[%s] Scrub: shard %d of %s was corrupted, rebuilt from the other shards", nodeId, index, fileId);
+        return true;
+    }
+
+    private void removeCorrupt(String what, String key, int index) throws IOException {
+        Log.warn("[%s] Scrub: %s of %s is corrupted, removed until anti-entropy restores it", nodeId, what, key);
+        store.delete(key, index);
+    }
+
+    private String antiEntropyStatsJson() {
+        return "{\"intervalMs\":" + ANTI_ENTROPY_INTERVAL_MS
+                + ",\"maxBytesPerSecond\":" + repairLimiter.bytesPerSecond()
+                + ",\"rounds\":" + antiEntropyRounds.sum()
+                + ",\"exchanges\":" + merkleExchanges.sum()
+                + ",\"differingLeaves\":" + merkleDifferingLeaves.sum()
+                + ",\"repairedManifests\":" + repairedManifests.sum()
+                + ",\"repairedFragments\":" + repairedFragments.sum()
+                + ",\"repairedChunks\":" + repairedChunks.sum()
+                + ",\"repairBytes\":" + repairBytes.sum()
+                + ",\"repairFailures\":" + repairFailures.sum()
+                + ",\"conflicts\":" + repairConflicts.sum()
+                + ",\"scrubbedItems\":" + scrubbedItems.sum()
+                + ",\"scrubbedBytes\":" + scrubbedBytes.sum()
+                + ",\"corruptRemoved\":" + corruptRemoved.sum()
+                + ",\"shardsRebuilt\":" + shardsRebuilt.sum()
+                + ",\"scrubSkipped\":" + scrubSkipped.sum()
+                + ",\"lastRound\":" + lastAntiEntropyRound + "}";
+    }
+
+    // ================================
+    //  LIST FILES
+    // ================================
+
+    // GET /files[?prefix=...&limit=N&cursor=...]
+    // Array JSON em ordem de nome, gerado em streaming a partir do índice. Com limit, se
+    // houver mais itens o header X-Next-Cursor traz o cursor da próxima página.
+    private void handleListFiles(Exchange ex) throws IOException {
+        Map<String, String> params = parseQuery(ex.query);
+        String prefix = params.getOrDefault("prefix", "");
+
+        int limit = Integer.MAX_VALUE;
+        if (params.containsKey("limit")) {
+            try {
+                limit = Integer.parseInt(params.get("limit"));
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit <= 0 || limit > MAX_LIST_PAGE) {
+                sendPlain(ex, 400, "limit must be between 1 and " + MAX_LIST_PAGE);
+                return;
+            }
+        }
+
+        String afterKey = null;
+        if (params.containsKey("cursor")) {
+            try {
+                afterKey = ManifestIndex.decodeCursor(params.get("cursor"));
+            } catch (IllegalArgumentException e) {
+                sendPlain(ex, 400, "Invalid cursor");
+                return;
+            }
+        }
+
+        Iterator<ManifestIndex.Entry> entries = manifestIndex.iterate(prefix, afterKey);
+
+        // página limitada: separa os itens antes p/ saber se existe próxima
+        String nextCursor = null;
+        if (limit != Integer.MAX_VALUE) {
+            List<ManifestIndex.Entry> page = new ArrayList<>();
+            while (entries.hasNext() && page.size() < limit) {
+                page.add(entries.next());
+            }
+            if (entries.hasNext()) {
+                nextCursor = ManifestIndex.encodeCursor(page.get(page.size() - 1).key);
+            }
+            entries = page.iterator();
+        }
+
+        if (nextCursor != null) {
+            ex.writeHead(200, "application/json; charset=utf-8", -1, "X-Next-Cursor: " + nextCursor);
+        } else {
+            ex.writeHead(200, "application/json; charset=utf-8", -1);
+        }
+
+        ChunkedOutputStream body = new ChunkedOutputStream(ex.out);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new NonClosingOutputStream(body), StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+        writer.write('[');
+        boolean first = true;
+        while (entries.hasNext()) {
+            ManifestIndex.Entry e = entries.next();
+            if (!first) writer.write(',');
+            writer.write("{\"fileId\":\"" + e.fileId + "\",\"name\":\"" + e.name + "\"}");
+            first = false;
+        }
+        writer.write(']');
+        writer.flush();
+        body.finish();
+        ex.out.flush();
+    }
+
+    // leitura única dos manifests do disco, no start do nó
+    private void loadManifestIndex() throws IOException {
+        for (String fileId : store.keys(FragmentStore.MANIFEST_INDEX)) {
+            byte[] manifest = store.read(fileId, FragmentStore.MANIFEST_INDEX);
+            if (manifest != null) indexManifest(fileId, new String(manifest, StandardCharsets.UTF_8));
+        }
+        Log.info("[%s] Indexed %d manifests", nodeId, manifestIndex.size());
+    }
+
+    private void indexManifest(String fileId, String manifestJson) {
+        String originalName = extractOriginalNameFromManifest(manifestJson);
+        if (originalName == null || originalName.isEmpty()) {
+            originalName = fileId;
+        }
+        manifestIndex.put(fileId, originalName);
+    }
+
+    // ================================
+    //  DOWNLOAD (streaming, com prefetch dos próximos fragments)
+    // ================================
+
+    private void handleDownload(Exchange ex) throws IOException {
+        Map<String, String> params = parseQuery(ex.query);
+        String fileId = params.get("fileId");
+        if (fileId == null || fileId.isEmpty()) {
+            sendPlain(ex, 400, "Missing fileId");
+            return;
+        }
+
+        byte[] manifest = store.read(fileId, FragmentStore.MANIFEST_INDEX);
+        if (manifest == null) {
+            sendPlain(ex, 404, "File not found");
+            return;
+        }
+
+        String manifestJson = new String(manifest, StandardCharsets.UTF_8);
+        String originalName = extractOriginalNameFromManifest(manifestJson);
+        if (originalName == null || originalName.isEmpty()) {
+            originalName = "file-" + fileId.substring(0, 8);
+        }
+
+        // manifests antigos não têm size/hashes: nesse caso vai em chunked e só o hash final é checado
+        long fileSize = extractLongFromManifest(manifestJson, "size");
+        String layout = extractStringFromManifest(manifestJson, "layout");
+        int totalFragments = (int) extractLongFromManifest(manifestJson, "totalFragments");
+        // no cdc um arquivo vazio tem 0 chunks
+        if (totalFragments <= 0 && !LAYOUT_CDC.equals(layout)) totalFragments = ClusterConfig.LEGACY_NODES;
+        Map<Integer, Fragment> expected = parseManifestFragments(manifestJson);
+        String placement = extractStringFromManifest(manifestJson, "placement");
+
+        // layout erasure: só os k data shards vão p/ a resposta; parity só se faltar algum
+        boolean erasure = LAYOUT_ERASURE.equals(layout);
+        int dataShards = (int) extractLongFromManifest(manifestJson, "dataShards");
+        int parityShards = (int) extractLongFromManifest(manifestJson, "parityShards");
+        long shardSize = extractLongFromManifest(manifestJson, "shardSize");
+        int dataFragments = erasure ? dataShards : totalFragments;
+        Map<Integer, ByteBuffer> recovered = new HashMap<>();
+        int parts = totalFragments;
+
+        // layout cdc: fragment i é o chunk i, buscado pelo hash (pode ser de outro arquivo)
+        boolean cdc = LAYOUT_CDC.equals(layout);
+        int owners = erasure ? 1 : REPLICAS;
+        IntFunction<int[]> holdersOf = index -> fragmentHolders(cdc
+                ? chunkOwners(expected.get(index).hash)
+                : fragmentOwners(fileId, index, erasure, parts, placement));
+        // chunks são bem menores que fragments: mais deles em voo
+        int prefetch = cdc ? DOWNLOAD_PREFETCH * 8 : DOWNLOAD_PREFETCH;
+
+        // o fileId é o sha256 do conteúdo: serve de ETag forte p/ o If-Range
+        String etag = "\"" + fileId + "\"";
+        long[] offsets = fileSize >= 0 ? fragmentOffsets(fileSize, dataFragments, erasure, shardSize, expected) : null;
+        long[] range = offsets != null ? parseRange(ex, etag, fileSize) : null;
+        if (range == UNSATISFIABLE_RANGE) {
+            byte[] msg = "Range not satisfiable\n".getBytes(StandardCharsets.UTF_8);
+            ex.writeHead(416, "text/plain; charset=utf-8", msg.length, "Content-Range: bytes */" + fileSize);
+            ex.out.write(msg);
+            ex.out.flush();
+            return;
+        }
+        boolean partial = range != null;
+        long rangeStart = partial ? range[0] : 0;
+        long rangeEnd = partial ? range[1] : fileSize - 1;
+        int firstFragment = partial ? fragmentAt(offsets, rangeStart) : 0;
+        int lastFragment = partial ? fragmentAt(offsets, rangeEnd) : dataFragments - 1;
+
+        // janela de prefetch: o fragment N é escrito enquanto N+1.. ainda estão sendo buscados
+        Deque<Future<ByteBuffer>> window = new ArrayDeque<>();
+        byte[] copyBuffer = new byte[IO_BUFFER_SIZE];
+        int nextToFetch = firstFragment;
+        boolean headersSent = false;
+        boolean completed = false;
+        OutputStream body = null;
+        MessageDigest fileDigest = partial ? null : newSha256();
+
+        try {
+            for (int i = firstFragment; i <= lastFragment; i++) {
+                while (nextToFetch <= lastFragment && window.size() < prefetch) {
+                    int index = nextToFetch++;
+                    Fragment exp = expected.get(index);
+                    String expectedHash = exp != null ? exp.hash : null;
+                    long expectedSize = exp != null ? exp.size : -1;
+                    String key = cdc ? expectedHash : fileId;
+                    int location = cdc ? CHUNK_INDEX : index;
+                    if (recovered.containsKey(index)) {
+                        window.add(CompletableFuture.completedFuture(null));
+                        continue;
+                    }
+                    int[] holders = holdersOf.apply(index);
+                    if (partial) {
+                        // só o pedaço do fragment que cai dentro do range
+                        long storedSize = erasure ? shardSize : offsets[index + 1] - offsets[index];
+                        long from = Math.max(rangeStart, offsets[index]) - offsets[index];
+                        long to = Math.min(rangeEnd + 1, offsets[index + 1]) - offsets[index];
+                        window.add(fragmentFetchPool.submit(
+                                () -> loadFragmentRange(key, location, holders, owners, expectedHash, storedSize, from, to)));
+                    } else {
+                        window.add(fragmentFetchPool.submit(
+                                () -> loadFragment(key, location, holders, owners, expectedHash, expectedSize)));
+                    }
+                }
+
+                // recovered/reconstruídos vêm inteiros; os buscados em range já vêm recortados
+                Future<ByteBuffer> pendingFetch = window.poll();
+                ByteBuffer fragData = recovered.remove(i);
+                boolean whole = !partial || fragData != null;
+                if (fragData != null) {
+                    pendingFetch.cancel(true);
+                } else {
+                    fragData = awaitFragment(pendingFetch);
+                }
+                if (fragData == null && erasure) {
+                    fragData = reconstructShard(fileId, i, dataShards, parityShards, shardSize, expected, holdersOf, recovered);
+                    whole = true;
+                }
+
+                if (fragData == null) {
+                    if (!headersSent) {
+                        sendPlain(ex, 500, "Could not retrieve fragment " + i);
+                        return;
+                    }
+                    Log.warn("[%s] Aborting download of %s: fragment %d unavailable", nodeId, fileId, i);
+                    ex.closeConnection();
+                    return;
+                }
+
+                if (!headersSent) {
+                    sendDownloadHeaders(ex, fileSize, originalName, etag, range);
+                    body = fileSize >= 0 ? ex.out : new ChunkedOutputStream(ex.out);
+                    headersSent = true;
+                }
+
+                if (partial && whole) {
+                    fragData = slice(fragData, Math.max(rangeStart, offsets[i]) - offsets[i],
+                            Math.min(rangeEnd + 1, offsets[i + 1]) - offsets[i]);
+                } else if (erasure && !partial) {
+                    // o último data shard tem zeros de enchimento depois do fim do arquivo
+                    fragData.limit((int) Math.max(0, Math.min(fragData.remaining(), fileSize - i * shardSize)));
+                }
+                if (fileDigest != null) fileDigest.update(fragData.duplicate());
+                if (body == ex.out) {
+                    ex.sendBuffer(fragData); // direct/mapped: sem cópia p/ o heap
+                } else {
+                    writeBuffer(body, fragData, copyBuffer);
+                    body.flush();
+                }
+                bytesServedToClients.add(fragData.remaining());
+            }
+
+            if (!headersSent) {
+                sendDownloadHeaders(ex, fileSize, originalName, etag, range);
+                body = fileSize >= 0 ? ex.out : new ChunkedOutputStream(ex.out);
+            }
+
+            // checa integridade usando o próprio fileId (sha256 do conteúdo); se falhar,
+            // a resposta fica sem o chunk final e o cliente percebe o corpo incompleto.
+            // Num range só os fragments lidos inteiros foram checados (pelo hash do manifest)
+            if (fileDigest != null) {
+                String checkId = toHex(fileDigest.digest());
+                if (!checkId.equals(fileId)) {
+                    Log.error("[%s] File %s corrupted (hash=%s), aborting response", nodeId, fileId, checkId);
+                    ex.closeConnection();
+                    return;
+                }
+            }
+
+            if (body instanceof ChunkedOutputStream) {
+                ((ChunkedOutputStream) body).finish();
+            }
+            ex.out.flush();
+            completed = true;
+        } finally {
+            for (Future<ByteBuffer> f : window) f.cancel(true);
+            if (!completed && headersSent) {
+                ex.closeConnection();
+                ex.out.flush();
+            }
+        }
+    }
+
+    // ================================
+    //  RANGE (Range / If-Range do /download)
+    // ================================
+
+    private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+    // Range: bytes=a-b | bytes=a- | bytes=-n, um intervalo só. Devolve {início, fim inclusivo},
+    // null p/ mandar o arquivo inteiro (sem Range, If-Range que não bate, vários intervalos
+    // ou sintaxe inválida) ou UNSATISFIABLE_RANGE (416)
+    private long[] parseRange(Exchange ex, String etag, long fileSize) {
+        String header = ex.header("Range");
+        if (header == null) return null;
+        // If-Range com data ou outro ETag: o cliente tem uma versão diferente, vai o arquivo todo
+        String ifRange = ex.header("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(etag)) return null;
+
+        String spec = header.trim();
+        if (!spec.regionMatches(true, 0, "bytes=", 0, 6) || spec.indexOf(',') >= 0) return null;
+        spec = spec.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || fileSize == 0) return UNSATISFIABLE_RANGE;
+                return new long[] { Math.max(0, fileSize - suffix), fileSize - 1 };
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) return null;
+            if (start >= fileSize) return UNSATISFIABLE_RANGE;
+            return new long[] { start, Math.min(end, fileSize - 1) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // offsets[i] = posição no arquivo onde começam os bytes do fragment i; offsets[n] = size.
+    // Erasure: shards de shardSize (o enchimento do último fica fora); replicated: tamanhos do
+    // manifest ou, se faltarem, a mesma divisão do spoolFragments
+    private long[] fragmentOffsets(long fileSize, int fragments, boolean erasure, long shardSize,
+                                   Map<Integer, Fragment> expected) {
+        long[] offsets = new long[fragments + 1];
+        for (int i = 0; i < fragments; i++) {
+            long size;
+            if (erasure) {
+                size = shardSize;
+            } else {
+                Fragment exp = expected.get(i);
+                size = exp != null && exp.size >= 0
+                        ? exp.size
+                        : fileSize / fragments + (i < fileSize % fragments ? 1 : 0);
+            }
+            offsets[i + 1] = Math.min(fileSize, offsets[i] + size);
+        }
+        offsets[fragments] = fileSize;
+        return offsets;
+    }
+
+    // fragment que contém o byte pos (busca binária: no layout cdc são milhares de chunks)
+    private int fragmentAt(long[] offsets, long pos) {
+        int lo = 0;
+        int hi = offsets.length - 2;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= pos) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    private ByteBuffer slice(ByteBuffer data, long from, long to) {
+        ByteBuffer view = data.duplicate();
+        int base = view.position();
+        view.limit(base + (int) to);
+        view.position(base + (int) from);
+        return view;
+    }
+
+    // bytes [from, to) do fragment. Se o range cobre o fragment todo, ou ele é pequeno o
+    // bastante p/ o cache, é lido inteiro e validado como no download completo. Senão só o
+    // trecho sai do disco (mapeado) ou do peer: o hash do manifest cobre o fragment inteiro,
+    // então esse trecho não é checado (foi checado quando o fragment foi gravado)
+    private ByteBuffer loadFragmentRange(String fileId, int index, int[] holders, int owners, String expectedHash,
+                                         long storedSize, long from, long to) throws IOException {
+        if (to <= from) return ByteBuffer.allocate(0);
+
+        ByteBuffer cached = fragmentCache.get(fileId, index);
+        if (cached != null) {
+            return slice(cached, from, to);
+        }
+        if ((from == 0 && to == storedSize) || fragmentCache.admits(storedSize)) {
+            ByteBuffer fragData = loadFragmentUncached(fileId, index, holders, owners, expectedHash, storedSize);
+            return fragData != null ? slice(fragData, from, to) : null;
+        }
+
+        ByteBuffer local = readLocalRange(fileId, index, storedSize, from, to);
+        if (local != null) return local;
+
+        return fetchHedged(holders, owners, to - from,
+                node -> fetchFragmentRangeFromNode(node, fileId, index, storedSize, from, to));
+    }
+
+    // trecho do fragment local: mapeado do cru, ou só os blocos do .z que o range toca
+    private ByteBuffer readLocalRange(String fileId, int index, long storedSize, long from, long to) throws IOException {
+        long start = System.nanoTime();
+        FragmentStore.Stored stored = store.open(fileId, index);
+        if (stored == null) return null;
+        try (FileChannel channel = stored.channel) {
+            if (!stored.compressed) {
+                if (stored.length == storedSize) {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, stored.offset + from, to - from);
+                }
+            } else {
+                try {
+                    if (FragmentCodec.rawLength(channel, stored.offset) == storedSize) {
+                        return FragmentCodec.decodeRange(channel, stored.offset, from, to);
+                    }
+                } catch (IOException corrupt) {
+                    Log.warn("[%s] Local fragment %d of %s is corrupted (%s)", nodeId, index, fileId, corrupt.getMessage());
+                    return null;
+                }
+            }
+        } finally {
+            diskReads.record(System.nanoTime() - start);
+        }
+        Log.warn("[%s] Local fragment %d of %s has unexpected size", nodeId, index, fileId);
+        return null;
+    }
+
+    // timeout de uma leitura de `bytes` do peer: o da latência observada mais a transferência
+    private int readTimeout(int nodeId, long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, peers.timeoutMillis(nodeId, false) + Math.max(0, bytes) / READ_ALLOWANCE_BYTES_PER_MS);
+    }
+
+    private ByteBuffer fetchFragmentRangeFromNode(int nodeId, String fileId, int index, long storedSize,
+                                                  long from, long to) throws IOException {
+        PeerClient.Response resp = peers.get(nodeId, fragmentUrl(fileId, index)
+                + "&offset=" + from + "&length=" + (to - from), readTimeout(nodeId, to - from));
+        if (resp.status != 200) return null;
+        if (resp.body.length == to - from) return ByteBuffer.wrap(resp.body);
+        // nó antigo ignora offset/length e manda o fragment inteiro
+        if (resp.body.length == storedSize) return slice(ByteBuffer.wrap(resp.body), from, to);
+        return null;
+    }
+
+    private ByteBuffer awaitFragment(Future<ByteBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for fragment");
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    // busca o fragment no cache, no disco local ou num dos nós que o guardam, validando o
+    // hash do manifest; o que passa na validação entra no cache (dispensa nova checagem)
+    // owners: quantos dos primeiros holders são donos (os que podem receber um hedge)
+    private ByteBuffer loadFragment(String fileId, int index, int[] holders, int owners,
+                                    String expectedHash, long expectedSize) throws IOException {
+        ByteBuffer fragData = fragmentCache.get(fileId, index);
+        if (fragData != null) {
+            return fragData;
+        }
+        return loadFragmentUncached(fileId, index, holders, owners, expectedHash, expectedSize);
+    }
+
+    private ByteBuffer loadFragmentUncached(String fileId, int index, int[] holders, int owners,
+                                            String expectedHash, long expectedSize) throws IOException {
+        ByteBuffer fragData = tryLoadFragmentLocal(fileId, index);
+        if (fragData != null && matchesHash(fragData, expectedHash)) {
+            fragmentCache.put(fileId, index, fragData);
+            return fragData;
+        }
+        if (fragData != null) {
+            Log.warn("[%s] Local fragment %d of %s is corrupted", nodeId, index, fileId);
+        }
+
+        // o hash é conferido dentro da busca: uma resposta corrompida não ganha a corrida
+        fragData = fetchHedged(holders, owners, expectedSize, node -> {
+            ByteBuffer data = fetchFragmentFromNode(node, fileId, index, expectedSize);
+            return data != null && matchesHash(data, expectedHash) ? data : null;
+        });
+        if (fragData != null) fragmentCache.put(fileId, index, fragData);
+        return fragData;
+    }
+
+    private interface NodeFetch {
+        ByteBuffer fetch(int node) throws IOException; // null = o nó não tem (ou veio errado)
+    }
+
+    // pede ao dono remoto mais rápido (ver REPLICA_EXPLORE_RATIO); se ele não respondeu no
+    // atraso de hedge e o próximo também é dono, pede ao próximo em paralelo e fica com a primeira resposta boa (a outra
+    // é cancelada: o interrupt fecha a conexão do PeerClient). Falha ou 404 passa na hora p/
+    // o holder seguinte, como antes. Um hedge por busca, dentro do hedgeBudget.
+    private ByteBuffer fetchHedged(int[] holders, int owners, long size, NodeFetch fetch) throws IOException {
+        int myId = Integer.parseInt(nodeId);
+        List<Integer> remote = new ArrayList<>();
+        int hedgeable = 0;
+        for (int i = 0; i < holders.length; i++) {
+            // suspeito nem é tentado: o erasure reconstrói o shard e a réplica tem outro dono
+            if (holders[i] == myId || !failureDetector.isAvailable(holders[i])) continue;
+            remote.add(holders[i]);
+            if (i < owners) hedgeable++;
+        }
+        if (remote.isEmpty()) return null;
+        if (hedgeable > 1) orderReplicas(remote.subList(0, hedgeable));
+
+        LatencyTracker latency = fetchLatency[sizeClass(size)];
+        long credit = (long) (HEDGE_MAX_RATIO * 1000);
+        hedgeBudget.updateAndGet(b -> Math.min(HEDGE_BURST * 1000L, b + credit));
+        remoteFetches.increment();
+
+        CompletionService<ByteBuffer> completion = new ExecutorCompletionService<>(fragmentFetchPool);
+        Map<Future<ByteBuffer>, Long> started = new HashMap<>();
+        Future<ByteBuffer> hedge = null;
+        int next = 0;
+        try {
+            while (true) {
+                if (started.isEmpty()) {
+                    if (next >= remote.size()) return null;
+                    if (next > 0) fetchFailovers.increment();
+                    int node = remote.get(next++);
+                    started.put(completion.submit(() -> fetch.fetch(node)), System.nanoTime());
+                }
+
+                Future<ByteBuffer> done = null;
+                if (hedge == null && started.size() == 1 && next < hedgeable && HEDGE_PERCENTILE > 0) {
+                    long waited = System.nanoTime() - started.values().iterator().next();
+                    done = completion.poll(Math.max(0, hedgeDelayNanos(latency) - waited), TimeUnit.NANOSECONDS);
+                    if (done == null && takeHedge()) {
+                        int node = remote.get(next++);
+                        hedge = completion.submit(() -> fetch.fetch(node));
+                        started.put(hedge, System.nanoTime());
+                        hedgesSent.increment();
+                        continue;
+                    }
+                }
+                if (done == null) done = completion.take();
+
+                long elapsed = System.nanoTime() - started.remove(done);
+                ByteBuffer data;
+                try {
+                    data = done.get();
+                } catch (ExecutionException e) {
+                    data = null;
+                }
+                if (data != null) {
+                    // só respostas boas entram: um nó travado não empurra o percentil p/ cima
+                    latency.record(elapsed);
+                    if (done == hedge) hedgeWins.increment();
+                    return data;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching fragment");
+        } finally {
+            for (Future<ByteBuffer> f : started.keySet()) f.cancel(true);
+        }
+    }
+
+    // scores lidos uma vez antes de ordenar: eles mudam enquanto outras buscas terminam
+    private void orderReplicas(List<Integer> owners) {
+        int first = owners.get(0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < REPLICA_EXPLORE_RATIO) {
+            Collections.shuffle(owners, random);
+        } else {
+            Map<Integer, Double> scores = new HashMap<>();
+            for (int node : owners) scores.put(node, peers.score(node));
+            owners.sort(Comparator.comparingDouble(scores::get));
+        }
+        if (owners.get(0) != first) replicaReorders.increment();
+    }
+
+    private boolean takeHedge() {
+        return hedgeBudget.getAndUpdate(b -> b >= 1000 ? b - 1000 : b) >= 1000;
+    }
+
+    private long hedgeDelayNanos(LatencyTracker latency) {
+        long p = latency.percentileNanos(HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES);
+        return p < 0 ? TimeUnit.MILLISECONDS.toNanos(HEDGE_INITIAL_DELAY_MS) : Math.max(HEDGE_MIN_DELAY_NANOS, p);
+    }
+
+    // tamanho desconhecido (manifest antigo) conta como a classe maior
+    private int sizeClass(long size) {
+        if (size < 0) return FETCH_SIZE_CLASSES.length;
+        int c = 0;
+        while (c < FETCH_SIZE_CLASSES.length && size >= FETCH_SIZE_CLASSES[c]) c++;
+        return c;
+    }
+
+    private String hedgingStatsJson() {
+        long fetches = remoteFetches.sum();
+        long hedges = hedgesSent.sum();
+        long wins = hedgeWins.sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"percentile\":").append(HEDGE_PERCENTILE)
+          .append(",\"maxRatio\":").append(HEDGE_MAX_RATIO)
+          .append(",\"fetches\":").append(fetches)
+          .append(",\"failovers\":").append(fetchFailovers.sum())
+          .append(",\"replicaReorders\":").append(replicaReorders.sum())
+          .append(",\"hedges\":").append(hedges)
+          .append(",\"hedgeWins\":").append(wins)
+          .append(",\"hedgeRate\":").append(String.format(Locale.ROOT, "%.4f", fetches == 0 ? 0.0 : (double) hedges / fetches))
+          .append(",\"winRate\":").append(String.format(Locale.ROOT, "%.4f", hedges == 0 ? 0.0 : (double) wins / hedges))
+          .append(",\"delayMs\":[");
+        for (int c = 0; c < fetchLatency.length; c++) {
+            if (c > 0) sb.append(',');
+            sb.append(HEDGE_PERCENTILE > 0 ? String.format(Locale.ROOT, "%.3f", hedgeDelayNanos(fetchLatency[c]) / 1e6) : "null");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    // shard indisponível: busca os outros shards em paralelo e decodifica com os
+    // primeiros k que chegarem íntegros. Os data shards seguintes também saem da
+    // decodificação e ficam em recovered, sem nova busca.
+    private ByteBuffer reconstructShard(String fileId, int missing, int k, int m, long shardSize,
+                                        Map<Integer, Fragment> expected, IntFunction<int[]> holdersOf,
+                                        Map<Integer, ByteBuffer> recovered) throws IOException {
+        Log.info("[%s] Shard %d of %s unavailable, reconstructing from the other shards", nodeId, missing, fileId);
+
+        List<Future<ByteBuffer>> fetches = new ArrayList<>();
+        for (int i = 0; i < k + m; i++) {
+            int index = i;
+            Fragment exp = expected.get(index);
+            String expectedHash = exp != null ? exp.hash : null;
+            long expectedSize = exp != null ? exp.size : shardSize;
+            int[] holders = holdersOf.apply(index);
+            fetches.add(index == missing ? null
+                    : fragmentFetchPool.submit(() -> loadFragment(fileId, index, holders, 1, expectedHash, expectedSize)));
+        }
+
+        byte[][] shards = new byte[k + m][];
+        int available = 0;
+        try {
+            for (int i = 0; i < k + m && available < k; i++) {
+                if (fetches.get(i) == null) continue;
+                ByteBuffer shard = awaitFragment(fetches.get(i));
+                if (shard == null) continue;
+                shards[i] = new byte[shard.remaining()];
+                shard.get(shards[i]);
+                available++;
+            }
+        } finally {
+            for (Future<ByteBuffer> f : fetches) {
+                if (f != null) f.cancel(true);
             }
         }
-    }
 
-    private void saveManifestLocal(String fileId, String manifestJson) throws IOException {
-        Path fileDir = dataRoot.resolve(fileId);
-        Files.createDirectories(fileDir);
-        Path manifestPath = fileDir.resolve("manifest.json");
-        Files.write(manifestPath, manifestJson.getBytes(StandardCharsets.UTF_8));
-        System.out.printf("[%s] Saved manifest at %s%n", nodeId, manifestPath.toAbsolutePath());
+        if (available < k) {
+            Log.error("[%s] Only %d of %d shards of %s available", nodeId, available, k, fileId);
+            return null;
+        }
+
+        new ReedSolomon(k, m).reconstruct(shards, (int) shardSize);
+        for (int d = missing + 1; d < k; d++) {
+            recovered.put(d, ByteBuffer.wrap(shards[d]));
+        }
+        return ByteBuffer.wrap(shards[missing]);
     }
 
-    // ================================
-    //  LIST FILES
-    // ================================
+    private boolean matchesHash(ByteBuffer data, String expectedHash) {
+        if (expectedHash == null) return true;
+        MessageDigest digest = newSha256();
+        digest.update(data.duplicate());
+        return expectedHash.equals(toHex(digest.digest()));
+    }
 
-    private void handleListFiles(PrintWriter writer, OutputStream out) throws IOException {
-        List<String> entries = new ArrayList<>();
-
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataRoot)) {
-            for (Path p : stream) {
-                if (Files.isDirectory(p)) {
-                    Path manifestPath = p.resolve("manifest.json");
-                    if (Files.exists(manifestPath)) {
-                        String manifestJson = Files.readString(manifestPath, StandardCharsets.UTF_8);
-                        String fileId = p.getFileName().toString();
-                        String originalName = extractOriginalNameFromManifest(manifestJson);
-                        if (originalName == null || originalName.isEmpty()) {
-                            originalName = fileId;
-                        }
-                        entries.add("{\"fileId\":\"" + fileId + "\",\"name\":\"" + originalName + "\"}");
-                    }
-                }
+    // tempo em diskReads: num fragment mapeado é só o do map, as páginas vêm depois
+    private ByteBuffer tryLoadFragmentLocal(String fileId, int index) throws IOException {
+        long start = System.nanoTime();
+        FragmentStore.Stored stored = store.open(fileId, index);
+        if (stored == null) return null;
+        try (FileChannel channel = stored.channel) {
+            if (stored.compressed) return tryLoadCompressedLocal(fileId, index, stored);
+            long size = stored.length;
+            if (size > Integer.MAX_VALUE) throw new IOException("Fragment too large: " + size);
+            if (fragmentCache.admits(size)) {
+                return readFully(channel, stored.offset, size);
             }
+            // grande demais p/ o cache: mapeado, nada do tamanho do fragment no heap (.frag só é
+            // substituído por rename e segmento só é apagado depois da cópia, então o mapeamento
+            // continua válido)
+            return size == 0 ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, stored.offset, size);
+        } finally {
+            diskReads.record(System.nanoTime() - start);
         }
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        for (int i = 0; i < entries.size(); i++) {
-            sb.append(entries.get(i));
-            if (i < entries.size() - 1) sb.append(",");
+    // .z descomprimido p/ o heap; o cache guarda o conteúdo cru
+    private ByteBuffer tryLoadCompressedLocal(String fileId, int index, FragmentStore.Stored stored) throws IOException {
+        try {
+            return FragmentCodec.decode(stored.channel.map(FileChannel.MapMode.READ_ONLY, stored.offset, stored.length));
+        } catch (IOException e) {
+            Log.warn("[%s] Local fragment %d of %s is corrupted (%s)", nodeId, index, fileId, e.getMessage());
+            return null;
+        }
+    }
+
+    // lê p/ um direct buffer (candidato ao cache)
+    private ByteBuffer readFully(FileChannel channel, long offset, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) throw new EOFException("Fragment truncated");
         }
-        sb.append("]");
+        return buffer.flip();
+    }
 
-        sendJson(writer, out, 200, sb.toString());
+    private ByteBuffer fetchFragmentFromNode(int nodeId, String fileId, int index, long expectedSize) throws IOException {
+        // encoding=z: o peer manda o .frag.z como está (nós antigos ignoram e mandam cru)
+        PeerClient.Response resp = peers.get(nodeId, fragmentUrl(fileId, index) + "&encoding=z",
+                readTimeout(nodeId, expectedSize));
+        if (resp.status != 200) return null;
+        if (FRAGMENT_ENCODING.equals(resp.header("Content-Encoding"))) {
+            return FragmentCodec.decode(ByteBuffer.wrap(resp.body));
+        }
+        return ByteBuffer.wrap(resp.body);
     }
 
     // ================================
-    //  DOWNLOAD (sem parse complexo de manifest)
+    //  INTERNAL: GET FRAGMENT
     // ================================
 
-    private void handleDownload(PrintWriter writer, OutputStream out, String query) throws IOException {
-        Map<String, String> params = parseQuery(query);
-        String fileId = params.get("fileId");
-        if (fileId == null || fileId.isEmpty()) {
-            sendPlain(writer, out, 400, "Missing fileId");
-            return;
+    // também atende /internal/getChunk?hash=... (layout cdc), com o chunk no lugar do fragment
+    private void handleInternalGetFragment(Exchange ex) throws IOException {
+        Map<String, String> params = parseQuery(ex.query);
+        String fileId;
+        int index;
+        if ("/internal/getChunk".equals(ex.path)) {
+            fileId = params.get("hash");
+            index = CHUNK_INDEX;
+            if (fileId == null || !isValidFileId(fileId)) {
+                sendPlain(ex, 400, "Invalid hash");
+                return;
+            }
+        } else {
+            fileId = params.get("fileId");
+            String indexStr = params.get("index");
+            if (fileId == null || indexStr == null) {
+                sendPlain(ex, 400, "Missing params");
+                return;
+            }
+            try {
+                index = Integer.parseInt(indexStr);
+            } catch (NumberFormatException e) {
+                sendPlain(ex, 400, "Invalid index");
+                return;
+            }
         }
 
-        Path manifestPath = dataRoot.resolve(fileId).resolve("manifest.json");
-        if (!Files.exists(manifestPath)) {
-            sendPlain(writer, out, 404, "File not found");
+        // offset/length opcionais: só um trecho do fragment (range do /download)
+        long offset = 0;
+        long length = -1;
+        try {
+            if (params.containsKey("offset")) offset = Long.parseLong(params.get("offset"));
+            if (params.containsKey("length")) length = Long.parseLong(params.get("length"));
+        } catch (NumberFormatException e) {
+            sendPlain(ex, 400, "Invalid offset/length");
             return;
         }
 
-        String manifestJson = Files.readString(manifestPath, StandardCharsets.UTF_8);
-        String originalName = extractOriginalNameFromManifest(manifestJson);
-        if (originalName == null || originalName.isEmpty()) {
-            originalName = "file-" + fileId.substring(0, 8);
+        ByteBuffer cached = fragmentCache.get(fileId, index);
+        if (cached != null) {
+            long count = length < 0 ? cached.remaining() - offset : length;
+            if (offset < 0 || count < 0 || offset + count > cached.remaining()) {
+                sendPlain(ex, 400, "Invalid offset/length");
+                return;
+            }
+            ex.writeHead(200, "application/octet-stream", count);
+            ex.sendBuffer(slice(cached, offset, offset + count));
+            return;
         }
 
-        ByteArrayOutputStream full = new ByteArrayOutputStream();
-        int myId = Integer.parseInt(nodeId);
-
-        for (int i = 0; i < TOTAL_NODES; i++) {
-            byte[] fragData = tryLoadFragmentLocal(fileId, i);
-
-            if (fragData == null) {
-                // nós que devem ter esse fragmento: i+1 e (i-1+N)%N+1
-                int nodeA = i + 1;
-                int nodeB = ((i - 1 + TOTAL_NODES) % TOTAL_NODES) + 1;
-
-                int[] candidates = new int[] { nodeA, nodeB };
+        FragmentStore.Stored stored = store.open(fileId, index);
+        if (stored == null) {
+            sendPlain(ex, 404, "Fragment not found");
+            return;
+        }
+        if (stored.compressed) {
+            sendCompressedFragment(ex, fileId, index, stored, "z".equals(params.get("encoding")), offset, length);
+            return;
+        }
 
-                for (int node : candidates) {
-                    if (node == myId) continue;
-                    try {
-                        fragData = fetchFragmentFromNode(node, fileId, i);
-                        if (fragData != null) {
-                            break;
-                        }
-                    } catch (IOException ignored) { }
-                }
+        FileChannel channel = stored.channel;
+        try {
+            long size = stored.length;
+            long count = length < 0 ? size - offset : length;
+            if (offset < 0 || count < 0 || offset + count > size) {
+                channel.close();
+                sendPlain(ex, 400, "Invalid offset/length");
+                return;
             }
 
-            if (fragData == null) {
-                sendPlain(writer, out, 500, "Could not retrieve fragment " + i);
+            if (fragmentCache.admits(size)) {
+                ByteBuffer data;
+                try (FileChannel ch = channel) {
+                    data = readFully(ch, stored.offset, size);
+                }
+                cacheIfIntact(fileId, index, data);
+                ex.writeHead(200, "application/octet-stream", count);
+                ex.sendBuffer(slice(data, offset, offset + count));
                 return;
             }
 
-            full.write(fragData);
-        }
-
-        byte[] fileBytes = full.toByteArray();
-
-        // checa integridade usando o próprio fileId (sha256 do conteúdo)
-        String checkId = sha256Hex(fileBytes);
-        if (!checkId.equals(fileId)) {
-            sendPlain(writer, out, 500, "File corrupted");
-            return;
+            // grande demais p/ o cache: servida do arquivo (o engine nio manda do disco p/ o socket)
+            ex.writeHead(200, "application/octet-stream", count);
+            ex.sendFile(channel, stored.offset + offset, count);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
-
-        sendBinaryWithFilename(writer, out, 200, "application/octet-stream", fileBytes, originalName);
     }
 
-    private byte[] tryLoadFragmentLocal(String fileId, int index) throws IOException {
-        Path fragPath = dataRoot.resolve(fileId).resolve("fragments").resolve(index + ".frag");
-        if (Files.exists(fragPath)) {
-            return Files.readAllBytes(fragPath);
+    // o download serve o cache sem checar o hash: o que foi lido do disco p/ um peer só
+    // entra se bater com o manifest daqui (chunk: com o próprio nome). O peer confere de
+    // qualquer jeito, então o fragment podre ainda sai, só não fica no cache
+    private void cacheIfIntact(String key, int index, ByteBuffer data) throws IOException {
+        String expectedHash = key;
+        if (index != CHUNK_INDEX) {
+            byte[] manifest = store.read(key, FragmentStore.MANIFEST_INDEX);
+            Fragment exp = manifest == null ? null
+                    : parseManifestFragments(new String(manifest, StandardCharsets.UTF_8)).get(index);
+            if (exp == null || exp.hash == null) return;
+            expectedHash = exp.hash;
+        }
+        if (matchesHash(data, expectedHash)) {
+            fragmentCache.put(key, index, data);
+        } else {
+            Log.warn("[%s] Local fragment %d of %s is corrupted", nodeId, index, key);
         }
-        return null;
     }
 
-    private byte[] fetchFragmentFromNode(int nodeId, String fileId, int index) throws IOException {
-        URL url = new URL("http://localhost:500" + nodeId +
-                "/internal/getFragment?fileId=" + fileId + "&index=" + index);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setConnectTimeout(2000);
-        conn.setReadTimeout(2000);
-        conn.setRequestMethod("GET");
+    // fragment guardado como .z: vai como está p/ quem pediu encoding=z (e o descomprime);
+    // p/ os outros, e p/ trechos, sai descomprimido (só os blocos do trecho)
+    private void sendCompressedFragment(Exchange ex, String fileId, int index, FragmentStore.Stored stored,
+                                        boolean encoded, long offset, long length) throws IOException {
+        FileChannel channel = stored.channel;
+        try {
+            long rawLength = FragmentCodec.rawLength(channel, stored.offset);
+            long count = length < 0 ? rawLength - offset : length;
+            if (offset < 0 || count < 0 || offset + count > rawLength) {
+                channel.close();
+                sendPlain(ex, 400, "Invalid offset/length");
+                return;
+            }
 
-        int status = conn.getResponseCode();
-        if (status != 200) return null;
+            if (encoded && offset == 0 && count == rawLength) {
+                ex.writeHead(200, "application/octet-stream", stored.length, "Content-Encoding: " + FRAGMENT_ENCODING);
+                ex.sendFile(channel, stored.offset, stored.length);
+                return;
+            }
 
-        return conn.getInputStream().readAllBytes();
+            ByteBuffer data;
+            try (FileChannel ch = channel) {
+                data = FragmentCodec.decodeRange(ch, stored.offset, offset, offset + count);
+            }
+            if (count == rawLength) cacheIfIntact(fileId, index, data);
+            ex.writeHead(200, "application/octet-stream", count);
+            ex.sendBuffer(data);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
     }
 
     // ================================
-    //  INTERNAL: GET FRAGMENT
+    //  HELPERS
     // ================================
 
-    private void handleInternalGetFragment(PrintWriter writer, OutputStream out, String query) throws IOException {
-        Map<String, String> params = parseQuery(query);
-        String fileId = params.get("fileId");
-        String indexStr = params.get("index");
-
-        if (fileId == null || indexStr == null) {
-            sendPlain(writer, out, 400, "Missing params");
-            return;
-        }
-
-        int index;
+    // "all" ou um número de cópias >= 1; -1 se inválido
+    private static int parseQuorum(String value) {
+        if ("all".equals(value)) return ALL_OWNERS;
         try {
-            index = Integer.parseInt(indexStr);
+            int quorum = Integer.parseInt(value);
+            return quorum >= 1 ? quorum : -1;
         } catch (NumberFormatException e) {
-            sendPlain(writer, out, 400, "Invalid index");
-            return;
+            return -1;
         }
+    }
 
-        Path fragPath = dataRoot.resolve(fileId).resolve("fragments").resolve(index + ".frag");
-        if (!Files.exists(fragPath)) {
-            sendPlain(writer, out, 404, "Fragment not found");
-            return;
+    // ?durability=none|group|write, ou o padrão do nó; null se inválido
+    private FragmentStore.Durability requestDurability(Map<String, String> params) {
+        String value = params.get("durability");
+        if (value == null) return durability;
+        try {
+            return FragmentStore.Durability.parse(value);
+        } catch (IllegalArgumentException e) {
+            return null;
         }
-
-        byte[] data = Files.readAllBytes(fragPath);
-        sendBinary(writer, out, 200, "application/octet-stream", data);
     }
 
-    // ================================
-    //  HELPERS
-    // ================================
-
     private Map<String, String> parseQuery(String query) {
         Map<String, String> map = new HashMap<>();
         if (query == null || query.isEmpty()) return map;
@@ -543,6 +2997,18 @@ public class StorageNode {
         return data;
     }
 
+    // copia exatamente length bytes de in para os, atualizando os digests no caminho
+    private void copyExactly(InputStream in, OutputStream os, long length, byte[] buffer, MessageDigest... digests) throws IOException {
+        long left = length;
+        while (left > 0) {
+            int r = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (r == -1) throw new IOException("Unexpected end of stream");
+            for (MessageDigest d : digests) d.update(buffer, 0, r);
+            os.write(buffer, 0, r);
+            left -= r;
+        }
+    }
+
     private String readLine(InputStream in) throws IOException {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         int b;
@@ -557,87 +3023,305 @@ public class StorageNode {
         return buffer.toString(StandardCharsets.UTF_8);
     }
 
-    private void sendPlain(PrintWriter writer, OutputStream out, int code, String body) throws IOException {
+    private void sendPlain(Exchange ex, int code, String body) throws IOException {
         byte[] bodyBytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
-        writer.print("HTTP/1.1 " + code + " OK\r\n");
-        writer.print("Content-Type: text/plain; charset=utf-8\r\n");
-        writer.print("Content-Length: " + bodyBytes.length + "\r\n");
-        writer.print("\r\n");
-        writer.flush();
-        out.write(bodyBytes);
-        out.flush();
+        ex.writeHead(code, "text/plain; charset=utf-8", bodyBytes.length);
+        ex.out.write(bodyBytes);
+        ex.out.flush();
     }
 
-    private void sendJson(PrintWriter writer, OutputStream out, int code, String body) throws IOException {
+    private void sendJson(Exchange ex, int code, String body) throws IOException {
         byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
-        writer.print("HTTP/1.1 " + code + " OK\r\n");
-        writer.print("Content-Type: application/json; charset=utf-8\r\n");
-        writer.print("Content-Length: " + bodyBytes.length + "\r\n");
-        writer.print("\r\n");
-        writer.flush();
-        out.write(bodyBytes);
-        out.flush();
+        ex.writeHead(code, "application/json; charset=utf-8", bodyBytes.length);
+        ex.out.write(bodyBytes);
+        ex.out.flush();
     }
 
-    private void sendBinary(PrintWriter writer, OutputStream out, int code, String contentType, byte[] data) throws IOException {
-        writer.print("HTTP/1.1 " + code + " OK\r\n");
-        writer.print("Content-Type: " + contentType + "\r\n");
-        writer.print("Content-Length: " + data.length + "\r\n");
-        writer.print("\r\n");
-        writer.flush();
-        out.write(data);
-        out.flush();
+    // array do heap vai direto; direct/mapped passa por copyBuffer em blocos
+    private void writeBuffer(OutputStream os, ByteBuffer data, byte[] copyBuffer) throws IOException {
+        if (data.hasArray()) {
+            os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+        ByteBuffer src = data.duplicate();
+        while (src.hasRemaining()) {
+            int n = Math.min(copyBuffer.length, src.remaining());
+            src.get(copyBuffer, 0, n);
+            os.write(copyBuffer, 0, n);
+        }
     }
 
-    private void sendBinaryWithFilename(PrintWriter writer, OutputStream out, int code, String contentType, byte[] data, String filename) throws IOException {
-        writer.print("HTTP/1.1 " + code + " OK\r\n");
-        writer.print("Content-Type: " + contentType + "\r\n");
-        writer.print("Content-Length: " + data.length + "\r\n");
-        writer.print("Content-Disposition: attachment; filename=\"" + filename + "\"\r\n");
-        writer.print("\r\n");
-        writer.flush();
-        out.write(data);
-        out.flush();
+    // fileSize < 0 => Transfer-Encoding: chunked (manifest antigo, sem range);
+    // range != null => 206 só com o intervalo pedido
+    private void sendDownloadHeaders(Exchange ex, long fileSize, String filename, String etag, long[] range) {
+        String disposition = "Content-Disposition: attachment; filename=\"" + filename + "\"";
+        if (fileSize < 0) {
+            ex.writeHead(200, "application/octet-stream", -1, disposition);
+        } else if (range == null) {
+            ex.writeHead(200, "application/octet-stream", fileSize, disposition,
+                    "Accept-Ranges: bytes", "ETag: " + etag);
+        } else {
+            ex.writeHead(206, "application/octet-stream", range[1] - range[0] + 1, disposition,
+                    "Accept-Ranges: bytes", "ETag: " + etag,
+                    "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + fileSize);
+        }
     }
 
     private String sha256Hex(byte[] data) {
+        return toHex(newSha256().digest(data));
+    }
+
+    private MessageDigest newSha256() {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] digest = md.digest(data);
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) sb.append(String.format("%02x", b));
-            return sb.toString();
+            return MessageDigest.getInstance("SHA-256");
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private boolean isValidFileId(String fileId) {
+        if (fileId == null || fileId.length() != 64) return false;
+        for (int i = 0; i < fileId.length(); i++) {
+            if (Character.digit(fileId.charAt(i), 16) == -1) return false;
+        }
+        return true;
+    }
+
+    private void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> walk = Files.walk(root)) {
+            List<Path> paths = new ArrayList<>();
+            walk.forEach(paths::add);
+            Collections.reverse(paths);
+            for (Path p : paths) Files.deleteIfExists(p);
+        }
+    }
+
     // ================================
     //  JSON BUILDING / PARSING
     // ================================
 
-    // Manifest JSON (simples: fileId + originalName + totalFragments)
-    private String buildManifestJson(String fileId, String originalName) {
+    // Manifest JSON (fileId + originalName + totalFragments + size + placement + hash de cada fragment);
+    // no layout erasure também layout, dataShards, parityShards e shardSize; no cdc os
+    // fragments são os chunks, em ordem
+    private String buildManifestJson(String fileId, String originalName, long size, List<Fragment> fragments,
+                                     ReedSolomon codec, boolean chunked) {
         StringBuilder sb = new StringBuilder();
         sb.append("{\"fileId\":\"").append(fileId).append("\",");
         sb.append("\"originalName\":\"").append(originalName).append("\",");
-        sb.append("\"totalFragments\":").append(TOTAL_NODES).append("}");
+        sb.append("\"totalFragments\":").append(fragments.size()).append(",");
+        sb.append("\"size\":").append(size).append(",");
+        sb.append("\"placement\":\"").append(newPlacement(codec != null)).append("\",");
+        if (chunked) {
+            sb.append("\"layout\":\"").append(LAYOUT_CDC).append("\",");
+        }
+        if (codec != null) {
+            sb.append("\"layout\":\"").append(LAYOUT_ERASURE).append("\",");
+            sb.append("\"dataShards\":").append(codec.dataShards()).append(",");
+            sb.append("\"parityShards\":").append(codec.parityShards()).append(",");
+            sb.append("\"shardSize\":").append(fragments.get(0).size).append(",");
+        }
+        sb.append("\"fragments\":[");
+        for (int i = 0; i < fragments.size(); i++) {
+            Fragment f = fragments.get(i);
+            sb.append("{\"index\":").append(f.index)
+              .append(",\"size\":").append(f.size)
+              .append(",\"hash\":\"").append(f.hash).append("\"}");
+            if (i < fragments.size() - 1) sb.append(",");
+        }
+        sb.append("]}");
         return sb.toString();
     }
 
-    // Payload p/ /internal/storeFragments
-    private String buildFragmentsJson(String fileId, List<Fragment> frags) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"fileId\":\"").append(fileId).append("\",\"fragments\":[");
+    // Payload p/ /internal/storeFragments (escrito em streaming, Base64 gerado on the fly)
+    private void writeFragmentsJson(OutputStream os, String fileId, List<Fragment> frags) throws IOException {
+        os.write(("{\"fileId\":\"" + fileId + "\",\"fragments\":[").getBytes(StandardCharsets.UTF_8));
         for (int i = 0; i < frags.size(); i++) {
             Fragment f = frags.get(i);
-            sb.append("{\"index\":\"").append(f.index)
-              .append("\",\"data\":\"")
-              .append(Base64.getEncoder().encodeToString(f.data))
-              .append("\"}");
-            if (i < frags.size() - 1) sb.append(",");
+            os.write(("{\"index\":\"" + f.index + "\",\"data\":\"").getBytes(StandardCharsets.UTF_8));
+            try (OutputStream b64 = Base64.getEncoder().wrap(new NonClosingOutputStream(os))) {
+                copyFragmentContent(f, b64);
+            }
+            os.write(("\"}" + (i < frags.size() - 1 ? "," : "")).getBytes(StandardCharsets.UTF_8));
         }
-        sb.append("]}");
+        os.write("]}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Payload binário p/ /internal/storeFragments:
+    //   magic(4) version(1) fileId(writeUTF) count(4)
+    //   por fragment: index(4) length(8) sha256(32) + bytes crus
+    //   v2: depois do sha256, encoding(1): 0 = bytes crus, 1 = tamanho do .z(8) + .z
+    //   (length e sha256 são sempre os do conteúdo original)
+    private void writeFragmentsBinary(OutputStream os, String fileId, List<Fragment> frags, int version) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new NonClosingOutputStream(os));
+        dos.writeInt(FRAGMENTS_MAGIC);
+        dos.writeByte(version);
+        dos.writeUTF(fileId);
+        dos.writeInt(frags.size());
+        for (Fragment f : frags) {
+            dos.writeInt(f.index);
+            dos.writeLong(f.size);
+            dos.write(fromHex(f.hash));
+            if (version >= FRAGMENTS_COMPRESSED_VERSION && f.compressed) {
+                dos.writeByte(1);
+                dos.writeLong(f.compressedSize);
+                if (f.storeKey == null) {
+                    Files.copy(f.compressedFile, dos);
+                } else {
+                    FragmentStore.Stored stored = openStored(f.storeKey, f.index);
+                    try (FileChannel ch = stored.channel) {
+                        copyRange(ch, stored.offset, f.compressedSize, dos);
+                    }
+                }
+                continue;
+            }
+            if (version >= FRAGMENTS_COMPRESSED_VERSION) dos.writeByte(0);
+            copyFragmentContent(f, dos);
+        }
+        dos.flush();
+    }
+
+    private long fragmentsBinaryLength(String fileId, List<Fragment> frags, int version) {
+        long length = 4 + 1 + 2 + fileId.getBytes(StandardCharsets.UTF_8).length + 4;
+        for (Fragment f : frags) {
+            length += 4 + 8 + 32;
+            if (version < FRAGMENTS_COMPRESSED_VERSION) {
+                length += f.size;
+            } else {
+                length += 1 + (f.compressed ? 8 + f.compressedSize : f.size);
+            }
+        }
+        return length;
+    }
+
+    // conteúdo original do fragment; só o .z está no store quando a rebalance reenvia
+    // um fragment comprimido p/ um nó que não aceita o v2
+    private void copyFragmentContent(Fragment f, OutputStream os) throws IOException {
+        if (f.storeKey == null) {
+            Files.copy(f.file, os);
+            return;
+        }
+        FragmentStore.Stored stored = openStored(f.storeKey, f.index);
+        try (FileChannel ch = stored.channel) {
+            if (!stored.compressed) {
+                copyRange(ch, stored.offset, stored.length, os);
+                return;
+            }
+            InputStream in = new BufferedInputStream(Channels.newInputStream(ch.position(stored.offset)), IO_BUFFER_SIZE);
+            FragmentCodec.decodeTo(in, os);
+        }
+    }
+
+    // bytes [offset, offset + length) do channel (leitura posicional, sem mexer na posição dele)
+    private void copyRange(FileChannel channel, long offset, long length, OutputStream os) throws IOException {
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long done = 0;
+        while (done < length) {
+            bb.clear().limit((int) Math.min(buffer.length, length - done));
+            int r = channel.read(bb, offset + done);
+            if (r == -1) throw new EOFException("File truncated");
+            os.write(buffer, 0, r);
+            done += r;
+        }
+    }
+
+    private long fragmentsJsonLength(String fileId, List<Fragment> frags) {
+        long length = ("{\"fileId\":\"" + fileId + "\",\"fragments\":[").length() + "]}".length();
+        for (int i = 0; i < frags.size(); i++) {
+            Fragment f = frags.get(i);
+            length += ("{\"index\":\"" + f.index + "\",\"data\":\"").length();
+            length += 4 * ((f.size + 2) / 3);
+            length += ("\"}" + (i < frags.size() - 1 ? "," : "")).length();
+        }
+        return length;
+    }
+
+    private String buildMetrics() {
+        Metrics.Exposition m = new Metrics.Exposition();
+        m.family("dfs_http_requests_total", "counter", "Requests served, by route and status class.");
+        for (Map.Entry<String, Metrics.RequestStats> e : routeStats.entrySet()) {
+            m.requests("dfs_http_requests_total", Metrics.label("route", e.getKey()), e.getValue());
+        }
+        m.family("dfs_http_request_duration_seconds", "histogram", "Time to serve a request, by route.");
+        for (Map.Entry<String, Metrics.RequestStats> e : routeStats.entrySet()) {
+            m.histogram("dfs_http_request_duration_seconds", Metrics.label("route", e.getKey()), e.getValue().latency);
+        }
+        m.family("dfs_connections_active", "gauge", "Client connections being served.");
+        m.sample("dfs_connections_active", "", engine.activeConnections());
+        m.family("dfs_connections_queued", "gauge", "Accepted connections waiting for a worker.");
+        m.sample("dfs_connections_queued", "", engine.queuedConnections());
+        m.family("dfs_connections_total", "counter", "Connections accepted and rejected (busy).");
+        m.sample("dfs_connections_total", "result=\"accepted\"", engine.acceptedConnections());
+        m.sample("dfs_connections_total", "result=\"rejected\"", engine.rejectedConnections());
+
+        m.family("dfs_bytes_ingested_total", "counter", "File bytes of completed uploads coordinated by this node.");
+        m.sample("dfs_bytes_ingested_total", "", bytesIngested.sum());
+        m.family("dfs_bytes_replicated_total", "counter", "Fragment and chunk bytes sent to and confirmed by other nodes.");
+        m.sample("dfs_bytes_replicated_total", "", bytesReplicated.sum());
+        m.family("dfs_bytes_served_total", "counter", "Fragment bytes sent in downloads (client) and fragment reads (peer).");
+        m.sample("dfs_bytes_served_total", "to=\"client\"", bytesServedToClients.sum());
+        m.sample("dfs_bytes_served_total", "to=\"peer\"", bytesServedToPeers.sum());
+        m.family("dfs_fragment_disk_read_seconds", "histogram", "Time to read a local fragment (map only when mapped).");
+        m.histogram("dfs_fragment_disk_read_seconds", "", diskReads);
+        m.family("dfs_fragment_disk_write_seconds", "histogram", "Time to store a fragment or chunk, including the fsync.");
+        m.histogram("dfs_fragment_disk_write_seconds", "", diskWrites);
+        m.family("dfs_manifests", "gauge", "Manifests known to this node.");
+        m.sample("dfs_manifests", "", manifestIndex.size());
+        m.family("dfs_log_messages_total", "counter", "Log messages written, and dropped because the log buffer was full.");
+        m.sample("dfs_log_messages_total", "result=\"written\"", Log.writtenMessages());
+        m.sample("dfs_log_messages_total", "result=\"dropped\"", Log.droppedMessages());
+
+        peers.writeMetrics(m);
+        failureDetector.writeMetrics(m);
+        hints.writeMetrics(m);
+        return m.toString();
+    }
+
+    private String buildStatsJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"engine\":\"").append(engine.name()).append("\",");
+        sb.append("\"activeConnections\":").append(engine.activeConnections()).append(",");
+        sb.append("\"queuedConnections\":").append(engine.queuedConnections()).append(",");
+        sb.append("\"acceptedConnections\":").append(engine.acceptedConnections()).append(",");
+        sb.append("\"rejectedConnections\":").append(engine.rejectedConnections()).append(",");
+        sb.append("\"clusterNodes\":").append(cluster.size()).append(",");
+        sb.append("\"manifests\":").append(manifestIndex.size()).append(",");
+        sb.append("\"fragmentCache\":").append(fragmentCache.statsJson()).append(",");
+        sb.append("\"chunks\":{\"sent\":").append(chunksSent.sum())
+          .append(",\"sentBytes\":").append(chunkBytesSent.sum())
+          .append(",\"deduplicated\":").append(chunksDeduplicated.sum())
+          .append(",\"deduplicatedBytes\":").append(chunkBytesDeduplicated.sum()).append("},");
+        sb.append("\"compression\":{\"codec\":\"").append(compressionCodec != null ? compressionCodec.name() : "none")
+          .append("\",\"compressed\":").append(fragmentsCompressed.sum())
+          .append(",\"incompressible\":").append(fragmentsIncompressible.sum())
+          .append(",\"rawBytes\":").append(compressionRawBytes.sum())
+          .append(",\"storedBytes\":").append(compressionStoredBytes.sum()).append("},");
+        sb.append("\"store\":").append(store.statsJson()).append(',');
+        sb.append("\"antiEntropy\":").append(antiEntropyStatsJson()).append(',');
+        sb.append("\"hedging\":").append(hedgingStatsJson()).append(',');
+        sb.append("\"failureDetector\":").append(failureDetector.statsJson()).append(',');
+        sb.append("\"hints\":").append(hints.statsJson()).append(',');
+        sb.append("\"peerClient\":").append(peers.statsJson()).append("}");
         return sb.toString();
     }
 
@@ -762,6 +3446,66 @@ public class StorageNode {
         return manifestJson.substring(q1 + 1, q2);
     }
 
+    private long extractLongFromManifest(String manifestJson, String field) {
+        int idx = manifestJson.indexOf("\"" + field + "\"");
+        if (idx == -1) return -1;
+        int colon = manifestJson.indexOf(":", idx);
+        if (colon == -1) return -1;
+        int end = colon + 1;
+        while (end < manifestJson.length() && (Character.isDigit(manifestJson.charAt(end)) || manifestJson.charAt(end) == ' ')) end++;
+        try {
+            return Long.parseLong(manifestJson.substring(colon + 1, end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // lista "fragments" do manifest: [{"index":0,"size":123,"hash":"..."},...]
+    private Map<Integer, Fragment> parseManifestFragments(String manifestJson) {
+        Map<Integer, Fragment> map = new HashMap<>();
+
+        int start = manifestJson.indexOf("\"fragments\"");
+        if (start == -1) return map;
+        start = manifestJson.indexOf("[", start);
+        int end = manifestJson.indexOf("]", start);
+        if (start == -1 || end == -1) return map;
+
+        String arrayContent = manifestJson.substring(start + 1, end).trim();
+        if (arrayContent.isEmpty()) return map;
+
+        for (String item : arrayContent.split("\\},\\{")) {
+            item = item.replace("{", "").replace("}", "").replace("\"", "").trim();
+            Integer index = null;
+            long size = -1;
+            String hash = null;
+            for (String field : item.split(",")) {
+                String[] kv = field.split(":", 2);
+                if (kv.length != 2) continue;
+                String key = kv[0].trim();
+                String value = kv[1].trim();
+                try {
+                    if (key.equals("index")) index = Integer.parseInt(value);
+                    else if (key.equals("size")) size = Long.parseLong(value);
+                    else if (key.equals("hash")) hash = value;
+                } catch (NumberFormatException ignored) { }
+            }
+            if (index != null) {
+                map.put(index, new Fragment(index, null, size, hash));
+            }
+        }
+        return map;
+    }
+
+    private String extractStringFromManifest(String manifestJson, String field) {
+        int idx = manifestJson.indexOf("\"" + field + "\"");
+        if (idx == -1) return null;
+        int colon = manifestJson.indexOf(":", idx);
+        int q1 = manifestJson.indexOf("\"", colon + 1);
+        int q2 = manifestJson.indexOf("\"", q1 + 1);
+        if (q1 == -1 || q2 == -1) return null;
+        return manifestJson.substring(q1 + 1, q2);
+    }
+
     private String extractOriginalNameFromManifest(String manifestJson) {
         int idx = manifestJson.indexOf("\"originalName\"");
         if (idx == -1) return null;
@@ -778,26 +3522,241 @@ public class StorageNode {
 
     private static class Fragment {
         int index;
-        byte[] data;
+        Path file;
+        long size;
         String hash;
+        boolean compressed;  // guardado/enviado como .z
+        Path compressedFile; // .z no staging do upload
+        long compressedSize;
+        String storeKey;     // != null: conteúdo lido do store em (storeKey, index), não de file
 
-        Fragment(int index, byte[] data, String hash) {
+        Fragment(int index, Path file, long size, String hash) {
             this.index = index;
-            this.data = data;
+            this.file = file;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    // chunk do layout cdc: bytes [offset, offset+size) de file (null = o chunk já está no store)
+    private static class Chunk {
+        final String hash;
+        final Path file;
+        final long offset;
+        final long size;
+
+        Chunk(String hash, Path file, long offset, long size) {
             this.hash = hash;
+            this.file = file;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    // o que uma rodada de anti-entropy fez
+    private static class RepairTally {
+        int exchanges;
+        int leaves;
+        int manifests;
+        int fragments;
+        int chunks;
+        int failed;
+        int conflicts;
+        long bytes;
+    }
+
+    private interface PeerCall {
+        boolean call(int targetNodeId, int attempt) throws IOException;
+    }
+
+    // uma rodada de chamadas paralelas aos peers, com prazo total, retry com backoff
+    // aleatório e cancelamento das chamadas pendentes quando o resultado já está decidido
+    private class FanOut {
+        private final long deadlineNanos;
+        private volatile boolean cancelled;
+        // quem não confirmou (falhou, estourou o prazo ou foi cancelado); lido depois do run
+        final Set<Integer> failed = new HashSet<>();
+
+        FanOut(long timeoutMs) {
+            this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+
+        long remainingMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        }
+
+        // o timeout adaptativo do peer, cortado no que resta do prazo total
+        int timeoutMillis(int target) {
+            return (int) Math.max(1, Math.min(peers.timeoutMillis(target, true), remainingMillis()));
+        }
+
+        boolean run(List<Integer> targets, String what, boolean failFast, PeerCall call) {
+            CompletionService<Boolean> completion = new ExecutorCompletionService<>(replicationPool);
+            Map<Future<Boolean>, Integer> pending = new HashMap<>();
+            for (int target : targets) {
+                pending.put(completion.submit(() -> callWithRetries(target, what, call)), target);
+            }
+
+            boolean allOk = true;
+            try {
+                while (!pending.isEmpty()) {
+                    long remaining = deadlineNanos - System.nanoTime();
+                    Future<Boolean> done = remaining > 0 ? completion.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (done == null) {
+                        Log.warn("[%s] Deadline exceeded sending %s to nodes %s", nodeId, what, new ArrayList<>(pending.values()));
+                        return false;
+                    }
+
+                    int target = pending.remove(done);
+                    boolean ok;
+                    try {
+                        ok = done.get();
+                    } catch (ExecutionException e) {
+                        ok = false;
+                    }
+
+                    if (!ok) {
+                        Log.warn("[%s] FAILED sending %s to node %d", nodeId, what, target);
+                        failed.add(target);
+                        allOk = false;
+                        if (failFast) return false;
+                    }
+                }
+                return allOk;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                failed.addAll(pending.values());
+                if (!pending.isEmpty()) cancel(pending.keySet());
+            }
+        }
+
+        private boolean callWithRetries(int target, String what, PeerCall call) throws InterruptedException {
+            for (int attempt = 1; attempt <= REPLICATION_ATTEMPTS && !cancelled; attempt++) {
+                // suspeito (antes ou entre tentativas): falha na hora em vez de esperar timeouts
+                if (!failureDetector.isAvailable(target)) {
+                    Log.debug("[%s] Node %d is suspected down, not sending %s", nodeId, target, what);
+                    return false;
+                }
+                try {
+                    if (call.call(target, attempt)) return true;
+                } catch (IOException ignored) { }
+
+                if (attempt < REPLICATION_ATTEMPTS) {
+                    // backoff exponencial com jitter, sem passar do prazo total
+                    long backoff = RETRY_BACKOFF_MS << (attempt - 1);
+                    long jittered = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff + 1);
+                    long sleep = Math.min(jittered, remainingMillis());
+                    if (sleep <= 0) break;
+                    Thread.sleep(sleep);
+                }
+            }
+            return false;
+        }
+
+        // o PeerClient usa sockets de SocketChannel: o interrupt fecha a conexão e aborta o I/O
+        private void cancel(Collection<Future<Boolean>> futures) {
+            cancelled = true;
+            for (Future<Boolean> f : futures) f.cancel(true);
+        }
+    }
+
+    private static class PeerCapabilities {
+        final int fragmentsVersion;
+        final long checkedAt;
+
+        PeerCapabilities(int fragmentsVersion, long checkedAt) {
+            this.fragmentsVersion = fragmentsVersion;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    // permite fechar o wrapper Base64 (que grava o padding) sem fechar a conexão
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // Transfer-Encoding: chunked p/ downloads sem tamanho conhecido no manifest
+    private static class ChunkedOutputStream extends FilterOutputStream {
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b, off, len);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        void finish() throws IOException {
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // virtual threads quando a JVM suporta (21+); senão um pool cached de threads daemon
+    static ExecutorService newTaskExecutor(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
         }
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.out.println("Usage: java StorageNode <nodeId> <port>");
+        if (args.length < 1) {
+            System.out.println("Usage: java [-Dcluster.config=cluster.properties] StorageNode <nodeId> [port]");
             return;
         }
 
         String nodeId = args[0];
-        int port = Integer.parseInt(args[1]);
+        ClusterConfig cluster = CLUSTER_CONFIG != null
+                ? ClusterConfig.load(Paths.get(CLUSTER_CONFIG))
+                : ClusterConfig.defaults();
+
+        // sem porta na linha de comando vale a do arquivo do cluster
+        int port;
+        if (args.length > 1) {
+            port = Integer.parseInt(args[1]);
+        } else {
+            InetSocketAddress address = cluster.addressOf(Integer.parseInt(nodeId));
+            if (address == null) {
+                System.out.println("Node " + nodeId + " is not in the cluster config, pass the port explicitly");
+                return;
+            }
+            port = address.getPort();
+        }
 
-        StorageNode node = new StorageNode(nodeId, port);
+        StorageNode node = new StorageNode(nodeId, port, cluster);
         node.start();
     }
 }
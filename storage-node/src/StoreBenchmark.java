@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+// ================================
+//  Vazão e latência de objetos pequenos em cada engine de FragmentStore, por nível de
+//  durabilidade
+//
+//  java -cp out StoreBenchmark [objetos] [bytes por objeto] [threads] [diretório]
+//
+//  Cada objeto é um fragment de um fileId diferente, gravado como na replicação
+//  (Writer, commit), por N threads ao mesmo tempo (como N uploads concorrentes). A
+//  latência é a de cada commit. Na durabilidade none tudo é lido de volta em seguida.
+//  A primeira linha é o teto: os mesmos bytes escritos em sequência num arquivo só. O
+//  diretório (padrão: um temporário) é apagado no fim.
+// ================================
+
+public class StoreBenchmark {
+
+    private static final String[] ENGINES = { "files", "segments" };
+
+    public static void main(String[] args) throws Exception {
+        int objects = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        Path root = args.length > 3 ? Paths.get(args[3]) : Files.createTempDirectory("store-bench");
+        Files.createDirectories(root);
+
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        String[] keys = new String[objects];
+        Random random = new Random(7);
+        for (int i = 0; i < objects; i++) keys[i] = String.format("%016x%016x%016x%016x",
+                random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+
+        double mb = (double) objects * size / 1e6;
+        System.out.printf("%d objects of %d bytes (%.1f MB), %d writer threads, in %s%n", objects, size, mb, threads, root);
+        System.out.printf(Locale.ROOT, "%-10s %-6s %11s %10s %8s %8s %11s %9s %6s%n",
+                "engine", "durab.", "write obj/s", "write MB/s", "p50 ms", "p99 ms", "read obj/s", "read MB/s", "files");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // teto: append sequencial num arquivo só, sem fsync
+            Path sequential = root.resolve("sequential.bin");
+            long start = System.nanoTime();
+            try (FileChannel ch = FileChannel.open(sequential, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < objects; i++) {
+                    ByteBuffer b = ByteBuffer.wrap(data);
+                    while (b.hasRemaining()) ch.write(b);
+                }
+            }
+            long writeNanos = System.nanoTime() - start;
+            System.out.printf(Locale.ROOT, "%-10s %-6s %11.0f %10.1f %8s %8s %11s %9s %6d%n", "sequential", "none",
+                    objects / (writeNanos / 1e9), mb / (writeNanos / 1e9), "-", "-", "-", "-", 1);
+            Files.delete(sequential);
+
+            for (String engine : ENGINES) {
+                for (FragmentStore.Durability durability : FragmentStore.Durability.values()) {
+                    Path dir = root.resolve(engine + "-" + durability.label());
+                    FragmentStore store = FragmentStore.create(engine, dir);
+                    store.start();
+
+                    long[] latencies = new long[objects];
+                    List<Future<?>> writers = new ArrayList<>();
+                    start = System.nanoTime();
+                    for (int t = 0; t < threads; t++) {
+                        int first = t;
+                        writers.add(pool.submit(() -> {
+                            for (int i = first; i < objects; i += threads) {
+                                long begin = System.nanoTime();
+                                try (FragmentStore.Writer out = store.create(keys[i], 0, false, size)) {
+                                    out.write(data);
+                                    out.commit(durability);
+                                }
+                                latencies[i] = System.nanoTime() - begin;
+                            }
+                            return null;
+                        }));
+                    }
+                    for (Future<?> f : writers) f.get();
+                    writeNanos = System.nanoTime() - start;
+                    Arrays.sort(latencies);
+
+                    String readRate = "-";
+                    String readMb = "-";
+                    if (durability == FragmentStore.Durability.NONE) {
+                        long readNanos = readAll(store, keys, size);
+                        readRate = String.format(Locale.ROOT, "%.0f", objects / (readNanos / 1e9));
+                        readMb = String.format(Locale.ROOT, "%.1f", mb / (readNanos / 1e9));
+                    }
+
+                    System.out.printf(Locale.ROOT, "%-10s %-6s %11.0f %10.1f %8.3f %8.3f %11s %9s %6d%n",
+                            engine, durability.label(), objects / (writeNanos / 1e9), mb / (writeNanos / 1e9),
+                            latencies[objects / 2] / 1e6, latencies[(int) (objects * 0.99)] / 1e6,
+                            readRate, readMb, countFiles(dir));
+                    if (durability == FragmentStore.Durability.GROUP) {
+                        System.out.printf("%-17s group commit %s%n", "", groupCommitStats(store.statsJson()));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            deleteRecursively(root);
+        }
+    }
+
+    private static long readAll(FragmentStore store, String[] keys, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        long start = System.nanoTime();
+        for (String key : keys) {
+            FragmentStore.Stored stored = store.open(key, 0);
+            try (FileChannel ch = stored.channel) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (ch.read(buffer, stored.offset + buffer.position()) == -1) throw new IOException("Short read");
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String groupCommitStats(String storeStats) {
+        int start = storeStats.indexOf("\"groupCommit\":");
+        return start < 0 ? "" : storeStats.substring(start + "\"groupCommit\":".length(), storeStats.indexOf('}', start) + 1);
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            return walk.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+}